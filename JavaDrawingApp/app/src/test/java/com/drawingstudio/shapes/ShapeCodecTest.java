@@ -0,0 +1,195 @@
+package com.drawingstudio.shapes;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class ShapeCodecTest {
+    private final ShapeCodec codec = new ShapeCodec();
+
+    @Test
+    void roundTripsADrawing() throws IOException {
+        ShapeStore shapes = drawing(new Random(1), 2000);
+        assertSame(shapes, decode(encode(shapes)));
+    }
+
+    @Test
+    void roundTripsAnEmptyBlock() throws IOException {
+        ShapeStore shapes = new ShapeStore();
+        assertEquals(0, decode(encode(shapes)).size());
+    }
+
+    @Test
+    void roundTripsExtremeCoordinates() throws IOException {
+        ShapeStore shapes = new ShapeStore();
+        int[] values = {0, 1, -1, Integer.MAX_VALUE, Integer.MIN_VALUE, 1 << 28, -(1 << 28)};
+        for (int x0 : values) {
+            for (int y1 : values) {
+                shapes.add(ShapeStore.LINE, x0, -x0, x0 ^ y1, y1, 0xFF000000, 2);
+            }
+        }
+        assertSame(shapes, decode(encode(shapes)));
+    }
+
+    @Test
+    void roundTripsFloatAndOddWidths() throws IOException {
+        ShapeStore shapes = new ShapeStore();
+        float[] widths = {2, 0, 1.5f, 0.25f, -3, 1 << 30, Float.MAX_VALUE, Float.MIN_VALUE,
+            Float.POSITIVE_INFINITY, Float.NaN, Float.NaN, 7};
+        for (int i = 0; i < widths.length; i++) {
+            shapes.add(ShapeStore.OVAL, i, i, i + 10, i + 10, 0xFF336699, widths[i]);
+        }
+        ShapeStore decoded = decode(encode(shapes));
+        assertSame(shapes, decoded);
+        assertTrue(Float.isNaN(decoded.strokeWidth(9)));
+    }
+
+    @Test
+    void roundTripsASingleShape() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(ShapeCodec.maxEncodedSize(1));
+        codec.encode(ShapeStore.DIAMOND, -5, 7, 300, -400, 0x80FF0000, Float.NaN, buffer);
+        buffer.flip();
+        float[] width = new float[1];
+        int count = codec.decode(buffer, (kind, x0, y0, x1, y1, argb, w) -> {
+            assertEquals(ShapeStore.DIAMOND, kind);
+            assertArrayEquals(new int[] {-5, 7, 300, -400, 0x80FF0000}, new int[] {x0, y0, x1, y1, argb});
+            width[0] = w;
+        });
+        assertEquals(1, count);
+        assertTrue(Float.isNaN(width[0]));
+        assertEquals(0, buffer.remaining());
+    }
+
+    @Test
+    void roundTripsMoreColoursThanTheDictionaryHolds() throws IOException {
+        ShapeStore shapes = new ShapeStore();
+        int colours = ShapeCodec.MAX_DICTIONARY + 1000;
+        for (int i = 0; i < colours; i++) {
+            shapes.add(ShapeStore.RECTANGLE, i, i, i + 1, i + 1, 0xFF000000 | i * 37, 1);
+        }
+        // Every colour again: the first MAX_DICTIONARY by index, the rest literally
+        for (int i = colours - 1; i >= 0; i--) {
+            shapes.add(ShapeStore.RECTANGLE, i, i, i + 1, i + 1, 0xFF000000 | i * 37, 1);
+        }
+        assertSame(shapes, decode(encode(shapes)));
+    }
+
+    @Test
+    void blocksDecodeIndependently() throws IOException {
+        ShapeStore first = drawing(new Random(2), 300);
+        ShapeStore second = drawing(new Random(3), 300);
+        ByteBuffer buffer = ByteBuffer.allocate(ShapeCodec.maxEncodedSize(600));
+        codec.encode(first, buffer);
+        codec.encode(second, buffer);
+        buffer.flip();
+        ShapeCodec reader = new ShapeCodec();
+        assertSame(first, reader.decode(buffer));
+        assertSame(second, reader.decode(buffer));
+        assertEquals(0, buffer.remaining());
+    }
+
+    @Test
+    void staysWithinTheMaximumSize() {
+        Random random = new Random(4);
+        ShapeStore shapes = new ShapeStore();
+        for (int i = 0; i < 1000; i++) {
+            shapes.add((byte) random.nextInt(5), random.nextInt(), random.nextInt(), random.nextInt(),
+                random.nextInt(), random.nextInt(), random.nextFloat());
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(ShapeCodec.maxEncodedSize(shapes.size()));
+        codec.encode(shapes, buffer);
+        assertTrue(buffer.position() <= buffer.capacity());
+    }
+
+    @Test
+    void rejectsTruncatedData() {
+        byte[] bytes = encode(drawing(new Random(5), 50));
+        for (int length = 0; length < bytes.length; length++) {
+            ByteBuffer truncated = ByteBuffer.wrap(Arrays.copyOf(bytes, length));
+            assertThrows(IOException.class, () -> codec.decode(truncated), "length " + length);
+        }
+    }
+
+    @Test
+    void rejectsAnotherVersion() {
+        byte[] bytes = encode(drawing(new Random(6), 10));
+        bytes[0] = ShapeCodec.VERSION + 1;
+        assertThrows(IOException.class, () -> codec.decode(ByteBuffer.wrap(bytes)));
+    }
+
+    @Test
+    void rejectsACountTheDataCannotHold() {
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[] {ShapeCodec.VERSION, (byte) 0xFF, (byte) 0xFF, 0x7F, 0});
+        assertThrows(IOException.class, () -> codec.decode(buffer));
+    }
+
+    @Test
+    void corruptDataFailsOnlyWithIOException() {
+        byte[] bytes = encode(drawing(new Random(7), 200));
+        Random random = new Random(8);
+        for (int trial = 0; trial < 5000; trial++) {
+            byte[] corrupt = bytes.clone();
+            for (int flips = 1 + random.nextInt(4); flips > 0; flips--) {
+                corrupt[random.nextInt(corrupt.length)] ^= (byte) (1 << random.nextInt(8));
+            }
+            try {
+                codec.decode(ByteBuffer.wrap(corrupt));
+            } catch (IOException expected) {
+                // Reported as bad data, which is all callers handle
+            } catch (RuntimeException e) {
+                fail("Trial " + trial + " threw " + e);
+            }
+        }
+    }
+
+    /**
+     * Shapes like a drawing's: near each other, in a few colours and widths
+     */
+    private static ShapeStore drawing(Random random, int count) {
+        int[] palette = {0xFF000000, 0xFFFF0000, 0xFF00FF00, 0xFF0000FF, 0x80FFFF00};
+        float[] widths = {1, 2, 5, 2.5f};
+        ShapeStore shapes = new ShapeStore(count);
+        int x = 500;
+        int y = 400;
+        for (int i = 0; i < count; i++) {
+            x += random.nextInt(81) - 40;
+            y += random.nextInt(81) - 40;
+            shapes.add((byte) random.nextInt(5), x, y, x + random.nextInt(600) - 300, y + random.nextInt(600) - 300,
+                palette[random.nextInt(palette.length)], widths[random.nextInt(widths.length)]);
+        }
+        return shapes;
+    }
+
+    private byte[] encode(ShapeStore shapes) {
+        return codec.toBytes(shapes);
+    }
+
+    private ShapeStore decode(byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        ShapeStore decoded = codec.decode(buffer);
+        assertEquals(0, buffer.remaining(), "bytes left after the block");
+        return decoded;
+    }
+
+    private static void assertSame(ShapeStore expected, ShapeStore actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            String shape = "shape " + i;
+            assertEquals(expected.kind(i), actual.kind(i), shape);
+            assertEquals(expected.x0(i), actual.x0(i), shape);
+            assertEquals(expected.y0(i), actual.y0(i), shape);
+            assertEquals(expected.x1(i), actual.x1(i), shape);
+            assertEquals(expected.y1(i), actual.y1(i), shape);
+            assertEquals(expected.argb(i), actual.argb(i), shape);
+            assertEquals(expected.strokeWidth(i), actual.strokeWidth(i), shape);   // NaN equals NaN here
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.drawingstudio.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with JMH's usual command line, but writes the results
+ * as JSON to jmh-result.json unless -rf/-rff say otherwise, so runs from
+ * different releases can be compared by a script
+ * <p>
+ * Usage: java -jar benchmarks/target/benchmarks.jar [JMH options] [benchmark regex]
+ */
+public class BenchmarkRunner {
+    public static void main(String[] args) throws RunnerException {
+        CommandLineOptions command;
+        try {
+            command = new CommandLineOptions(args);
+        } catch (CommandLineOptionException e) {
+            System.out.println("Error parsing command line: " + e.getMessage());
+            return;
+        }
+        if (command.shouldHelp() || command.shouldList() || command.shouldListWithParams()
+                || command.shouldListProfilers() || command.shouldListResultFormats()) {
+            // Help and listings are JMH's own
+            try {
+                org.openjdk.jmh.Main.main(args);
+            } catch (Exception e) {
+                System.out.println("Error: " + e.getMessage());
+            }
+            return;
+        }
+
+        OptionsBuilder options = new OptionsBuilder();
+        options.parent(command);
+        if (!command.getResultFormat().hasValue()) {
+            options.resultFormat(ResultFormatType.JSON);
+        }
+        if (!command.getResult().hasValue()) {
+            options.result("jmh-result.json");
+        }
+        new Runner(options.build()).run();
+    }
+}
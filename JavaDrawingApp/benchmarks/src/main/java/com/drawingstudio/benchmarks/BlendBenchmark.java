@@ -0,0 +1,119 @@
+package com.drawingstudio.benchmarks;
+
+import com.drawingstudio.layers.BlendMode;
+import com.drawingstudio.layers.Compositor;
+import com.drawingstudio.layers.Layer;
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Blending one 1920x1080 layer onto an opaque frame at 75% opacity, per
+ * blend mode: the scalar kernels against the SIMD ones, with Java2D's
+ * AlphaComposite SrcOver - what NORMAL replaced - as the baseline
+ * The layer is scribbled like a real one, so transparent, antialiased and
+ * opaque pixels all occur. Throughput in MB/s is 1920 * 1080 * 4 bytes
+ * divided by the time per operation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true", "--add-modules", "jdk.incubator.vector"})
+public class BlendBenchmark {
+    private static final int WIDTH = 1920;
+    private static final int HEIGHT = 1080;
+    private static final int OPACITY = 191;
+
+    /**
+     * A layer and a frame as int arrays, for the kernels
+     */
+    @State(Scope.Thread)
+    public static class Pixels {
+        @Param({"NORMAL", "MULTIPLY", "SCREEN", "OVERLAY", "DARKEN", "LIGHTEN"})
+        public BlendMode blendMode;
+
+        Compositor scalar;
+        Compositor vector;
+        int[] src;
+        int[] dst;
+
+        @Setup
+        public void setUp() {
+            scalar = Compositor.scalar();
+            Compositor.prepare();
+            vector = Compositor.get();
+            if (vector.getName().equals(scalar.getName())) {
+                throw new IllegalStateException("SIMD kernels not available - is jdk.incubator.vector added?");
+            }
+            Layer layer = new Layer("Layer", WIDTH, HEIGHT);
+            Fixtures.scribble(layer, 200);
+            src = layer.getPixels();
+            dst = new int[WIDTH * HEIGHT];
+            Arrays.fill(dst, 0xFFFFFF);
+        }
+    }
+
+    /**
+     * The same layer and frame as images, for Java2D
+     */
+    @State(Scope.Thread)
+    public static class Images {
+        BufferedImage layer;
+        BufferedImage frame;
+        Graphics2D graphics;
+
+        @Setup
+        public void setUp() {
+            Layer source = new Layer("Layer", WIDTH, HEIGHT);
+            Fixtures.scribble(source, 200);
+            layer = source.getImage();
+            frame = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+            Arrays.fill(((DataBufferInt) frame.getRaster().getDataBuffer()).getData(), 0xFFFFFF);
+            graphics = frame.createGraphics();
+            graphics.setComposite(AlphaComposite.SrcOver.derive(OPACITY / 255f));
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            graphics.dispose();
+        }
+    }
+
+    @Benchmark
+    public int[] scalar(Pixels pixels) {
+        pixels.scalar.blend(pixels.blendMode, pixels.src, 0, pixels.dst, 0, pixels.src.length, OPACITY);
+        return pixels.dst;
+    }
+
+    @Benchmark
+    public int[] vector(Pixels pixels) {
+        pixels.vector.blend(pixels.blendMode, pixels.src, 0, pixels.dst, 0, pixels.src.length, OPACITY);
+        return pixels.dst;
+    }
+
+    /**
+     * NORMAL only: Java2D has no other blend modes
+     */
+    @Benchmark
+    public BufferedImage java2dNormal(Images images) {
+        images.graphics.drawImage(images.layer, 0, 0, null);
+        return images.frame;
+    }
+}
@@ -0,0 +1,61 @@
+package com.drawingstudio.benchmarks;
+
+import com.drawingstudio.layers.BlendMode;
+import com.drawingstudio.layers.Compositor;
+import com.drawingstudio.layers.LayerStack;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compositing a stack of layers from scratch, as after an edit below the
+ * active layer: every cache is dropped before each frame
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true", "--add-modules", "jdk.incubator.vector"})
+public class CompositeBenchmark {
+    @Param({"1", "4"})
+    public int layerCount;
+
+    @Param({"NORMAL", "MULTIPLY", "OVERLAY"})
+    public BlendMode blendMode;
+
+    private LayerStack layers;
+    private BufferedImage frame;
+
+    @Setup
+    public void setUp() {
+        Compositor.prepare();   // as the app does once its window is up
+        layers = new LayerStack(1920, 1080);
+        for (int i = 0; i < layerCount; i++) {
+            if (i > 0) {
+                layers.addLayer();
+                layers.setBlendMode(i, blendMode);
+                layers.setOpacity(i, 0.75f);
+            }
+            Fixtures.scribble(layers.get(i), 200);
+        }
+        frame = new BufferedImage(1920, 1080, BufferedImage.TYPE_INT_RGB);
+    }
+
+    @Benchmark
+    public BufferedImage compositeAll() {
+        layers.invalidate();
+        layers.paint(frame, null);
+        return frame;
+    }
+}
@@ -0,0 +1,72 @@
+package com.drawingstudio.benchmarks;
+
+import com.drawingstudio.layers.Compositor;
+import com.drawingstudio.layers.Layer;
+import com.drawingstudio.layers.LayerStack;
+import com.drawingstudio.manager.FileManager;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Saving the flattened drawing as PNG and loading it back
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true", "--add-modules", "jdk.incubator.vector"})
+public class FileBenchmark {
+    @Param({"800x600", "1920x1080"})
+    public String canvasSize;
+
+    private LayerStack layers;
+    private File saveTarget;
+    private File saved;
+
+    @Setup
+    public void setUp() throws IOException {
+        Compositor.prepare();   // as the app does once its window is up
+        int[] size = Fixtures.size(canvasSize);
+        layers = new LayerStack(size[0], size[1]);
+        Layer layer = layers.getActive();
+        Fixtures.scribble(layer, 200);
+        layer.getShapes().addAll(Fixtures.shapes(1000, size[0], size[1]));
+
+        saveTarget = File.createTempFile("bench-save", ".png");
+        saved = File.createTempFile("bench-load", ".png");
+        if (!FileManager.saveDrawing(saved, layers)) {
+            throw new IOException("Could not write " + saved);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        saveTarget.delete();
+        saved.delete();
+    }
+
+    @Benchmark
+    public boolean saveDrawing() {
+        return FileManager.saveDrawing(saveTarget, layers);
+    }
+
+    @Benchmark
+    public BufferedImage loadDrawing() {
+        return FileManager.loadDrawing(saved);
+    }
+}
@@ -0,0 +1,76 @@
+package com.drawingstudio.benchmarks;
+
+import com.drawingstudio.layers.Layer;
+import com.drawingstudio.shapes.DiamondShape;
+import com.drawingstudio.shapes.LineShape;
+import com.drawingstudio.shapes.OvalShape;
+import com.drawingstudio.shapes.RectShape;
+import com.drawingstudio.shapes.ShapeBase;
+import com.drawingstudio.shapes.TriangleShape;
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.RenderingHints;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Seeded drawings shared by the benchmarks, so every run measures the same work
+ */
+final class Fixtures {
+    static final long SEED = 42;
+
+    private Fixtures() {
+    }
+
+    /**
+     * count shapes of every kind, up to 100 pixels across, spread over width x height
+     */
+    static List<ShapeBase> shapes(int count, int width, int height) {
+        Random random = new Random(SEED);
+        List<ShapeBase> shapes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Point start = new Point(random.nextInt(width), random.nextInt(height));
+            Point end = new Point(start.x + random.nextInt(201) - 100, start.y + random.nextInt(201) - 100);
+            Color color = new Color(random.nextInt(0x1000000));
+            int stroke = 1 + random.nextInt(10);
+            switch (i % 5) {
+                case 0: shapes.add(new LineShape(start, end, color, stroke)); break;
+                case 1: shapes.add(new RectShape(start, end, color, stroke)); break;
+                case 2: shapes.add(new OvalShape(start, end, color, stroke)); break;
+                case 3: shapes.add(new TriangleShape(start, end, color, stroke)); break;
+                default: shapes.add(new DiamondShape(start, end, color, stroke)); break;
+            }
+        }
+        return shapes;
+    }
+
+    /**
+     * Give a layer's raster brush-like content: antialiased random strokes
+     */
+    static void scribble(Layer layer, int strokes) {
+        Random random = new Random(SEED);
+        int width = layer.getImage().getWidth();
+        int height = layer.getImage().getHeight();
+        Graphics2D g = layer.getImage().createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        for (int i = 0; i < strokes; i++) {
+            g.setColor(new Color(random.nextInt(0x1000000)));
+            g.setStroke(new BasicStroke(1 + random.nextInt(20), BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+            int x = random.nextInt(width);
+            int y = random.nextInt(height);
+            g.drawLine(x, y, x + random.nextInt(401) - 200, y + random.nextInt(401) - 200);
+        }
+        g.dispose();
+    }
+
+    /**
+     * Parse a "WIDTHxHEIGHT" benchmark parameter
+     */
+    static int[] size(String param) {
+        int x = param.indexOf('x');
+        return new int[] {Integer.parseInt(param.substring(0, x)), Integer.parseInt(param.substring(x + 1))};
+    }
+}
@@ -0,0 +1,59 @@
+package com.drawingstudio.benchmarks;
+
+import com.drawingstudio.layers.Layer;
+import com.drawingstudio.layers.LayerStack;
+import com.drawingstudio.manager.HistoryManager;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Taking an undo snapshot of a layer, and an undo that snapshots it again for
+ * redo, at different canvas sizes
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true", "--add-modules", "jdk.incubator.vector"})
+public class HistoryBenchmark {
+    @Param({"800x600", "1920x1080", "3840x2160"})
+    public String canvasSize;
+
+    private LayerStack layers;
+    private Layer layer;
+    private HistoryManager history;
+
+    @Setup
+    public void setUp() {
+        int[] size = Fixtures.size(canvasSize);
+        layers = new LayerStack(size[0], size[1]);
+        layer = layers.getActive();
+        Fixtures.scribble(layer, 200);
+        layer.getShapes().addAll(Fixtures.shapes(1000, size[0], size[1]));
+        history = new HistoryManager();
+    }
+
+    @Benchmark
+    public HistoryManager saveState() {
+        // The history is bounded, so once full this also drops its oldest step
+        history.saveState(layer);
+        return history;
+    }
+
+    @Benchmark
+    public HistoryManager.CanvasState saveStateAndUndo() {
+        history.saveState(layer);
+        return history.undo(layers);
+    }
+}
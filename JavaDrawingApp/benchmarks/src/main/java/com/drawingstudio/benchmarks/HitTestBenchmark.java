@@ -0,0 +1,70 @@
+package com.drawingstudio.benchmarks;
+
+import com.drawingstudio.shapes.ShapeBase;
+import com.drawingstudio.shapes.ShapeStore;
+import java.awt.Point;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Finding the topmost shape under the eraser: a ShapeBase.contains scan over
+ * shape objects against the same scan over the columnar store
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true", "--add-modules", "jdk.incubator.vector"})
+public class HitTestBenchmark {
+    private static final int PROBES = 256;
+
+    @Param({"100", "1000", "10000"})
+    public int shapes;
+
+    private List<ShapeBase> objects;
+    private ShapeStore store;
+    private Point[] probes;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        objects = Fixtures.shapes(shapes, 800, 600);
+        store = new ShapeStore();
+        store.addAll(objects);
+        Random random = new Random(Fixtures.SEED);
+        probes = new Point[PROBES];
+        for (int i = 0; i < PROBES; i++) {
+            probes[i] = new Point(random.nextInt(800), random.nextInt(600));
+        }
+    }
+
+    @Benchmark
+    public int containsScan() {
+        Point p = probes[next++ & (PROBES - 1)];
+        for (int i = objects.size() - 1; i >= 0; i--) {
+            if (objects.get(i).contains(p)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Benchmark
+    public int storeHitTest() {
+        Point p = probes[next++ & (PROBES - 1)];
+        return store.hitTest(p.x, p.y);
+    }
+}
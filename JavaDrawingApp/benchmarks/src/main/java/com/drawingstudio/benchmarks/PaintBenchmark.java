@@ -0,0 +1,69 @@
+package com.drawingstudio.benchmarks;
+
+import com.drawingstudio.canvas.DrawingCanvas;
+import com.drawingstudio.layers.Compositor;
+import com.drawingstudio.utils.SurfacePool;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A full repaint of the canvas with N shapes on the active layer, and the
+ * flattened copy that picking and filling work from
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true", "--add-modules", "jdk.incubator.vector"})
+public class PaintBenchmark {
+    @Param({"100", "1000", "10000"})
+    public int shapes;
+
+    private DrawingCanvas canvas;
+    private BufferedImage screen;
+    private Graphics2D screenGraphics;
+
+    @Setup
+    public void setUp() {
+        Compositor.prepare();   // as the app does once its window is up
+        canvas = new DrawingCanvas(null);
+        int width = canvas.getLayers().getWidth();
+        int height = canvas.getLayers().getHeight();
+        canvas.getLayers().getActive().getShapes().addAll(Fixtures.shapes(shapes, width, height));
+        screen = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        screenGraphics = screen.createGraphics();
+    }
+
+    @TearDown
+    public void tearDown() {
+        screenGraphics.dispose();
+    }
+
+    @Benchmark
+    public BufferedImage paint() {
+        canvas.paint(screenGraphics);
+        return screen;
+    }
+
+    @Benchmark
+    public int createCompositeImage() {
+        BufferedImage composite = canvas.createCompositeImage();
+        int rgb = composite.getRGB(0, 0);
+        SurfacePool.shared().release(composite);
+        return rgb;
+    }
+}
@@ -0,0 +1,64 @@
+package com.drawingstudio.benchmarks;
+
+import com.drawingstudio.shapes.ShapeCodec;
+import com.drawingstudio.shapes.ShapeStore;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding a layer's shapes with ShapeCodec and decoding them back into a
+ * store, as autosave and the undo history do
+ * The fixture's colours are all different and its shapes scattered, the
+ * codec's worst case for size; throughput in MB/s of shape columns is
+ * shapes * ShapeStore.BYTES_PER_SHAPE divided by the time per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true", "--add-modules", "jdk.incubator.vector"})
+public class ShapeCodecBenchmark {
+    @Param({"1000", "10000"})
+    public int shapes;
+
+    private final ShapeCodec codec = new ShapeCodec();
+    private ShapeStore store;
+    private ShapeStore decoded;
+    private ByteBuffer buffer;
+
+    @Setup
+    public void setUp() {
+        store = new ShapeStore(shapes);
+        store.addAll(Fixtures.shapes(shapes, 1920, 1080));
+        decoded = new ShapeStore(shapes);
+        buffer = ByteBuffer.allocate(ShapeCodec.maxEncodedSize(shapes));
+        codec.encode(store, buffer);
+    }
+
+    @Benchmark
+    public int encode() {
+        buffer.clear();
+        codec.encode(store, buffer);
+        return buffer.position();
+    }
+
+    @Benchmark
+    public int decode() throws IOException {
+        buffer.rewind();
+        decoded.clear();
+        return codec.decode(buffer, decoded::add);
+    }
+}
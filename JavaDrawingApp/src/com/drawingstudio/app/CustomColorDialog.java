@@ -0,0 +1,163 @@
+package com.drawingstudio.app;
+
+import com.drawingstudio.utils.HsbPalette;
+import java.awt.*;
+import java.awt.event.*;
+import java.awt.image.BufferedImage;
+import javax.swing.*;
+import javax.swing.border.LineBorder;
+
+/**
+ * Modal dialog for choosing a custom colour from an HSB gradient
+ * Kept out of SimpleDrawingApp so its classes load the first time it is
+ * opened rather than while the main window starts up.
+ */
+class CustomColorDialog extends JDialog {
+    private ColorPalettePanel palettePanel;
+    private Color chosen;
+    
+    private CustomColorDialog(Frame owner) {
+        super(owner, "Choose Custom Color", true);
+        setLayout(new BorderLayout());
+        setSize(450, 400);
+        setLocationRelativeTo(owner);
+        
+        // Create color palette panel - demonstrates composition
+        palettePanel = new ColorPalettePanel();
+        add(palettePanel, BorderLayout.CENTER);
+        
+        // Create button panel
+        JPanel buttonPanel = new JPanel(new FlowLayout());
+        JButton okBtn = new JButton("OK");
+        JButton cancelBtn = new JButton("Cancel");
+        
+        // Style dialog buttons
+        Color dialogBtnColor = new Color(52, 152, 219);
+        for (JButton btn : new JButton[]{okBtn, cancelBtn}) {
+            btn.setFont(new Font("Arial", Font.BOLD, 11));
+            btn.setBackground(dialogBtnColor);
+            btn.setForeground(Color.WHITE);
+            btn.setFocusPainted(false);
+            btn.setBorder(new LineBorder(new Color(41, 128, 185), 2));
+            btn.setCursor(new Cursor(Cursor.HAND_CURSOR));
+            btn.setPreferredSize(new Dimension(80, 30));
+        }
+        
+        okBtn.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                chosen = palettePanel.getSelectedColor();
+                dispose();
+            }
+        });
+        
+        cancelBtn.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                dispose();
+            }
+        });
+        
+        buttonPanel.add(okBtn);
+        buttonPanel.add(cancelBtn);
+        add(buttonPanel, BorderLayout.SOUTH);
+    }
+    
+    /**
+     * Show the dialog and wait until it is closed
+     * @return The colour chosen, or null if cancelled
+     */
+    static Color choose(Frame owner) {
+        CustomColorDialog dialog = new CustomColorDialog(owner);
+        dialog.setVisible(true);
+        return dialog.chosen;
+    }
+    
+    /**
+     * Nested class for custom color palette
+     * Demonstrates nested classes and encapsulation
+     */
+    static class ColorPalettePanel extends JPanel {
+        private Color selectedColor = Color.BLACK;
+        private BufferedImage palette;   // cached gradient at the canvas's current size
+        private Canvas paletteCanvas;
+        private Canvas previewCanvas;
+        private JLabel rgbLabel;
+        
+        public ColorPalettePanel() {
+            setLayout(new BorderLayout());
+            
+            // Create gradient palette canvas - the HSB gradient is rendered once per size and copied
+            paletteCanvas = new Canvas() {
+                @Override
+                public void update(Graphics g) {
+                    paint(g);   // the image covers everything, so skip clearing first
+                }
+                
+                @Override
+                public void paint(Graphics g) {
+                    g.drawImage(currentPalette(), 0, 0, null);
+                }
+            };
+            paletteCanvas.setSize(350, 250);
+            
+            // Add mouse listener to palette
+            paletteCanvas.addMouseListener(new MouseAdapter() {
+                public void mouseClicked(MouseEvent e) {
+                    selectColorAt(e.getX(), e.getY());
+                }
+            });
+            
+            paletteCanvas.addMouseMotionListener(new MouseMotionAdapter() {
+                public void mouseDragged(MouseEvent e) {
+                    selectColorAt(e.getX(), e.getY());
+                }
+            });
+            
+            // Create preview panel
+            JPanel previewPanel = new JPanel(new BorderLayout());
+            previewCanvas = new Canvas() {
+                @Override
+                public void paint(Graphics g) {
+                    g.setColor(selectedColor);
+                    g.fillRect(0, 0, getWidth(), getHeight());
+                }
+            };
+            previewCanvas.setSize(80, 80);
+            
+            rgbLabel = new JLabel("RGB: 0, 0, 0");
+            rgbLabel.setFont(new Font("Arial", Font.PLAIN, 11));
+            
+            previewPanel.add(new JLabel("Selected Color:"), BorderLayout.NORTH);
+            previewPanel.add(previewCanvas, BorderLayout.CENTER);
+            previewPanel.add(rgbLabel, BorderLayout.SOUTH);
+            
+            add(paletteCanvas, BorderLayout.CENTER);
+            add(previewPanel, BorderLayout.EAST);
+        }
+        
+        private BufferedImage currentPalette() {
+            int width = Math.max(paletteCanvas.getWidth(), 1);
+            int height = Math.max(paletteCanvas.getHeight(), 1);
+            if (palette == null || palette.getWidth() != width || palette.getHeight() != height) {
+                palette = HsbPalette.get(width, height);
+            }
+            return palette;
+        }
+        
+        private void selectColorAt(int x, int y) {
+            BufferedImage image = currentPalette();
+            
+            if (x >= 0 && x < image.getWidth() && y >= 0 && y < image.getHeight()) {
+                // Sample the gradient as drawn rather than recomputing it
+                selectedColor = new Color(image.getRGB(x, y));
+                
+                previewCanvas.repaint();
+                rgbLabel.setText("RGB: " + selectedColor.getRed() + ", " + 
+                               selectedColor.getGreen() + ", " + selectedColor.getBlue());
+            }
+        }
+        
+        public Color getSelectedColor() {
+            return selectedColor;
+        }
+    }
+}
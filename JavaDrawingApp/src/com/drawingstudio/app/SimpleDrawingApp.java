@@ -1,12 +1,23 @@
 package com.drawingstudio.app;
 
 import com.drawingstudio.canvas.DrawingCanvas;
+import com.drawingstudio.collab.CollabServer;
+import com.drawingstudio.filters.FilterPipeline;
+import com.drawingstudio.layers.BlendMode;
+import com.drawingstudio.layers.Compositor;
+import com.drawingstudio.layers.Layer;
+import com.drawingstudio.layers.LayerStack;
+import com.drawingstudio.manager.AutosaveManager;
+import com.drawingstudio.memory.MemoryGovernor;
+import com.drawingstudio.metrics.EngineMetrics;
 import com.drawingstudio.utils.ColorUtils;
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.image.BufferedImage;
 import javax.swing.*;
 import javax.swing.border.LineBorder;
 import java.io.*;
+import java.lang.management.ManagementFactory;
 
 /**
  * Swing-Based Drawing Application
@@ -14,7 +25,7 @@ import java.io.*;
  * - Encapsulation: Private fields with controlled access
  * - Inheritance: Extends JFrame, implements interfaces
  * - Polymorphism: ActionListener, MouseListener interfaces
- * - Composition: Uses DrawingCanvas, ColorPalettePanel
+ * - Composition: Uses DrawingCanvas, CustomColorDialog
  */
 public class SimpleDrawingApp extends JFrame implements ActionListener, MouseListener, MouseMotionListener {
     private DrawingCanvas canvas;
@@ -22,13 +33,26 @@ public class SimpleDrawingApp extends JFrame implements ActionListener, MouseLis
     private int brushSize = 3;
     private String currentTool = "BRUSH";
     private String currentBrushType = "NORMAL";
+    private static final long AUTOSAVE_INTERVAL_MS = 5000;
+    
+    // Startup timing - main's entry, and whether to quit once the first frame is up
+    private static long mainEntered;
+    private static boolean exitAfterFirstPaint;
     
     // UI Components - demonstrates encapsulation
     private JButton lineBtn, rectBtn, ovalBtn, triangleBtn, diamondBtn;
     private JButton clearBtn, undoBtn, redoBtn, saveBtn, loadBtn, colorPickerBtn, customColorBtn;
-    private Choice colorChoice, brushChoice, toolChoice;
+    private JButton addLayerBtn, deleteLayerBtn, layerUpBtn, layerDownBtn;
+    private JButton applyFilterBtn;
+    private JButton hostBtn, joinBtn, leaveBtn;
+    private Choice colorChoice, brushChoice, toolChoice, toleranceChoice, layerChoice, opacityChoice, blendChoice,
+        filterChoice;
+    private Checkbox layerVisibleBox;
+    private Checkbox hudBox;
     private JPanel toolPanel, canvasPanel;
     private Label statusLabel;
+    private CollabServer collabServer;   // Set while this window hosts a session
+    private File recordingFile;          // --record's file, until recording starts
     
     // Drawing state
     private boolean isDrawing = false;
@@ -36,16 +60,19 @@ public class SimpleDrawingApp extends JFrame implements ActionListener, MouseLis
     
     public SimpleDrawingApp() {
         setTitle("Simple Drawing Studio - AWT Version (Package Structure)");
-        setSize(1000, 700);
+        setSize(1000, 760);
         setLocationRelativeTo(null);
         
         initializeComponents();
         setupLayout();
         setupEventHandlers();
         
-        // Handle window closing
+        // Handle window closing - a clean exit discards the autosave
         addWindowListener(new WindowAdapter() {
             public void windowClosing(WindowEvent e) {
+                leaveCollaboration();
+                canvas.stopRecording();
+                canvas.stopAutosave(true);
                 System.exit(0);
             }
         });
@@ -53,6 +80,70 @@ public class SimpleDrawingApp extends JFrame implements ActionListener, MouseLis
         setVisible(true);
     }
     
+    /**
+     * Called by the canvas once its first frame is on screen
+     * Work the window doesn't need to appear - crash recovery, the JMX beans
+     * and the vector compositor's warm-up - waits until now, so it doesn't
+     * hold up the first frame.
+     */
+    public void firstFramePainted() {
+        System.out.println("First frame painted " + startupTime());
+        if (exitAfterFirstPaint) {
+            System.exit(0);
+        }
+        
+        EventQueue.invokeLater(this::startAutosave);
+        Thread startupTasks = new Thread(() -> {
+            // Engine timings over JMX; collected once enabled there or with -Ddrawingstudio.metrics=true
+            EngineMetrics.register();
+            MemoryGovernor.register();
+            Compositor.prepare();
+        }, "startup-tasks");
+        startupTasks.setDaemon(true);
+        startupTasks.setPriority(Thread.MIN_PRIORITY);
+        startupTasks.start();
+    }
+    
+    /**
+     * Offer to recover work left by a crash, then start journaling edits
+     */
+    private void startAutosave() {
+        AutosaveManager autosave = new AutosaveManager(AutosaveManager.defaultDirectory(), AUTOSAVE_INTERVAL_MS);
+        AutosaveManager.RecoveredDrawing recovered = autosave.recover();
+        boolean restored = false;
+        if (recovered != null) {
+            int choice = JOptionPane.showConfirmDialog(this,
+                "Unsaved work from a previous session was found. Recover it?",
+                "Recover Drawing", JOptionPane.YES_NO_OPTION);
+            if (choice == JOptionPane.YES_OPTION) {
+                canvas.restoreRecovered(recovered);
+                refreshLayerControls();
+                restored = true;
+            }
+        }
+        canvas.startAutosave(autosave);
+        if (recordingFile != null) {
+            startRecording(restored);
+        }
+    }
+    
+    /**
+     * Start the --record recording, once crash recovery is out of the way
+     * Not over a recovered drawing: replays start from a blank one.
+     */
+    private void startRecording(boolean restored) {
+        if (restored) {
+            statusLabel.setText("Not recording: replays start from a blank drawing");
+            return;
+        }
+        try {
+            canvas.startRecording(recordingFile);
+            statusLabel.setText("Recording input to " + recordingFile);
+        } catch (IOException e) {
+            System.out.println("Error starting recording: " + e.getMessage());
+        }
+    }
+    
     private void initializeComponents() {
         canvas = new DrawingCanvas(this);
         
@@ -74,10 +165,28 @@ public class SimpleDrawingApp extends JFrame implements ActionListener, MouseLis
         colorPickerBtn = new JButton("Color Picker");
         customColorBtn = new JButton("Custom Color...");
         
+        // Create layer buttons
+        addLayerBtn = new JButton("Add Layer");
+        deleteLayerBtn = new JButton("Delete Layer");
+        layerUpBtn = new JButton("Layer Up");
+        layerDownBtn = new JButton("Layer Down");
+        
+        // Create filter button
+        applyFilterBtn = new JButton("Apply Filter");
+        
+        // Create collaboration buttons
+        hostBtn = new JButton("Host");
+        joinBtn = new JButton("Join...");
+        leaveBtn = new JButton("Leave");
+        leaveBtn.setEnabled(false);
+        
         // Apply styling to all buttons
         styleShapeButtons();
         styleActionButtons();
         styleColorButtons();
+        styleLayerButtons();
+        styleFilterButtons();
+        styleCollabButtons();
         
         // Create choice components with better color labels
         colorChoice = new Choice();
@@ -103,9 +212,36 @@ public class SimpleDrawingApp extends JFrame implements ActionListener, MouseLis
         toolChoice.add("Brush");
         toolChoice.add("Eraser");
         toolChoice.add("Color Picker");
+        toolChoice.add("Fill");
+        toolChoice.add("Select");
+        
+        toleranceChoice = new Choice();
+        for (int tolerance : new int[] {0, 16, 32, 64, 128}) {
+            toleranceChoice.add(String.valueOf(tolerance));
+        }
+        toleranceChoice.select("32");
+        
+        // Layer controls - the layer list is shown top layer first
+        layerChoice = new Choice();
+        layerVisibleBox = new Checkbox("Visible", true);
+        hudBox = new Checkbox("Performance overlay", false);
+        opacityChoice = new Choice();
+        for (int percent : new int[] {100, 75, 50, 25}) {
+            opacityChoice.add(percent + "%");
+        }
+        blendChoice = new Choice();
+        for (BlendMode mode : BlendMode.values()) {
+            blendChoice.add(mode.getDisplayName());
+        }
+        refreshLayerControls();
+        
+        filterChoice = new Choice();
+        for (String name : FilterPipeline.FILTER_NAMES) {
+            filterChoice.add(name);
+        }
         
         // Create panels
-        toolPanel = new JPanel(new GridLayout(2, 1));
+        toolPanel = new JPanel(new GridLayout(4, 1));
         canvasPanel = new JPanel(new BorderLayout());
         
         // Status label
@@ -157,6 +293,47 @@ public class SimpleDrawingApp extends JFrame implements ActionListener, MouseLis
         }
     }
     
+    private void styleLayerButtons() {
+        JButton[] layerButtons = {addLayerBtn, deleteLayerBtn, layerUpBtn, layerDownBtn};
+        Color layerColor = new Color(155, 89, 182); // Purple
+        
+        for (JButton btn : layerButtons) {
+            btn.setFont(new Font("Arial", Font.BOLD, 12));
+            btn.setBackground(layerColor);
+            btn.setForeground(Color.WHITE);
+            btn.setFocusPainted(false);
+            btn.setBorder(new LineBorder(new Color(142, 68, 173), 2));
+            btn.setCursor(new Cursor(Cursor.HAND_CURSOR));
+            btn.setPreferredSize(new Dimension(110, 35));
+        }
+    }
+    
+    private void styleFilterButtons() {
+        Color filterColor = new Color(243, 156, 18); // Orange
+        
+        applyFilterBtn.setFont(new Font("Arial", Font.BOLD, 12));
+        applyFilterBtn.setBackground(filterColor);
+        applyFilterBtn.setForeground(Color.WHITE);
+        applyFilterBtn.setFocusPainted(false);
+        applyFilterBtn.setBorder(new LineBorder(new Color(230, 126, 34), 2));
+        applyFilterBtn.setCursor(new Cursor(Cursor.HAND_CURSOR));
+        applyFilterBtn.setPreferredSize(new Dimension(110, 35));
+    }
+    
+    private void styleCollabButtons() {
+        Color collabColor = new Color(22, 160, 133); // Teal
+        JButton[] collabButtons = {hostBtn, joinBtn, leaveBtn};
+        for (JButton btn : collabButtons) {
+            btn.setFont(new Font("Arial", Font.BOLD, 12));
+            btn.setBackground(collabColor);
+            btn.setForeground(Color.WHITE);
+            btn.setFocusPainted(false);
+            btn.setBorder(new LineBorder(new Color(19, 141, 117), 2));
+            btn.setCursor(new Cursor(Cursor.HAND_CURSOR));
+            btn.setPreferredSize(new Dimension(90, 35));
+        }
+    }
+    
     private void setupLayout() {
         setLayout(new BorderLayout());
         
@@ -164,6 +341,10 @@ public class SimpleDrawingApp extends JFrame implements ActionListener, MouseLis
         JPanel propertiesPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
         JPanel shapesPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
         JPanel actionPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        JPanel layerPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        JPanel filterPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        JPanel collabPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        JPanel viewPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
         
         // Properties Panel
         propertiesPanel.add(new Label("Color:"));
@@ -174,6 +355,8 @@ public class SimpleDrawingApp extends JFrame implements ActionListener, MouseLis
         propertiesPanel.add(brushChoice);
         propertiesPanel.add(new Label("Tool:"));
         propertiesPanel.add(toolChoice);
+        propertiesPanel.add(new Label("Fill Tolerance:"));
+        propertiesPanel.add(toleranceChoice);
         
         // Shapes Panel
         shapesPanel.add(new Label("Shapes:"));
@@ -191,6 +374,34 @@ public class SimpleDrawingApp extends JFrame implements ActionListener, MouseLis
         actionPanel.add(saveBtn);
         actionPanel.add(loadBtn);
         
+        // Layer Panel
+        layerPanel.add(new Label("Layer:"));
+        layerPanel.add(layerChoice);
+        layerPanel.add(layerVisibleBox);
+        layerPanel.add(new Label("Opacity:"));
+        layerPanel.add(opacityChoice);
+        layerPanel.add(new Label("Blend:"));
+        layerPanel.add(blendChoice);
+        layerPanel.add(addLayerBtn);
+        layerPanel.add(deleteLayerBtn);
+        layerPanel.add(layerUpBtn);
+        layerPanel.add(layerDownBtn);
+        
+        // Filter Panel - the Select tool limits filters to a rectangle
+        filterPanel.add(new Label("Filter:"));
+        filterPanel.add(filterChoice);
+        filterPanel.add(applyFilterBtn);
+        
+        // Collaboration Panel - share edits with other windows over the network
+        collabPanel.add(new Label("Collaborate:"));
+        collabPanel.add(hostBtn);
+        collabPanel.add(joinBtn);
+        collabPanel.add(leaveBtn);
+        
+        // View Panel - diagnostics drawn over the canvas
+        viewPanel.add(new Label("View:"));
+        viewPanel.add(hudBox);
+        
         // Combine panels
         JPanel topRow = new JPanel(new FlowLayout(FlowLayout.LEFT));
         topRow.add(propertiesPanel);
@@ -199,8 +410,18 @@ public class SimpleDrawingApp extends JFrame implements ActionListener, MouseLis
         bottomRow.add(shapesPanel);
         bottomRow.add(actionPanel);
         
+        JPanel layerRow = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        layerRow.add(layerPanel);
+        
+        JPanel filterRow = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        filterRow.add(filterPanel);
+        filterRow.add(collabPanel);
+        filterRow.add(viewPanel);
+        
         toolPanel.add(topRow);
         toolPanel.add(bottomRow);
+        toolPanel.add(layerRow);
+        toolPanel.add(filterRow);
         
         // Add canvas to canvas panel
         canvasPanel.add(canvas, BorderLayout.CENTER);
@@ -225,6 +446,14 @@ public class SimpleDrawingApp extends JFrame implements ActionListener, MouseLis
         loadBtn.addActionListener(this);
         colorPickerBtn.addActionListener(this);
         customColorBtn.addActionListener(this);
+        addLayerBtn.addActionListener(this);
+        deleteLayerBtn.addActionListener(this);
+        layerUpBtn.addActionListener(this);
+        layerDownBtn.addActionListener(this);
+        applyFilterBtn.addActionListener(this);
+        hostBtn.addActionListener(this);
+        joinBtn.addActionListener(this);
+        leaveBtn.addActionListener(this);
         
         // Add item listeners for choices - demonstrates event handling
         colorChoice.addItemListener(new ItemListener() {
@@ -248,6 +477,45 @@ public class SimpleDrawingApp extends JFrame implements ActionListener, MouseLis
             }
         });
         
+        toleranceChoice.addItemListener(new ItemListener() {
+            public void itemStateChanged(ItemEvent e) {
+                canvas.setFillTolerance(Integer.parseInt(toleranceChoice.getSelectedItem()));
+            }
+        });
+        
+        layerChoice.addItemListener(new ItemListener() {
+            public void itemStateChanged(ItemEvent e) {
+                int top = canvas.getLayers().size() - 1;
+                canvas.selectLayer(top - layerChoice.getSelectedIndex());
+                refreshLayerControls();
+            }
+        });
+        
+        layerVisibleBox.addItemListener(new ItemListener() {
+            public void itemStateChanged(ItemEvent e) {
+                canvas.setLayerVisible(layerVisibleBox.getState());
+            }
+        });
+        
+        hudBox.addItemListener(new ItemListener() {
+            public void itemStateChanged(ItemEvent e) {
+                canvas.setHudVisible(hudBox.getState());
+            }
+        });
+        
+        opacityChoice.addItemListener(new ItemListener() {
+            public void itemStateChanged(ItemEvent e) {
+                String percent = opacityChoice.getSelectedItem().replace("%", "");
+                canvas.setLayerOpacity(Integer.parseInt(percent) / 100f);
+            }
+        });
+        
+        blendChoice.addItemListener(new ItemListener() {
+            public void itemStateChanged(ItemEvent e) {
+                canvas.setLayerBlendMode(BlendMode.fromDisplayName(blendChoice.getSelectedItem()));
+            }
+        });
+        
         toolChoice.addItemListener(new ItemListener() {
             public void itemStateChanged(ItemEvent e) {
                 String selectedTool = toolChoice.getSelectedItem();
@@ -257,6 +525,10 @@ public class SimpleDrawingApp extends JFrame implements ActionListener, MouseLis
                     currentTool = "ERASER";
                 } else if (selectedTool.equals("Color Picker")) {
                     currentTool = "COLOR_PICKER";
+                } else if (selectedTool.equals("Fill")) {
+                    currentTool = "FILL";
+                } else if (selectedTool.equals("Select")) {
+                    currentTool = "SELECT";
                 }
                 canvas.setCurrentTool(currentTool);
                 updateStatusLabel();
@@ -328,9 +600,56 @@ public class SimpleDrawingApp extends JFrame implements ActionListener, MouseLis
             case "Load":
                 loadDrawing();
                 break;
+            case "Apply Filter":
+                canvas.applyFilter(FilterPipeline.createFilter(filterChoice.getSelectedItem()));
+                break;
+            case "Host":
+                hostCollaboration();
+                break;
+            case "Join...":
+                joinCollaboration();
+                break;
+            case "Leave":
+                leaveCollaboration();
+                statusLabel.setText("Left the shared drawing");
+                break;
+            case "Add Layer":
+                canvas.addLayer();
+                refreshLayerControls();
+                break;
+            case "Delete Layer":
+                canvas.deleteLayer();
+                refreshLayerControls();
+                break;
+            case "Layer Up":
+                canvas.moveLayer(true);
+                refreshLayerControls();
+                break;
+            case "Layer Down":
+                canvas.moveLayer(false);
+                refreshLayerControls();
+                break;
         }
     }
     
+    /**
+     * Rebuild the layer list and show the active layer's settings
+     */
+    private void refreshLayerControls() {
+        LayerStack layers = canvas.getLayers();
+        layerChoice.removeAll();
+        for (int i = layers.size() - 1; i >= 0; i--) {
+            layerChoice.add(layers.get(i).getName());
+        }
+        layerChoice.select(layers.size() - 1 - layers.getActiveIndex());
+        
+        Layer active = layers.getActive();
+        layerVisibleBox.setState(active.isVisible());
+        int percent = Math.round(active.getOpacity() * 4) * 25;
+        opacityChoice.select(Math.max(25, percent) + "%");
+        blendChoice.select(active.getBlendMode().getDisplayName());
+    }
+    
     // Mouse event implementations - delegates to canvas
     @Override
     public void mousePressed(MouseEvent e) {
@@ -400,52 +719,103 @@ public class SimpleDrawingApp extends JFrame implements ActionListener, MouseLis
     }
     
     private void openCustomColorDialog() {
-        JDialog colorDialog = new JDialog(this, "Choose Custom Color", true);
-        colorDialog.setLayout(new BorderLayout());
-        colorDialog.setSize(450, 400);
-        colorDialog.setLocationRelativeTo(this);
-        
-        // Create color palette panel - demonstrates composition
-        ColorPalettePanel palettePanel = new ColorPalettePanel();
-        colorDialog.add(palettePanel, BorderLayout.CENTER);
-        
-        // Create button panel
-        JPanel buttonPanel = new JPanel(new FlowLayout());
-        JButton okBtn = new JButton("OK");
-        JButton cancelBtn = new JButton("Cancel");
-        
-        // Style dialog buttons
-        Color dialogBtnColor = new Color(52, 152, 219);
-        for (JButton btn : new JButton[]{okBtn, cancelBtn}) {
-            btn.setFont(new Font("Arial", Font.BOLD, 11));
-            btn.setBackground(dialogBtnColor);
-            btn.setForeground(Color.WHITE);
-            btn.setFocusPainted(false);
-            btn.setBorder(new LineBorder(new Color(41, 128, 185), 2));
-            btn.setCursor(new Cursor(Cursor.HAND_CURSOR));
-            btn.setPreferredSize(new Dimension(80, 30));
+        // Built on first use, so the dialog's classes stay out of startup
+        Color chosen = CustomColorDialog.choose(this);
+        if (chosen != null) {
+            currentColor = chosen;
+            canvas.setCurrentColor(currentColor);
+            updateStatusLabel();
         }
-        
-        okBtn.addActionListener(new ActionListener() {
-            public void actionPerformed(ActionEvent e) {
-                currentColor = palettePanel.getSelectedColor();
-                canvas.setCurrentColor(currentColor);
-                updateStatusLabel();
-                colorDialog.dispose();
-            }
-        });
-        
-        cancelBtn.addActionListener(new ActionListener() {
-            public void actionPerformed(ActionEvent e) {
-                colorDialog.dispose();
+    }
+    
+    /**
+     * Serve a shared drawing from this window and join it
+     */
+    private void hostCollaboration() {
+        leaveCollaboration();
+        try {
+            collabServer = new CollabServer(CollabServer.DEFAULT_PORT);
+            canvas.startCollaboration("localhost", collabServer.getPort());
+            collaborationStarted("Hosting a shared drawing on port " + collabServer.getPort());
+        } catch (IOException e) {
+            leaveCollaboration();
+            System.out.println("Error hosting: " + e.getMessage());
+            statusLabel.setText("Could not host: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Join a drawing shared by another window, given as host or host:port
+     */
+    private void joinCollaboration() {
+        String address = JOptionPane.showInputDialog(this, "Server (host or host:port):",
+            "localhost:" + CollabServer.DEFAULT_PORT);
+        if (address == null || address.trim().isEmpty()) {
+            return;
+        }
+        address = address.trim();
+        String host = address;
+        int port = CollabServer.DEFAULT_PORT;
+        int colon = address.lastIndexOf(':');
+        if (colon > 0) {
+            host = address.substring(0, colon);
+            try {
+                port = Integer.parseInt(address.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                statusLabel.setText("Invalid port: " + address.substring(colon + 1));
+                return;
             }
-        });
-        
-        buttonPanel.add(okBtn);
-        buttonPanel.add(cancelBtn);
-        colorDialog.add(buttonPanel, BorderLayout.SOUTH);
-        
-        colorDialog.setVisible(true);
+        }
+        leaveCollaboration();
+        try {
+            canvas.startCollaboration(host, port);
+            collaborationStarted("Joined the shared drawing at " + host + ":" + port);
+        } catch (IOException e) {
+            System.out.println("Error joining: " + e.getMessage());
+            statusLabel.setText("Could not join " + address + ": " + e.getMessage());
+        }
+    }
+    
+    private void collaborationStarted(String status) {
+        hostBtn.setEnabled(false);
+        joinBtn.setEnabled(false);
+        leaveBtn.setEnabled(true);
+        statusLabel.setText(status);
+    }
+    
+    private void leaveCollaboration() {
+        canvas.stopCollaboration();
+        if (collabServer != null) {
+            collabServer.close();
+            collabServer = null;
+        }
+        hostBtn.setEnabled(true);
+        joinBtn.setEnabled(true);
+        leaveBtn.setEnabled(false);
+    }
+    
+    /**
+     * Public method called by canvas when the connection to the server is lost
+     */
+    public void collaborationEnded(String reason) {
+        leaveCollaboration();
+        statusLabel.setText("Collaboration ended" + (reason != null ? ": " + reason : ""));
+    }
+    
+    /**
+     * Called by the canvas when an image it was loading couldn't be read
+     * @param partly Whether some of it had already replaced the layer
+     */
+    public void loadFailed(File file, String message, boolean partly) {
+        statusLabel.setText("Could not load " + file.getName() + (message != null ? ": " + message : "")
+            + (partly ? " - undo restores the layer" : ""));
+    }
+    
+    /**
+     * Called by the canvas when a change it can't record ends the recording
+     */
+    public void recordingEnded(String change) {
+        statusLabel.setText("Recording stopped: " + change + " can't be replayed");
     }
     
     private void saveDrawing() {
@@ -475,97 +845,59 @@ public class SimpleDrawingApp extends JFrame implements ActionListener, MouseLis
     }
     
     public static void main(String[] args) {
-        new SimpleDrawingApp();
-    }
-    
-    /**
-     * Inner class for custom color palette
-     * Demonstrates nested classes and encapsulation
-     */
-    class ColorPalettePanel extends JPanel {
-        private Color selectedColor = Color.BLACK;
-        private Canvas paletteCanvas;
-        private Canvas previewCanvas;
-        private JLabel rgbLabel;
-        
-        public ColorPalettePanel() {
-            setLayout(new BorderLayout());
-            
-            // Create gradient palette canvas
-            paletteCanvas = new Canvas() {
-                @Override
-                public void paint(Graphics g) {
-                    int width = getWidth();
-                    int height = getHeight();
-                    
-                    // Draw HSB gradient
-                    for (int y = 0; y < height; y++) {
-                        for (int x = 0; x < width; x++) {
-                            float hue = (float) x / width;
-                            float saturation = 1.0f;
-                            float brightness = 1.0f - (float) y / height;
-                            Color c = Color.getHSBColor(hue, saturation, brightness);
-                            g.setColor(c);
-                            g.fillRect(x, y, 1, 1);
-                        }
-                    }
-                }
-            };
-            paletteCanvas.setSize(350, 250);
-            
-            // Add mouse listener to palette
-            paletteCanvas.addMouseListener(new MouseAdapter() {
-                public void mouseClicked(MouseEvent e) {
-                    selectColorAt(e.getX(), e.getY());
-                }
-            });
-            
-            paletteCanvas.addMouseMotionListener(new MouseMotionAdapter() {
-                public void mouseDragged(MouseEvent e) {
-                    selectColorAt(e.getX(), e.getY());
-                }
-            });
-            
-            // Create preview panel
-            JPanel previewPanel = new JPanel(new BorderLayout());
-            previewCanvas = new Canvas() {
-                @Override
-                public void paint(Graphics g) {
-                    g.setColor(selectedColor);
-                    g.fillRect(0, 0, getWidth(), getHeight());
-                }
-            };
-            previewCanvas.setSize(80, 80);
-            
-            rgbLabel = new JLabel("RGB: 0, 0, 0");
-            rgbLabel.setFont(new Font("Arial", Font.PLAIN, 11));
-            
-            previewPanel.add(new JLabel("Selected Color:"), BorderLayout.NORTH);
-            previewPanel.add(previewCanvas, BorderLayout.CENTER);
-            previewPanel.add(rgbLabel, BorderLayout.SOUTH);
-            
-            add(paletteCanvas, BorderLayout.CENTER);
-            add(previewPanel, BorderLayout.EAST);
+        mainEntered = System.nanoTime();
+        File recording = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--record") && i + 1 < args.length) {
+                // --record session.dsr captures the input for InputReplayer
+                recording = new File(args[++i]);
+            } else if (args[i].equals("--exit-after-first-paint")) {
+                // Times startup, and is what the CDS archive is trained with
+                exitAfterFirstPaint = true;
+            } else {
+                System.out.println("Unknown option: " + args[i]);
+                return;
+            }
         }
         
-        private void selectColorAt(int x, int y) {
-            int width = paletteCanvas.getWidth();
-            int height = paletteCanvas.getHeight();
-            
-            if (x >= 0 && x < width && y >= 0 && y < height) {
-                float hue = (float) x / width;
-                float saturation = 1.0f;
-                float brightness = 1.0f - (float) y / height;
-                selectedColor = Color.getHSBColor(hue, saturation, brightness);
-                
-                previewCanvas.repaint();
-                rgbLabel.setText("RGB: " + selectedColor.getRed() + ", " + 
-                               selectedColor.getGreen() + ", " + selectedColor.getBlue());
+        if (GraphicsEnvironment.isHeadless()) {
+            if (exitAfterFirstPaint) {
+                paintHeadless();
+            } else {
+                System.out.println("Simple Drawing Studio needs a display");
             }
+            return;
         }
         
-        public Color getSelectedColor() {
-            return selectedColor;
-        }
+        File session = recording;
+        SwingUtilities.invokeLater(() -> {
+            SimpleDrawingApp app = new SimpleDrawingApp();
+            // Started after crash recovery, in startAutosave
+            app.recordingFile = session;
+        });
+    }
+    
+    /**
+     * Without a display, build the canvas and paint one frame offscreen
+     * Runs the same engine classes the window's first frame does, so a CDS
+     * archive can be trained on a build machine with no screen.
+     */
+    private static void paintHeadless() {
+        DrawingCanvas canvas = new DrawingCanvas(null);
+        LayerStack layers = canvas.getLayers();
+        BufferedImage frame = new BufferedImage(layers.getWidth(), layers.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = frame.createGraphics();
+        canvas.paint(g);
+        g.dispose();
+        System.out.println("First frame painted headless " + startupTime());
+    }
+    
+    /**
+     * Time since the JVM was launched and since main was entered, for the startup report
+     */
+    private static String startupTime() {
+        long sinceMain = (System.nanoTime() - mainEntered) / 1_000_000;
+        long sinceLaunch = ManagementFactory.getRuntimeMXBean().getUptime();
+        return sinceLaunch + " ms after launch, " + sinceMain + " ms after main";
     }
 }
@@ -1,6 +1,7 @@
 package com.drawingstudio.brush;
 
 import java.awt.*;
+import java.awt.image.BufferedImage;
 
 /**
  * Interface for different brush types
@@ -21,4 +22,28 @@ public interface BrushType {
      * Get the name of this brush type
      */
     String getBrushName();
+    
+    /**
+     * How the brush colour is combined with the layer when the stroke is
+     * drawn with Graphics2D
+     */
+    default Composite getBrushComposite() {
+        return AlphaComposite.SrcOver;
+    }
+    
+    /**
+     * Start a stroke painted by the dab engine in this brush's colour
+     * @return false if the engine cannot paint into the image - stroke with
+     *         getBrushStroke instead
+     */
+    default boolean beginStroke(DabEngine engine, BufferedImage image, Color selectedColor, int size) {
+        return engine.beginStroke(image, getBrushColor(selectedColor).getRGB(), size);
+    }
+    
+    /**
+     * Paint the next segment of the stroke
+     */
+    default void strokeSegment(DabEngine engine, Point from, Point to) {
+        engine.segment(from.x, from.y, to.x, to.y);
+    }
 }
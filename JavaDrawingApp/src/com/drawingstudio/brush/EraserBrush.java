@@ -1,16 +1,28 @@
 package com.drawingstudio.brush;
 
 import java.awt.*;
+import java.awt.image.BufferedImage;
 
 /**
  * Eraser brush implementation
- * Demonstrates polymorphism - eraser is just a brush with white color
+ * Demonstrates polymorphism - the eraser is a brush that takes alpha away
+ * from the layer instead of adding colour, so lower layers show through
  */
 public class EraserBrush implements BrushType {
     
     @Override
     public Color getBrushColor(Color selectedColor) {
-        return Color.WHITE;  // Eraser always uses white
+        return Color.WHITE;  // Only its alpha matters - see getBrushComposite
+    }
+    
+    @Override
+    public Composite getBrushComposite() {
+        return AlphaComposite.DstOut;
+    }
+    
+    @Override
+    public boolean beginStroke(DabEngine engine, BufferedImage image, Color selectedColor, int size) {
+        return engine.beginErase(image, size);
     }
     
     @Override
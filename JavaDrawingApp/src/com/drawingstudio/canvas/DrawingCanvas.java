@@ -1,12 +1,20 @@
 package com.drawingstudio.canvas;
 
 import com.drawingstudio.app.SimpleDrawingApp;
+import com.drawingstudio.brush.*;
+import com.drawingstudio.collab.*;
+import com.drawingstudio.filters.*;
+import com.drawingstudio.layers.*;
 import com.drawingstudio.shapes.*;
 import com.drawingstudio.manager.*;
+import com.drawingstudio.metrics.EngineMetrics;
+import com.drawingstudio.metrics.FrameEvent;
+import com.drawingstudio.replay.InputRecorder;
 import com.drawingstudio.utils.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.*;
 import java.util.*;
 import java.util.List;
@@ -17,12 +25,14 @@ import java.util.List;
  * Demonstrates composition, encapsulation, and delegation patterns
  */
 public class DrawingCanvas extends Canvas {
-    private BufferedImage drawingImage;
+    private LayerStack layers;
     private BufferedImage offscreenBuffer; // For double buffering
-    private Graphics2D g2d;
+    private Graphics2D g2d;                // Brush strokes the dab engine can't paint
     private Color currentColor = Color.BLACK;
     private int brushSize = 3;
     private String currentTool = "BRUSH";
+    private int fillTolerance = 32;
+    private Rectangle selection;           // Where filters apply; null for the whole layer
     private SimpleDrawingApp parentApp;
     
     // Drawing state
@@ -32,19 +42,40 @@ public class DrawingCanvas extends Canvas {
     
     // Managers - demonstrates composition
     private HistoryManager historyManager;
+    private AutosaveManager autosaveManager;
+    private ProgressiveImageLoader activeLoader;
     
     // Shape preview
     private boolean showPreview = false;
     
-    // Shape storage
-    private List<ShapeBase> shapes;
+    // Shapes live in each layer's ShapeStore; repeated ones are blitted from sprites
+    private final SpriteCache spriteCache = new SpriteCache(SpriteCache.DEFAULT_MAX_BYTES);
+    
+    // Brushes - strokes are stamped straight into the active layer when possible
+    private final BrushType normalBrush = new NormalBrush();
+    private final BrushType eraserBrush = new EraserBrush();
+    private final DabEngine dabEngine = new DabEngine();
+    private BrushType activeBrush;
+    private boolean dabStroke;
+    
+    // Collaboration - local edits are shared as they happen, remote ones repaint only what they touch
+    private CollabSession collab;
+    private Rectangle remoteDirty;
+    
+    // Input recording for replay - null unless a session is being recorded
+    private InputRecorder recorder;
+    
+    // Performance overlay - null while hidden
+    private PerformanceHud hud;
+    
+    // Whether a frame has reached the screen yet; the first one lets startup work begin
+    private boolean shownFirstFrame;
     
     public DrawingCanvas(SimpleDrawingApp parent) {
         this.parentApp = parent;
         setBackground(Color.WHITE);
         
         historyManager = new HistoryManager();
-        shapes = new ArrayList<>();
         
         // Initialize drawing surface
         initializeDrawingSurface();
@@ -54,16 +85,9 @@ public class DrawingCanvas extends Canvas {
         int width = 800;
         int height = 600;
         
-        drawingImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        layers = new LayerStack(width, height);
         offscreenBuffer = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
         
-        g2d = drawingImage.createGraphics();
-        g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-        g2d.setColor(Color.WHITE);
-        g2d.fillRect(0, 0, width, height);
-        g2d.setColor(currentColor);
-        g2d.setStroke(new BasicStroke(brushSize, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
-        
         setSize(width, height);
     }
     
@@ -74,26 +98,52 @@ public class DrawingCanvas extends Canvas {
 
     @Override
     public void paint(Graphics g) {
-        // Use double buffering to eliminate flicker
-        Graphics2D bufferG2d = offscreenBuffer.createGraphics();
-        bufferG2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        FrameEvent event = new FrameEvent();
+        event.begin();
+        long metricsStart = EngineMetrics.startTimer();
+        long frameStart = hud != null ? System.nanoTime() : 0;
         
-        // Draw the buffered image to offscreen buffer
-        bufferG2d.drawImage(drawingImage, 0, 0, null);
-        
-        // Draw all shapes on top - demonstrates polymorphism
-        for (ShapeBase shape : shapes) {
-            shape.draw(bufferG2d);
-        }
+        // Use double buffering to eliminate flicker
+        // Cached composites around the active layer, whose repeated shapes come from sprites;
+        // a partial repaint (such as a remote edit) only recomposites what it covers
+        Rectangle painted = layers.paint(offscreenBuffer, spriteCache, g.getClipBounds());
         
         // Draw shape preview
         if (showPreview && isDrawing && startPoint != null && endPoint != null) {
+            Graphics2D bufferG2d = offscreenBuffer.createGraphics();
+            bufferG2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
             drawShapePreview(bufferG2d);
+            bufferG2d.dispose();
+        }
+        
+        if (selection != null) {
+            drawSelection(offscreenBuffer.createGraphics());
         }
         
-        // Dispose buffer graphics and draw final result to screen
-        bufferG2d.dispose();
+        // Draw final result to screen
         g.drawImage(offscreenBuffer, 0, 0, null);
+        
+        // Overlay goes on the screen, not the buffer, so partial repaints can't stack it
+        if (hud != null) {
+            hud.frameFinished(System.nanoTime() - frameStart, painted, layers.getWidth(), layers.getHeight());
+            hud.paint(g, layers, historyManager);
+        }
+        
+        EngineMetrics.paintFinished(metricsStart);
+        if (event.shouldCommit()) {
+            event.areaWidth = painted.width;
+            event.areaHeight = painted.height;
+            event.layers = layers.size();
+            event.shapes = activeLayer().getShapes().size();
+            event.commit();
+        }
+        
+        if (!shownFirstFrame) {
+            shownFirstFrame = true;
+            if (parentApp != null) {
+                parentApp.firstFramePainted();
+            }
+        }
     }
     
     private void drawShapePreview(Graphics2D g2d) {
@@ -135,27 +185,77 @@ public class DrawingCanvas extends Canvas {
         }
     }
     
+    /**
+     * Dashed outline of the selection, black over white so it shows on any colour
+     */
+    private void drawSelection(Graphics2D g) {
+        g.setColor(Color.WHITE);
+        g.drawRect(selection.x, selection.y, selection.width - 1, selection.height - 1);
+        g.setColor(Color.BLACK);
+        g.setStroke(new BasicStroke(1, BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER, 10, new float[] {4, 4}, 0));
+        g.drawRect(selection.x, selection.y, selection.width - 1, selection.height - 1);
+        g.dispose();
+    }
+    
     @Override
     public Dimension getPreferredSize() {
         return new Dimension(800, 600);
     }
     
+    /**
+     * Sprite cache used when painting shapes (size cap and hit statistics)
+     */
+    public SpriteCache getSpriteCache() {
+        return spriteCache;
+    }
+    
+    /**
+     * The document's layers, bottom first
+     */
+    public LayerStack getLayers() {
+        return layers;
+    }
+    
+    private Layer activeLayer() {
+        return layers.getActive();
+    }
+    
     // Mouse event handlers - public methods called by event handlers
     public void handleMousePressed(MouseEvent e) {
+        if (recorder != null) {
+            recorder.mouse(e);
+        }
         isDrawing = true;
         startPoint = e.getPoint();
         lastPoint = e.getPoint();
         
+        if (currentTool.equals("FILL")) {
+            isDrawing = false;
+            floodFill(startPoint);
+            return;
+        }
+        
+        if (currentTool.equals("SELECT")) {
+            selection = null;
+            repaint();
+            return;
+        }
+        
         // Handle eraser for shapes
         if (currentTool.equals("ERASER")) {
             // Check if clicking on a shape to delete it
-            for (int i = shapes.size() - 1; i >= 0; i--) {
-                if (shapes.get(i).contains(startPoint)) {
-                    saveStateForUndo();
-                    shapes.remove(i);
-                    repaint();
-                    return;
+            int hit = activeLayer().getShapes().hitTest(startPoint.x, startPoint.y);
+            if (hit >= 0) {
+                saveStateForUndo();
+                ShapeBase removed = activeLayer().getShapes().remove(hit);
+                if (autosaveManager != null) {
+                    autosaveManager.shapeRemoved(layers.getActiveIndex(), hit);
                 }
+                if (collab != null) {
+                    collab.shapeRemoved(layers.getActiveIndex(), hit, removed);
+                }
+                repaint();
+                return;
             }
             // If not clicking on shape, use brush eraser
             saveStateForUndo();
@@ -167,6 +267,9 @@ public class DrawingCanvas extends Canvas {
     }
     
     public void handleMouseDragged(MouseEvent e) {
+        if (recorder != null) {
+            recorder.mouse(e);
+        }
         if (!isDrawing) return;
         
         Point currentPoint = e.getPoint();
@@ -175,6 +278,9 @@ public class DrawingCanvas extends Canvas {
             drawBrushStroke(lastPoint, currentPoint);
             lastPoint = currentPoint;
             repaint();
+        } else if (currentTool.equals("SELECT")) {
+            selection = selectionBetween(startPoint, currentPoint);
+            repaint();
         } else if (ShapeUtils.isShapeTool(currentTool)) {
             endPoint = currentPoint;
             updateShapePreview();
@@ -182,17 +288,33 @@ public class DrawingCanvas extends Canvas {
     }
     
     public void handleMouseReleased(MouseEvent e) {
+        if (recorder != null) {
+            recorder.mouse(e);
+        }
         if (!isDrawing) return;
         
         isDrawing = false;
         endPoint = e.getPoint();
+        endBrushStroke();
+        
+        if (currentTool.equals("SELECT")) {
+            selection = selectionBetween(startPoint, endPoint);
+            repaint();
+            return;
+        }
         
         // Create shape using factory method - demonstrates factory pattern
         if (ShapeUtils.isShapeTool(currentTool)) {
             saveStateForUndo();
             ShapeBase newShape = ShapeUtils.createShape(currentTool, startPoint, endPoint, currentColor, brushSize);
             if (newShape != null) {
-                shapes.add(newShape);
+                activeLayer().getShapes().add(newShape);
+                if (autosaveManager != null) {
+                    autosaveManager.shapeAdded(layers.getActiveIndex(), newShape);
+                }
+                if (collab != null) {
+                    collab.shapeAdded(layers.getActiveIndex(), newShape);
+                }
             }
         }
         
@@ -201,46 +323,171 @@ public class DrawingCanvas extends Canvas {
     }
     
     public void handleMouseClicked(MouseEvent e) {
+        if (recorder != null) {
+            recorder.mouse(e);
+        }
         if (currentTool.equals("COLOR_PICKER")) {
             Point p = e.getPoint();
-            if (PointUtils.isWithinBounds(p, drawingImage.getWidth(), drawingImage.getHeight())) {
-                // Get color from the composite view (image + shapes)
+            if (PointUtils.isWithinBounds(p, layers.getWidth(), layers.getHeight())) {
+                // Get color from the composite view (all layers)
                 BufferedImage composite = createCompositeImage();
                 int rgb = composite.getRGB(p.x, p.y);
+                SurfacePool.shared().release(composite);
                 Color pickedColor = new Color(rgb);
                 currentColor = pickedColor;
-                parentApp.setPickedColor(pickedColor);
+                if (parentApp != null) {
+                    parentApp.setPickedColor(pickedColor);
+                }
                 repaint();
             }
         }
     }
     
     public void handleMouseMoved(MouseEvent e) {
+        if (recorder != null) {
+            recorder.mouse(e);
+        }
         // Reserved for future use (e.g., color preview)
     }
     
     // Drawing methods
     private void setupBrushGraphics() {
-        g2d.setColor(currentTool.equals("ERASER") ? Color.WHITE : currentColor);
-        g2d.setStroke(new BasicStroke(brushSize, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+        activeBrush = currentTool.equals("ERASER") ? eraserBrush : normalBrush;
+        BufferedImage image = activeLayer().getImage();
+        dabStroke = activeBrush.beginStroke(dabEngine, image, currentColor, brushSize);
+        if (!dabStroke) {
+            g2d = image.createGraphics();
+            g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g2d.setComposite(activeBrush.getBrushComposite());
+            g2d.setColor(activeBrush.getBrushColor(currentColor));
+            g2d.setStroke(activeBrush.getBrushStroke(brushSize));
+        }
+        if (collab != null) {
+            collab.strokeBegun(layers.getActiveIndex(), activeBrush == eraserBrush, currentColor, brushSize);
+        }
+    }
+    
+    private void endBrushStroke() {
+        if (dabStroke) {
+            dabEngine.endStroke();
+            dabStroke = false;
+        }
+        if (g2d != null) {
+            g2d.dispose();
+            g2d = null;
+        }
+        if (collab != null) {
+            collab.strokeEnded();
+        }
     }
     
     private void drawBrushStroke(Point start, Point end) {
-        g2d.drawLine(start.x, start.y, end.x, end.y);
+        if (dabStroke) {
+            activeBrush.strokeSegment(dabEngine, start, end);
+        } else if (g2d != null) {
+            g2d.drawLine(start.x, start.y, end.x, end.y);
+        }
+        if (collab != null) {
+            collab.strokeSegment(start, end);
+        }
+        if (autosaveManager != null) {
+            int pad = brushSize / 2 + 2;
+            autosaveManager.markDirty(layers.getActiveIndex(),
+                Math.min(start.x, end.x) - pad, Math.min(start.y, end.y) - pad,
+                Math.abs(end.x - start.x) + 2 * pad, Math.abs(end.y - start.y) + 2 * pad);
+        }
+    }
+    
+    /**
+     * Fill the area around p that looks the same colour on screen (all
+     * layers together) by writing the current colour into the active layer
+     */
+    private void floodFill(Point p) {
+        if (!PointUtils.isWithinBounds(p, layers.getWidth(), layers.getHeight())) {
+            return;
+        }
+        saveStateForUndo();
+        BufferedImage image = createCompositeImage();
+        int[] composite = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        Rectangle filled = FloodFill.fill(composite, activeLayer().getPixels(), layers.getWidth(), layers.getHeight(),
+            p.x, p.y, fillTolerance, currentColor.getRGB());
+        SurfacePool.shared().release(image);
+        if (filled != null && autosaveManager != null) {
+            autosaveManager.markDirty(layers.getActiveIndex(), filled.x, filled.y, filled.width, filled.height);
+        }
+        repaint();
+    }
+    
+    /**
+     * Rectangle spanned by two corners, clipped to the canvas, or null if it
+     * is too small to be a selection (a click clears the selection)
+     */
+    private Rectangle selectionBetween(Point a, Point b) {
+        Rectangle area = new Rectangle(Math.min(a.x, b.x), Math.min(a.y, b.y),
+            Math.abs(b.x - a.x) + 1, Math.abs(b.y - a.y) + 1);
+        area = area.intersection(new Rectangle(0, 0, layers.getWidth(), layers.getHeight()));
+        return area.width < 2 || area.height < 2 ? null : area;
+    }
+    
+    /**
+     * Run a filter over the selection (or the whole active layer) as one undoable step
+     * Filters work on pixels, so the layer's shapes are drawn into its raster first.
+     */
+    public void applyFilter(Filter filter) {
+        if (recorder != null) {
+            recorder.filterApplied(filter.getName());
+        }
+        finishLayerEdit();
+        saveStateForUndo();
+        Layer layer = activeLayer();
+        boolean flattened = !layer.getShapes().isEmpty();
+        if (flattened) {
+            Graphics2D g = layer.getImage().createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.setClip(0, 0, layers.getWidth(), layers.getHeight());
+            layer.getShapes().drawAll(g);
+            g.dispose();
+            layer.getShapes().clear();
+            if (collab != null) {
+                collab.layerReplaced(layers.getActiveIndex());
+            }
+        }
+        
+        Rectangle filtered = FilterPipeline.apply(layer.getPixels(), layers.getWidth(), layers.getHeight(),
+            selection, filter);
+        
+        if (autosaveManager != null) {
+            if (flattened) {
+                autosaveManager.shapesCleared(layers.getActiveIndex());
+                filtered = new Rectangle(0, 0, layers.getWidth(), layers.getHeight());
+            }
+            if (filtered != null) {
+                autosaveManager.markDirty(layers.getActiveIndex(), filtered.x, filtered.y,
+                    filtered.width, filtered.height);
+            }
+        }
+        repaint();
     }
     
-    private BufferedImage createCompositeImage() {
-        BufferedImage composite = new BufferedImage(
-            drawingImage.getWidth(), 
-            drawingImage.getHeight(), 
+    /**
+     * Current selection, or null when filters apply to the whole layer
+     */
+    public Rectangle getSelection() {
+        return selection == null ? null : new Rectangle(selection);
+    }
+    
+    /**
+     * Flattened copy of the drawing as it is on screen, without preview or selection
+     * Leased from SurfacePool.shared(); release it there when done.
+     */
+    public BufferedImage createCompositeImage() {
+        BufferedImage composite = SurfacePool.shared().lease(
+            layers.getWidth(), 
+            layers.getHeight(), 
             BufferedImage.TYPE_INT_RGB
         );
-        Graphics2D g = composite.createGraphics();
-        g.drawImage(drawingImage, 0, 0, null);
-        for (ShapeBase shape : shapes) {
-            shape.draw(g);
-        }
-        g.dispose();
+        // Same rendering as paint(), so picking and filling see what is on screen
+        layers.paint(composite, null);
         return composite;
     }
     
@@ -254,90 +501,481 @@ public class DrawingCanvas extends Canvas {
         showPreview = false;
     }
     
-    // Undo/Redo functionality - delegates to HistoryManager
+    // Undo/Redo functionality - delegates to HistoryManager, one layer per step
     private void saveStateForUndo() {
-        historyManager.saveState(drawingImage, shapes);
+        cancelLoading();
+        historyManager.saveState(activeLayer());
     }
     
     public void undo() {
-        HistoryManager.CanvasState lastState = historyManager.undo(drawingImage, shapes);
+        if (recorder != null) {
+            recorder.undo();
+        }
+        finishLayerEdit();
+        HistoryManager.CanvasState lastState = historyManager.undo(layers);
         if (lastState != null) {
             restoreState(lastState);
         }
     }
     
     public void redo() {
-        HistoryManager.CanvasState nextState = historyManager.redo(drawingImage, shapes);
+        if (recorder != null) {
+            recorder.redo();
+        }
+        finishLayerEdit();
+        HistoryManager.CanvasState nextState = historyManager.redo(layers);
         if (nextState != null) {
             restoreState(nextState);
         }
     }
     
     private void restoreState(HistoryManager.CanvasState state) {
-        g2d.dispose();
-        drawingImage = new BufferedImage(
-            state.getImage().getWidth(), 
-            state.getImage().getHeight(), 
-            BufferedImage.TYPE_INT_RGB
-        );
-        g2d = drawingImage.createGraphics();
-        g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-        g2d.drawImage(state.getImage(), 0, 0, null);
-        
-        shapes.clear();
-        shapes.addAll(state.getShapes());
+        Layer layer = layers.findById(state.getLayerId());
+        if (layer == null) {
+            return;
+        }
+        // The snapshot belongs to this step alone, so its raster is adopted as is;
+        // history has copied the raster it replaces, and no stroke is left drawing
+        // into it, so that one goes back to the pool
+        BufferedImage replaced = layer.getImage();
+        layer.setImage(state.getImage());
+        SurfacePool.shared().detach(state.getImage());
+        SurfacePool.shared().release(replaced);
+        layer.getShapes().clear();
+        layer.getShapes().addAll(state.getShapes());
+        layers.layerChanged(layer);
         
+        if (autosaveManager != null) {
+            autosaveManager.documentReplaced();
+        }
+        if (collab != null) {
+            collab.layerReplaced(layers.indexOf(layer));
+        }
         repaint();
     }
     
-    // Canvas management
+    // Canvas management - clears the active layer
     public void clearCanvas() {
+        if (recorder != null) {
+            recorder.clear();
+        }
         saveStateForUndo();
-        g2d.setColor(Color.WHITE);
-        g2d.fillRect(0, 0, drawingImage.getWidth(), drawingImage.getHeight());
-        g2d.setColor(currentColor);
-        shapes.clear();
+        activeLayer().clear();
+        if (autosaveManager != null) {
+            autosaveManager.shapesCleared(layers.getActiveIndex());
+            autosaveManager.markDirty(layers.getActiveIndex(), 0, 0, layers.getWidth(), layers.getHeight());
+        }
+        if (collab != null) {
+            collab.layerCleared(layers.getActiveIndex());
+        }
         repaint();
     }
     
     public void saveToFile(File file) {
-        FileManager.saveDrawing(file, drawingImage, shapes);
+        // Vector export when an .svg name is given, PNG otherwise
+        if (file.getName().toLowerCase().endsWith(".svg")) {
+            SvgExporter.exportSvg(file, layers);
+        } else {
+            FileManager.saveDrawing(file, layers);
+        }
     }
     
+    /**
+     * Load an image progressively into the active layer, replacing what it
+     * holds: a subsampled preview appears first and full-resolution tiles
+     * replace it as they are decoded
+     * Images larger than the canvas are scaled down to fit
+     */
     public void loadFromFile(File file) {
-        BufferedImage loadedImage = FileManager.loadDrawing(file);
-        if (loadedImage != null) {
-            saveStateForUndo();
+        cancelLoading();
+        Layer target = activeLayer();
+        
+        Rectangle surface = new Rectangle(0, 0, layers.getWidth(), layers.getHeight());
+        Rectangle viewport = surface.intersection(new Rectangle(0, 0, getWidth(), getHeight()));
+        activeLoader = new ProgressiveImageLoader(file, new ProgressiveImageLoader.Listener() {
+            private boolean replaced;
+            
+            /**
+             * Clear the layer for the image once the first of it has decoded,
+             * so a file that can't be read leaves the drawing as it was
+             * Anything that changes or leaves the layer cancels the load
+             * first, so the target is still the active layer here.
+             */
+            private void replaceTarget() {
+                if (replaced) {
+                    return;
+                }
+                replaced = true;
+                endRecording("the loaded image");
+                historyManager.saveState(target);
+                target.clear();
+                if (autosaveManager != null) {
+                    autosaveManager.documentReplaced();
+                }
+                if (collab != null) {
+                    collab.layerReplaced(layers.indexOf(target));
+                }
+                repaint();
+            }
+            
+            public void previewReady(BufferedImage preview, int fullWidth, int fullHeight) {
+                replaceTarget();
+                Dimension size = ImageImporter.fitSize(fullWidth, fullHeight,
+                    layers.getWidth(), layers.getHeight());
+                Graphics2D g = target.getImage().createGraphics();
+                g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                g.drawImage(preview, 0, 0, size.width, size.height, null);
+                g.dispose();
+                markLoadedRegion(target, 0, 0, size.width, size.height);
+            }
             
-            // Clear current drawing
-            g2d.setColor(Color.WHITE);
-            g2d.fillRect(0, 0, drawingImage.getWidth(), drawingImage.getHeight());
-            shapes.clear();
+            public void tileReady(BufferedImage tile, int x, int y) {
+                replaceTarget();
+                ImageImporter.importInto(tile, target.getImage(), x, y);
+                markLoadedRegion(target, x, y, tile.getWidth(), tile.getHeight());
+            }
+            
+            public void reducedTileReady(BufferedImage tile, int x, int y, int reducedWidth, int reducedHeight) {
+                replaceTarget();
+                // A quick bilinear stand-in; reducedImageReady redraws the whole properly
+                Dimension size = ImageImporter.fitSize(reducedWidth, reducedHeight,
+                    layers.getWidth(), layers.getHeight());
+                double sx = (double) size.width / reducedWidth;
+                double sy = (double) size.height / reducedHeight;
+                int x0 = (int) (x * sx);
+                int y0 = (int) (y * sy);
+                int x1 = (int) ((x + tile.getWidth()) * sx);
+                int y1 = (int) ((y + tile.getHeight()) * sy);
+                Graphics2D g = target.getImage().createGraphics();
+                g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                g.drawImage(tile, x0, y0, x1 - x0, y1 - y0, null);
+                g.dispose();
+                markLoadedRegion(target, x0, y0, x1 - x0, y1 - y0);
+            }
             
-            // Draw loaded image
-            g2d.drawImage(loadedImage, 0, 0, null);
-            g2d.setColor(currentColor);
+            public void reducedImageReady(BufferedImage image, int fullWidth, int fullHeight) {
+                replaceTarget();
+                Dimension size = ImageImporter.importScaledToFit(image, target.getImage());
+                markLoadedRegion(target, 0, 0, size.width, size.height);
+            }
             
+            public void loadFinished() {
+                activeLoader = null;
+                System.out.println(ImageImporter.throughputReport());
+            }
+            
+            public void loadFailed(String message) {
+                activeLoader = null;
+                if (parentApp != null) {
+                    parentApp.loadFailed(file, message, replaced);
+                }
+            }
+        });
+        activeLoader.start(surface, viewport, true);
+    }
+    
+    private void markLoadedRegion(Layer target, int x, int y, int width, int height) {
+        if (target != activeLayer()) {
+            layers.layerChanged(target);
+        }
+        if (autosaveManager != null) {
+            autosaveManager.markDirty(layers.indexOf(target), x, y, width, height);
+        }
+        repaint();
+    }
+    
+    /**
+     * Stop a progressive load that is still delivering tiles, so late tiles
+     * don't overwrite newer edits
+     */
+    private void cancelLoading() {
+        if (activeLoader != null) {
+            activeLoader.cancel();
+            activeLoader = null;
+        }
+    }
+    
+    // Autosave - the manager journals edits in the background
+    public void startAutosave(AutosaveManager manager) {
+        this.autosaveManager = manager;
+        manager.start(new AutosaveManager.Source() {
+            public LayerStack getLayers() {
+                return layers;
+            }
+        });
+    }
+    
+    public void stopAutosave(boolean discard) {
+        if (autosaveManager != null) {
+            autosaveManager.shutdown(discard);
+            autosaveManager = null;
+        }
+    }
+    
+    /**
+     * Replace the drawing with one recovered from autosave
+     */
+    public void restoreRecovered(AutosaveManager.RecoveredDrawing recovered) {
+        endRecording("the recovered drawing");
+        layers.setLayers(recovered.getLayers(), recovered.getActiveLayer());
+        historyManager.clear();
+        layersReindexed();
+        repaint();
+    }
+    
+    // Collaboration - shapes, clears and brush strokes are shared; everything else stays local
+    
+    /**
+     * Share this drawing's edits with everyone connected to the server at host:port
+     */
+    public void startCollaboration(String host, int port) throws IOException {
+        stopCollaboration();
+        collab = CollabSession.join(layers, new CollabSession.Listener() {
+            public void shapeAdded(int layer, int index, ShapeBase shape) {
+                if (autosaveManager != null) {
+                    if (index == layers.get(layer).getShapes().size() - 1) {
+                        autosaveManager.shapeAdded(layer, shape);
+                    } else {
+                        autosaveManager.documentReplaced();   // the journal only appends
+                    }
+                }
+            }
+            
+            public void shapeRemoved(int layer, int index) {
+                if (autosaveManager != null) {
+                    autosaveManager.shapeRemoved(layer, index);
+                }
+            }
+            
+            public void shapesCleared(int layer) {
+                if (autosaveManager != null) {
+                    autosaveManager.shapesCleared(layer);
+                }
+            }
+            
+            public void areaChanged(int layer, Rectangle area, boolean raster) {
+                endRecording("a collaborator's edit");
+                if (raster && autosaveManager != null) {
+                    autosaveManager.markDirty(layer, area.x, area.y, area.width, area.height);
+                }
+                if (layer != layers.getActiveIndex()) {
+                    layers.layerChanged(layers.get(layer));
+                }
+                if (remoteDirty == null) {
+                    remoteDirty = new Rectangle(area);
+                } else {
+                    remoteDirty.add(area);
+                }
+            }
+            
+            public void editsApplied() {
+                if (remoteDirty != null) {
+                    repaint(remoteDirty.x, remoteDirty.y, remoteDirty.width, remoteDirty.height);
+                    remoteDirty = null;
+                }
+            }
+            
+            public void disconnected(String reason) {
+                if (collab != null && !collab.isConnected()) {
+                    collab = null;
+                    if (parentApp != null) {
+                        parentApp.collaborationEnded(reason);
+                    }
+                }
+            }
+        }, host, port);
+    }
+    
+    public void stopCollaboration() {
+        if (collab != null) {
+            collab.leave();
+            collab = null;
+        }
+    }
+    
+    public boolean isCollaborating() {
+        return collab != null;
+    }
+    
+    // Performance overlay
+    
+    /**
+     * Show or hide the overlay of frame rate, frame times, shapes, memory and
+     * repainted area; showing it starts the figures afresh
+     */
+    public void setHudVisible(boolean visible) {
+        if (visible != (hud != null)) {
+            hud = visible ? new PerformanceHud() : null;
             repaint();
         }
     }
     
+    public boolean isHudVisible() {
+        return hud != null;
+    }
+    
+    /**
+     * Record the input reaching this canvas to file, for InputReplayer
+     * Replays start from a blank drawing, so record from one to reproduce it.
+     */
+    public void startRecording(File file) throws IOException {
+        stopRecording();
+        recorder = new InputRecorder(file, layers.getWidth(), layers.getHeight());
+        // Current settings first, so the replay starts with the same tool
+        recorder.toolChanged(currentTool);
+        recorder.colorChanged(currentColor);
+        recorder.brushSizeChanged(brushSize);
+        recorder.fillToleranceChanged(fillTolerance);
+    }
+    
+    public void stopRecording() {
+        if (recorder != null) {
+            recorder.close();
+            recorder = null;
+        }
+    }
+    
+    /**
+     * Stop recording before a change the log can't hold, so a replay never
+     * quietly parts from what was drawn
+     */
+    private void endRecording(String change) {
+        if (recorder != null) {
+            stopRecording();
+            System.out.println("Recording stopped: " + change + " can't be replayed");
+            if (parentApp != null) {
+                parentApp.recordingEnded(change);
+            }
+        }
+    }
+    
+    private void layersReindexed() {
+        if (collab != null) {
+            collab.layersMoved();
+        }
+    }
+    
+    // Layer management - structural changes are checkpointed by autosave
+    
+    /**
+     * Add an empty layer above the active one and make it active
+     */
+    public void addLayer() {
+        if (recorder != null) {
+            recorder.layerAdded();
+        }
+        finishLayerEdit();
+        layers.addLayer();
+        layersReindexed();
+        layersRestructured();
+    }
+    
+    /**
+     * Delete the active layer (not undoable; its history is dropped)
+     */
+    public void deleteLayer() {
+        if (recorder != null) {
+            recorder.layerDeleted();
+        }
+        finishLayerEdit();
+        Layer removed = layers.removeLayer(layers.getActiveIndex());
+        if (removed != null) {
+            historyManager.forgetLayer(removed.getId());
+            layersReindexed();
+            layersRestructured();
+        }
+    }
+    
+    /**
+     * Move the active layer one step up or down the stack
+     */
+    public void moveLayer(boolean up) {
+        if (recorder != null) {
+            recorder.layerMoved(up);
+        }
+        finishLayerEdit();
+        if (layers.moveLayer(layers.getActiveIndex(), up)) {
+            layersReindexed();
+            layersRestructured();
+        }
+    }
+    
+    public void selectLayer(int index) {
+        if (recorder != null) {
+            recorder.layerSelected(index);
+        }
+        finishLayerEdit();
+        layers.setActive(index);
+        repaint();
+    }
+    
+    public void setLayerVisible(boolean visible) {
+        if (recorder != null) {
+            recorder.layerVisibilityChanged(visible);
+        }
+        layers.setVisible(layers.getActiveIndex(), visible);
+        layersRestructured();
+    }
+    
+    public void setLayerOpacity(float opacity) {
+        if (recorder != null) {
+            recorder.layerOpacityChanged(opacity);
+        }
+        layers.setOpacity(layers.getActiveIndex(), opacity);
+        layersRestructured();
+    }
+    
+    public void setLayerBlendMode(BlendMode mode) {
+        if (recorder != null) {
+            recorder.blendModeChanged(mode);
+        }
+        layers.setBlendMode(layers.getActiveIndex(), mode);
+        layersRestructured();
+    }
+    
+    private void finishLayerEdit() {
+        cancelLoading();
+        isDrawing = false;
+        endBrushStroke();
+        clearPreview();
+    }
+    
+    private void layersRestructured() {
+        if (autosaveManager != null) {
+            autosaveManager.documentReplaced();
+        }
+        repaint();
+    }
+    
     // Setters for drawing properties
     public void setCurrentColor(Color color) {
+        if (recorder != null) {
+            recorder.colorChanged(color);
+        }
         this.currentColor = color;
-        if (g2d != null) {
-            g2d.setColor(color);
+    }
+    
+    /**
+     * Largest per-channel colour difference the fill tool still treats as the same colour
+     */
+    public void setFillTolerance(int tolerance) {
+        if (recorder != null) {
+            recorder.fillToleranceChanged(tolerance);
         }
+        this.fillTolerance = Math.max(0, Math.min(255, tolerance));
     }
     
     public void setBrushSize(int size) {
-        this.brushSize = size;
-        if (g2d != null) {
-            g2d.setStroke(new BasicStroke(size, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+        if (recorder != null) {
+            recorder.brushSizeChanged(size);
         }
+        this.brushSize = size;
     }
     
     public void setCurrentTool(String tool) {
+        if (recorder != null) {
+            recorder.toolChanged(tool);
+        }
         this.currentTool = tool;
         clearPreview();
         repaint();
@@ -0,0 +1,126 @@
+package com.drawingstudio.canvas;
+
+import com.drawingstudio.layers.LayerStack;
+import com.drawingstudio.manager.HistoryManager;
+import com.drawingstudio.utils.SurfacePool;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * Overlay of frame rate, frame times, shape count, history and heap memory,
+ * surface pool reuse and how much of each frame was repainted
+ * Figures are collected every frame, but the text is only rebuilt - and drawn
+ * into a small cached image - twice a second. A frame costs one drawImage,
+ * so the overlay barely shows in the times it reports.
+ */
+class PerformanceHud {
+    private static final long REFRESH_NANOS = 500_000_000L;
+    private static final int WINDOW = 256;   // recent frames behind p99 and the mean dirty area
+    private static final int MARGIN = 8;
+    private static final int PADDING = 6;
+    private static final Font FONT = new Font(Font.MONOSPACED, Font.PLAIN, 12);
+    private static final Color BACKGROUND = new Color(24, 24, 24);   // opaque, so drawing it is a plain copy
+    private static final Color TEXT = new Color(120, 255, 160);
+
+    private final long[] frameNanos = new long[WINDOW];
+    private final float[] dirtyShare = new float[WINDOW];
+    private long frames;
+    private int framesSinceRefresh;
+    private long lastRefresh = System.nanoTime();
+    private BufferedImage image;
+
+    /**
+     * Record one frame
+     * @param painted Part of the surface actually recomposited
+     */
+    void frameFinished(long nanos, Rectangle painted, int width, int height) {
+        int slot = (int) (frames++ % WINDOW);
+        frameNanos[slot] = nanos;
+        dirtyShare[slot] = (float) painted.width * painted.height / ((float) width * height);
+        framesSinceRefresh++;
+    }
+
+    /**
+     * Draw the overlay in the top-left corner, rebuilding it when due
+     */
+    void paint(Graphics g, LayerStack layers, HistoryManager history) {
+        long now = System.nanoTime();
+        if (image == null || now - lastRefresh >= REFRESH_NANOS) {
+            refresh(now, layers, history);
+        }
+        g.drawImage(image, MARGIN, MARGIN, null);
+    }
+
+    private void refresh(long now, LayerStack layers, HistoryManager history) {
+        double fps = framesSinceRefresh * 1e9 / Math.max(now - lastRefresh, 1);
+        framesSinceRefresh = 0;
+        lastRefresh = now;
+
+        int count = (int) Math.min(frames, WINDOW);
+        long[] recent = Arrays.copyOf(frameNanos, count);
+        Arrays.sort(recent);
+        double lastMillis = frames == 0 ? 0 : frameNanos[(int) ((frames - 1) % WINDOW)] / 1e6;
+        double p99Millis = count == 0 ? 0 : recent[Math.max(0, (int) Math.ceil(count * 0.99) - 1)] / 1e6;
+        float lastDirty = frames == 0 ? 0 : dirtyShare[(int) ((frames - 1) % WINDOW)];
+        float meanDirty = 0;
+        for (int i = 0; i < count; i++) {
+            meanDirty += dirtyShare[i];
+        }
+        meanDirty = count == 0 ? 0 : meanDirty / count;
+
+        int shapes = 0;
+        for (int i = 0; i < layers.size(); i++) {
+            shapes += layers.get(i).getShapes().size();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        long heapUsed = runtime.totalMemory() - runtime.freeMemory();
+
+        String[] lines = {
+            String.format("%5.1f fps  frame %.1f ms  p99 %.1f ms", fps, lastMillis, p99Millis),
+            String.format("shapes %,d  history %.1f MB", shapes, history.getMemoryBytes() / 1048576.0),
+            String.format("heap %d / %d MB  pool %.0f%% reused", heapUsed >> 20, runtime.maxMemory() >> 20,
+                SurfacePool.shared().getHitRate() * 100),
+            String.format("dirty %.0f%%  avg %.0f%%", lastDirty * 100, meanDirty * 100)
+        };
+        render(lines);
+    }
+
+    private void render(String[] lines) {
+        if (image == null) {
+            image = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+        }
+        Graphics2D g = image.createGraphics();
+        FontMetrics metrics = g.getFontMetrics(FONT);
+        int width = 0;
+        for (String line : lines) {
+            width = Math.max(width, metrics.stringWidth(line));
+        }
+        width += 2 * PADDING;
+        int height = lines.length * metrics.getHeight() + 2 * PADDING;
+        if (width > image.getWidth() || height > image.getHeight()) {
+            // Grow only, so the box doesn't jitter as numbers change length
+            g.dispose();
+            image = new BufferedImage(Math.max(width, image.getWidth()), Math.max(height, image.getHeight()),
+                BufferedImage.TYPE_INT_RGB);
+            g = image.createGraphics();
+        }
+        g.setColor(BACKGROUND);
+        g.fillRect(0, 0, image.getWidth(), image.getHeight());
+        g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+        g.setFont(FONT);
+        g.setColor(TEXT);
+        int y = PADDING + metrics.getAscent();
+        for (String line : lines) {
+            g.drawString(line, PADDING, y);
+            y += metrics.getHeight();
+        }
+        g.dispose();
+    }
+}
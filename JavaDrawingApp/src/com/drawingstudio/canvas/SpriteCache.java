@@ -0,0 +1,234 @@
+package com.drawingstudio.canvas;
+
+import com.drawingstudio.memory.MemoryConsumer;
+import com.drawingstudio.memory.MemoryGovernor;
+import com.drawingstudio.shapes.ShapeGeometry;
+import com.drawingstudio.shapes.ShapeStore;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.*;
+
+/**
+ * LRU cache of pre-rendered shape sprites
+ * A shape is identified by kind, the offset from its start to its end point
+ * (so direction is part of the key), stroke width and colour - everything
+ * except position. Once the same shape has been seen a few times it is
+ * rendered once into a small premultiplied ARGB image and blitted at each
+ * placement; unique shapes and shapes too large to be worth caching are
+ * left to be drawn directly. Used from the event thread only. Sprites are
+ * redrawn on demand, so the memory governor may empty the cache at any time.
+ */
+public class SpriteCache implements ShapeStore.ShapePainter, MemoryConsumer {
+    public static final long DEFAULT_MAX_BYTES = 16L * 1024 * 1024;
+    private static final int MAX_SPRITE_PIXELS = 256 * 256;
+    private static final int ADMIT_AFTER = 3;      // sightings before a sprite is rendered
+    private static final int MAX_CANDIDATES = 4096;
+
+    private final LinkedHashMap<SpriteKey, Sprite> sprites = new LinkedHashMap<>(64, 0.75f, true);
+    private final LinkedHashMap<SpriteKey, int[]> candidates = new LinkedHashMap<SpriteKey, int[]>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<SpriteKey, int[]> eldest) {
+            return size() > MAX_CANDIDATES;
+        }
+    };
+    private final SpriteKey probe = new SpriteKey();
+    private long maxBytes;
+    private long bytes;
+
+    // Statistics
+    private long hits;
+    private long misses;
+    private long oversized;
+    private long evictions;
+
+    public SpriteCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        MemoryGovernor.shared().register("Shape sprites", MemoryGovernor.Priority.CACHE, this);
+    }
+
+    /**
+     * Blit shape index from its sprite if it has one (or has now earned one)
+     */
+    @Override
+    public boolean paint(Graphics2D g2d, ShapeStore store, int index) {
+        int x0 = store.x0(index);
+        int y0 = store.y0(index);
+        probe.set(store.kind(index), store.x1(index) - x0, store.y1(index) - y0,
+            store.strokeWidth(index), store.argb(index));
+
+        Sprite sprite = sprites.get(probe);
+        if (sprite == null) {
+            ShapeGeometry geo = store.geometry(index);
+            Rectangle bounds = geo.getStrokedBounds();
+            if ((long) bounds.width * bounds.height > MAX_SPRITE_PIXELS) {
+                oversized++;
+                return false;
+            }
+            misses++;
+            int[] seen = candidates.get(probe);
+            if (seen == null) {
+                candidates.put(probe.copy(), new int[] {1});
+                return false;
+            }
+            if (++seen[0] < ADMIT_AFTER) {
+                return false;
+            }
+            candidates.remove(probe);
+            sprite = render(geo, bounds, x0, y0, store.argb(index));
+            admit(probe.copy(), sprite);
+        } else {
+            hits++;
+        }
+        g2d.drawImage(sprite.image, x0 + sprite.offsetX, y0 + sprite.offsetY, null);
+        return true;
+    }
+
+    /**
+     * Render the shape exactly as the direct path would, translated so its
+     * stroked bounds start at the sprite origin
+     */
+    private static Sprite render(ShapeGeometry geo, Rectangle bounds, int x0, int y0, int argb) {
+        BufferedImage image = new BufferedImage(bounds.width, bounds.height, BufferedImage.TYPE_INT_ARGB_PRE);
+        Graphics2D g = image.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.translate(-bounds.x, -bounds.y);
+        g.setClip(bounds);
+        g.setColor(new Color(argb, true));
+        geo.draw(g);
+        g.dispose();
+        return new Sprite(image, bounds.x - x0, bounds.y - y0);
+    }
+
+    private void admit(SpriteKey key, Sprite sprite) {
+        long size = sprite.bytes();
+        if (size > maxBytes) {
+            return;
+        }
+        sprites.put(key, sprite);
+        bytes += size;
+        trim();
+    }
+
+    /**
+     * Evict least recently used sprites until under the memory cap
+     */
+    private void trim() {
+        Iterator<Sprite> it = sprites.values().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            bytes -= it.next().bytes();
+            it.remove();
+            evictions++;
+        }
+    }
+
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        trim();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public int getSpriteCount() {
+        return sprites.size();
+    }
+
+    /**
+     * Hits as a fraction of all lookups that were small enough to cache
+     */
+    public double getHitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    public void clear() {
+        sprites.clear();
+        candidates.clear();
+        bytes = 0;
+    }
+
+    @Override
+    public long getMemoryBytes() {
+        return bytes;
+    }
+
+    @Override
+    public long reclaim(long wanted, boolean evict) {
+        long freed = bytes;
+        evictions += sprites.size();
+        clear();
+        return freed;
+    }
+
+    public String statsReport() {
+        return String.format("Sprites: %d (%,d KB of %,d KB), hit rate %.1f%% (%,d hits, %,d misses), "
+                + "%,d too large, %,d evicted",
+            sprites.size(), bytes / 1024, maxBytes / 1024, getHitRate() * 100, hits, misses, oversized, evictions);
+    }
+
+    private static final class Sprite {
+        final BufferedImage image;
+        final int offsetX;
+        final int offsetY;
+
+        Sprite(BufferedImage image, int offsetX, int offsetY) {
+            this.image = image;
+            this.offsetX = offsetX;
+            this.offsetY = offsetY;
+        }
+
+        long bytes() {
+            return 4L * image.getWidth() * image.getHeight();
+        }
+    }
+
+    /**
+     * Everything that determines a sprite's pixels; mutable only so lookups
+     * can reuse one probe instance
+     */
+    private static final class SpriteKey {
+        byte kind;
+        int dx;
+        int dy;
+        float strokeWidth;
+        int argb;
+
+        void set(byte kind, int dx, int dy, float strokeWidth, int argb) {
+            this.kind = kind;
+            this.dx = dx;
+            this.dy = dy;
+            this.strokeWidth = strokeWidth;
+            this.argb = argb;
+        }
+
+        SpriteKey copy() {
+            SpriteKey key = new SpriteKey();
+            key.set(kind, dx, dy, strokeWidth, argb);
+            return key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SpriteKey)) {
+                return false;
+            }
+            SpriteKey k = (SpriteKey) o;
+            return kind == k.kind && dx == k.dx && dy == k.dy
+                && Float.compare(strokeWidth, k.strokeWidth) == 0 && argb == k.argb;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = kind;
+            h = 31 * h + dx;
+            h = 31 * h + dy;
+            h = 31 * h + Float.floatToIntBits(strokeWidth);
+            return 31 * h + argb;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package com.drawingstudio.collab;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One collaborator's connection to a CollabServer
+ * Edits passed to send() are encoded straight into the outgoing buffer, and
+ * everything sent while the network thread is busy goes out together as one
+ * batch. Relayed batches are decoded on the network thread and handed to the
+ * listener in sequence order - the listener must not block, and should move
+ * the work to the event thread itself.
+ */
+public class CollabClient implements Closeable {
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+
+    /**
+     * Receives relayed edits, on the network thread
+     */
+    public interface Listener {
+        /**
+         * A batch of edits in server order; origin is the sending client's id,
+         * which is getClientId() for this client's own edits coming back
+         */
+        void editsReceived(long sequence, int origin, List<CollabOp> ops);
+
+        /**
+         * The connection ended; reason is null when close() was called
+         */
+        void disconnected(String reason);
+    }
+
+    private final SocketChannel channel;
+    private final Selector selector;
+    private final SelectionKey key;
+    private final Listener listener;
+    private final Thread thread;
+    private final ByteBuffer in = ByteBuffer.allocate(4 + CollabProtocol.MAX_RELAYED_FRAME);
+    private volatile int clientId = -1;
+    private volatile boolean closed;
+
+    // Guarded by out: encoded edits waiting to be written, the last batch still open
+    private final ByteBuffer out = ByteBuffer.allocate(CollabProtocol.WRITE_LIMIT);
+    private int batchStart = -1;
+    private int batchCount;
+    private String failure;
+
+    private CollabClient(SocketChannel channel, Listener listener) throws IOException {
+        this.channel = channel;
+        this.listener = listener;
+        selector = Selector.open();
+        channel.configureBlocking(false);
+        key = channel.register(selector, SelectionKey.OP_READ);
+        thread = new Thread(this::run, "Collaboration client");
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Connect to a server and start receiving
+     */
+    public static CollabClient connect(String host, int port, Listener listener) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+            channel.socket().setTcpNoDelay(true);
+            CollabClient client = new CollabClient(channel, listener);
+            client.thread.start();
+            return client;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Id the server gave this client, or -1 until its welcome has arrived
+     * (always known before the first relayed batch)
+     */
+    public int getClientId() {
+        return clientId;
+    }
+
+    public boolean isConnected() {
+        return !closed;
+    }
+
+    /**
+     * Queue an edit to share; may be called from any thread
+     */
+    public void send(CollabOp op) {
+        boolean wake;
+        synchronized (out) {
+            if (closed || failure != null) {
+                return;
+            }
+            int size = op.encodedSize();
+            if (batchStart >= 0 && out.position() + size - batchStart > 4 + CollabProtocol.MAX_FRAME) {
+                closeBatch();
+            }
+            int needed = size + (batchStart < 0 ? CollabProtocol.BATCH_HEADER : 0);
+            if (out.remaining() < needed) {
+                // The server hasn't taken a megabyte of edits - give up rather than grow
+                failure = "server not keeping up";
+                selector.wakeup();
+                return;
+            }
+            wake = batchStart < 0;
+            if (batchStart < 0) {
+                batchStart = out.position();
+                batchCount = 0;
+                out.position(batchStart + CollabProtocol.BATCH_HEADER);
+            }
+            op.write(out);
+            batchCount++;
+        }
+        if (wake) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Fill in the open batch's header so it can be written
+     */
+    private void closeBatch() {
+        int length = out.position() - batchStart - 4;
+        out.putInt(batchStart, length);
+        out.put(batchStart + 4, CollabProtocol.BATCH);
+        out.putShort(batchStart + 5, (short) batchCount);
+        batchStart = -1;
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            selector.wakeup();
+        }
+    }
+
+    private void run() {
+        String reason = null;
+        try {
+            while (!closed) {
+                if (writeQueued()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                } else {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+                selector.select();
+                selector.selectedKeys().clear();
+                if (key.isValid() && key.isReadable() && !read()) {
+                    reason = "server closed the connection";
+                    break;
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            reason = e.getMessage();
+        } finally {
+            synchronized (out) {
+                if (failure != null) {
+                    reason = failure;
+                }
+            }
+            closed = true;
+            try {
+                channel.close();
+                selector.close();
+            } catch (IOException e) {
+                System.out.println("Error closing collaboration connection: " + e.getMessage());
+            }
+            listener.disconnected(reason);
+        }
+    }
+
+    /**
+     * Write queued edits; true if some are still waiting for the socket
+     */
+    private boolean writeQueued() throws IOException {
+        synchronized (out) {
+            if (failure != null) {
+                throw new IOException(failure);
+            }
+            if (batchStart >= 0) {
+                closeBatch();
+            }
+            out.flip();
+            channel.write(out);
+            boolean pending = out.hasRemaining();
+            out.compact();
+            return pending;
+        }
+    }
+
+    /**
+     * Read and deliver complete frames; false at end of stream
+     */
+    private boolean read() throws IOException {
+        if (channel.read(in) < 0) {
+            return false;
+        }
+        in.flip();
+        while (in.remaining() >= 4) {
+            int length = in.getInt(in.position());
+            if (length < 1 || length > CollabProtocol.MAX_RELAYED_FRAME) {
+                throw new IOException("Bad frame length " + length);
+            }
+            if (in.remaining() < 4 + length) {
+                break;
+            }
+            in.position(in.position() + 4);
+            int end = in.position() + length;
+            byte type = in.get();
+            if (type == CollabProtocol.WELCOME) {
+                clientId = in.getInt();
+            } else if (type == CollabProtocol.OPS) {
+                long sequence = in.getLong();
+                int origin = in.getInt();
+                int count = in.getShort() & 0xFFFF;
+                List<CollabOp> ops = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    ops.add(CollabOp.read(in));
+                }
+                if (in.position() != end) {
+                    throw new IOException("Malformed batch " + sequence);
+                }
+                listener.editsReceived(sequence, origin, ops);
+            } else {
+                throw new IOException("Unexpected frame type " + type);
+            }
+            in.position(end);
+        }
+        in.compact();
+        return true;
+    }
+}
@@ -0,0 +1,168 @@
+package com.drawingstudio.collab;
+
+import com.drawingstudio.shapes.ShapeBase;
+import com.drawingstudio.shapes.ShapeCodec;
+import com.drawingstudio.shapes.ShapeStore;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * One shared edit, as sent between collaborators
+ * Layers are addressed by index. Shapes are removed by value rather than by
+ * position, so a removal still finds its shape after other people's edits
+ * have shifted the list. A brush stroke is a begin op, one op per mouse
+ * segment and an end op; segments carry no layer or colour because each
+ * collaborator has at most one stroke open at a time. Shapes travel as
+ * one-shape ShapeCodec blocks.
+ */
+public final class CollabOp {
+    public static final byte ADD_SHAPE = 1;
+    public static final byte REMOVE_SHAPE = 2;
+    public static final byte CLEAR_LAYER = 3;
+    public static final byte STROKE_BEGIN = 4;
+    public static final byte STROKE_SEGMENT = 5;
+    public static final byte STROKE_END = 6;
+
+    private static final int MAX_SHAPE_SIZE = 1 + 1 + ShapeCodec.maxEncodedSize(1);
+
+    // Edits are written on the sending thread and read on the network one
+    private static final ThreadLocal<ShapeCodec> CODEC = ThreadLocal.withInitial(ShapeCodec::new);
+
+    private final byte type;
+    private final int layer;
+    private final byte kind;         // shape kind, or 1 for an erasing stroke
+    private final int x0, y0, x1, y1;
+    private final int argb;
+    private final float width;       // shape stroke width or brush size
+
+    private CollabOp(byte type, int layer, byte kind, int x0, int y0, int x1, int y1, int argb, float width) {
+        this.type = type;
+        this.layer = layer;
+        this.kind = kind;
+        this.x0 = x0;
+        this.y0 = y0;
+        this.x1 = x1;
+        this.y1 = y1;
+        this.argb = argb;
+        this.width = width;
+    }
+
+    public static CollabOp addShape(int layer, ShapeBase shape) {
+        return shapeOp(ADD_SHAPE, layer, shape);
+    }
+
+    public static CollabOp removeShape(int layer, ShapeBase shape) {
+        return shapeOp(REMOVE_SHAPE, layer, shape);
+    }
+
+    private static CollabOp shapeOp(byte type, int layer, ShapeBase shape) {
+        return new CollabOp(type, layer, ShapeStore.kindOf(shape.getType()),
+            shape.getStartPoint().x, shape.getStartPoint().y, shape.getEndPoint().x, shape.getEndPoint().y,
+            shape.getColor().getRGB(), shape.getStrokeWidth());
+    }
+
+    public static CollabOp clearLayer(int layer) {
+        return new CollabOp(CLEAR_LAYER, layer, (byte) 0, 0, 0, 0, 0, 0, 0);
+    }
+
+    public static CollabOp strokeBegin(int layer, boolean erase, int argb, int size) {
+        return new CollabOp(STROKE_BEGIN, layer, (byte) (erase ? 1 : 0), 0, 0, 0, 0, argb, size);
+    }
+
+    public static CollabOp strokeSegment(int x0, int y0, int x1, int y1) {
+        return new CollabOp(STROKE_SEGMENT, 0, (byte) 0, x0, y0, x1, y1, 0, 0);
+    }
+
+    public static CollabOp strokeEnd() {
+        return new CollabOp(STROKE_END, 0, (byte) 0, 0, 0, 0, 0, 0, 0);
+    }
+
+    public byte getType() { return type; }
+    public int getLayer() { return layer; }
+    public byte getKind() { return kind; }
+    public boolean isErase() { return kind != 0; }
+    public int getX0() { return x0; }
+    public int getY0() { return y0; }
+    public int getX1() { return x1; }
+    public int getY1() { return y1; }
+    public int getArgb() { return argb; }
+    public float getWidth() { return width; }
+    public int getBrushSize() { return (int) width; }
+
+    /**
+     * Most bytes write() can put in the buffer
+     */
+    int encodedSize() {
+        switch (type) {
+            case ADD_SHAPE:
+            case REMOVE_SHAPE:
+                return MAX_SHAPE_SIZE;
+            case CLEAR_LAYER:
+                return 2;
+            case STROKE_BEGIN:
+                return 1 + 1 + 1 + 4 + 2;
+            case STROKE_SEGMENT:
+                return 1 + 16;
+            default:
+                return 1;
+        }
+    }
+
+    void write(ByteBuffer out) {
+        out.put(type);
+        switch (type) {
+            case ADD_SHAPE:
+            case REMOVE_SHAPE:
+                out.put((byte) layer);
+                CODEC.get().encode(kind, x0, y0, x1, y1, argb, width, out);
+                break;
+            case CLEAR_LAYER:
+                out.put((byte) layer);
+                break;
+            case STROKE_BEGIN:
+                out.put((byte) layer).put(kind).putInt(argb).putShort((short) width);
+                break;
+            case STROKE_SEGMENT:
+                out.putInt(x0).putInt(y0).putInt(x1).putInt(y1);
+                break;
+            default:
+                break;
+        }
+    }
+
+    static CollabOp read(ByteBuffer in) throws IOException {
+        try {
+            byte type = in.get();
+            switch (type) {
+                case ADD_SHAPE:
+                case REMOVE_SHAPE: {
+                    int layer = in.get() & 0xFF;
+                    CollabOp[] op = new CollabOp[1];
+                    int count = CODEC.get().decode(in, (kind, x0, y0, x1, y1, argb, width) ->
+                        op[0] = new CollabOp(type, layer, kind, x0, y0, x1, y1, argb, width));
+                    if (count != 1) {
+                        throw new IOException("Shape edit carries " + count + " shapes");
+                    }
+                    return op[0];
+                }
+                case CLEAR_LAYER:
+                    return new CollabOp(type, in.get() & 0xFF, (byte) 0, 0, 0, 0, 0, 0, 0);
+                case STROKE_BEGIN: {
+                    int layer = in.get() & 0xFF;
+                    byte erase = in.get();
+                    int argb = in.getInt();
+                    return new CollabOp(type, layer, erase, 0, 0, 0, 0, argb, in.getShort());
+                }
+                case STROKE_SEGMENT:
+                    return new CollabOp(type, 0, (byte) 0, in.getInt(), in.getInt(), in.getInt(), in.getInt(), 0, 0);
+                case STROKE_END:
+                    return strokeEnd();
+                default:
+                    throw new IOException("Unknown edit type: " + type);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated edit");
+        }
+    }
+}
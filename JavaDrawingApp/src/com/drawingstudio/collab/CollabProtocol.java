@@ -0,0 +1,36 @@
+package com.drawingstudio.collab;
+
+/**
+ * Wire format shared by the collaboration server and client
+ * Every message is a frame: an int length (of everything after it), a type
+ * byte and a payload. Clients send BATCH frames of edits; the server stamps
+ * each batch with the next sequence number and the sender's id and relays it
+ * to every client, the sender included, as an OPS frame. All clients apply
+ * batches in sequence order, which is what settles conflicting edits.
+ * <pre>
+ *   WELCOME  server -> client  [int clientId]
+ *   BATCH    client -> server  [short count][ops]
+ *   OPS      server -> client  [long sequence][int origin][short count][ops]
+ * </pre>
+ */
+final class CollabProtocol {
+    static final byte WELCOME = 1;
+    static final byte BATCH = 2;
+    static final byte OPS = 3;
+
+    /** Longest frame a client may send (type byte and payload) */
+    static final int MAX_FRAME = 64 * 1024;
+    /** What the server adds when it turns a BATCH into an OPS frame: sequence and origin */
+    static final int RELAY_OVERHEAD = 8 + 4;
+    /** Longest frame the server sends */
+    static final int MAX_RELAYED_FRAME = MAX_FRAME + RELAY_OVERHEAD;
+
+    static final int HEADER = 4 + 1;            // length and type
+    static final int BATCH_HEADER = HEADER + 2; // plus op count
+
+    /** Queued output allowed per connection before it counts as too slow */
+    static final int WRITE_LIMIT = 1024 * 1024;
+
+    private CollabProtocol() {
+    }
+}
@@ -0,0 +1,340 @@
+package com.drawingstudio.collab;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Relays edits between collaborators on one non-blocking selector thread
+ * The server gives each batch the next sequence number and queues it for
+ * every client, sender included, so everyone sees the same edits in the same
+ * order. It parses every batch first, as the clients will, and drops a sender
+ * whose batch is malformed - relayed, it would disconnect everyone. Batches read in one pass over the
+ * selector are relayed together, so a busy server writes fewer, larger
+ * chunks. Buffers are fixed per connection - one frame in, WRITE_LIMIT out.
+ * While any client's output is close to that limit the server stops reading,
+ * which pushes back on the senders through TCP; a client that takes nothing
+ * for SLOW_CLIENT_MS meanwhile is dropped so it cannot stall everyone else.
+ */
+public class CollabServer implements Closeable {
+    public static final int DEFAULT_PORT = 5710;
+
+    /** Relayed bytes after which a pass over the selector stops reading */
+    private static final int RELAY_BUDGET = 128 * 1024;
+    /** Shortest BATCH frame: type and op count, no ops */
+    private static final int MIN_FRAME = CollabProtocol.BATCH_HEADER - 4;
+    /**
+     * Most one read can add to the relay: a full input buffer of the shortest
+     * frames, each relayed with sequence and origin added - under 3x the input
+     */
+    private static final int MAX_READ_RELAY = (4 + CollabProtocol.MAX_FRAME) / (4 + MIN_FRAME)
+        * (4 + MIN_FRAME + CollabProtocol.RELAY_OVERHEAD);
+    /** Output room every client needs before anything more is read */
+    private static final int ROOM_TO_READ = RELAY_BUDGET + MAX_READ_RELAY;
+    private static final long SLOW_CLIENT_MS = 5000;
+
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final Thread thread;
+    private final List<Connection> connections = new ArrayList<>();
+    private volatile boolean closed;
+    private volatile int clientCount;
+    private boolean readingPaused;
+
+    private int nextClientId = 1;
+    private long nextSequence = 1;
+    private ByteBuffer relay = ByteBuffer.allocate(CollabProtocol.MAX_RELAYED_FRAME * 4);
+
+    /**
+     * Listen on port (0 picks a free one) and start relaying
+     */
+    public CollabServer(int port) throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            serverChannel.close();
+            selector.close();
+            throw e;
+        }
+        thread = new Thread(this::run, "Collaboration server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public int getClientCount() {
+        return clientCount;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        try {
+            while (!closed) {
+                applyBackpressure();
+                selector.select(readingPaused ? 1000 : 0);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    if (key.isReadable() && relay.position() < RELAY_BUDGET) {
+                        read(connection);   // otherwise still readable next pass
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        flush(connection);
+                    }
+                }
+                broadcast();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (!closed) {
+                System.out.println("Collaboration server stopped: " + e.getMessage());
+            }
+        } finally {
+            for (Connection connection : new ArrayList<>(connections)) {
+                drop(connection, null);
+            }
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException e) {
+                System.out.println("Error closing collaboration server: " + e.getMessage());
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Connection connection = new Connection(channel, nextClientId++);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            connections.add(connection);
+            clientCount = connections.size();
+
+            connection.out.putInt(1 + 4).put(CollabProtocol.WELCOME).putInt(connection.id);
+            flush(connection);
+        }
+    }
+
+    /**
+     * Stop reading while some client lacks room for another pass's relay,
+     * and drop clients that have taken nothing for too long meanwhile
+     */
+    private void applyBackpressure() {
+        long now = System.currentTimeMillis();
+        boolean full = false;
+        for (Connection connection : new ArrayList<>(connections)) {
+            if (connection.out.remaining() >= ROOM_TO_READ) {
+                connection.blockedSince = 0;
+                continue;
+            }
+            if (connection.blockedSince == 0) {
+                connection.blockedSince = now;
+            } else if (now - connection.blockedSince > SLOW_CLIENT_MS) {
+                drop(connection, "too far behind");
+                continue;
+            }
+            full = true;
+        }
+        if (full != readingPaused) {
+            readingPaused = full;
+            for (Connection connection : connections) {
+                updateInterest(connection);
+            }
+        }
+    }
+
+    private void updateInterest(Connection connection) {
+        if (connection.key.isValid()) {
+            int ops = readingPaused ? 0 : SelectionKey.OP_READ;
+            if (connection.out.position() > 0) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            connection.key.interestOps(ops);
+        }
+    }
+
+    /**
+     * Read what the client has sent and queue its complete batches for relay
+     */
+    private void read(Connection connection) {
+        try {
+            if (connection.channel.read(connection.in) < 0) {
+                drop(connection, null);
+                return;
+            }
+        } catch (IOException e) {
+            drop(connection, e.getMessage());
+            return;
+        }
+        ByteBuffer in = connection.in;
+        in.flip();
+        while (in.remaining() >= 4) {
+            int length = in.getInt(in.position());
+            if (length < MIN_FRAME || length > CollabProtocol.MAX_FRAME) {
+                drop(connection, "bad frame length " + length);
+                return;
+            }
+            if (in.remaining() < 4 + length) {
+                break;
+            }
+            in.position(in.position() + 4);
+            byte type = in.get();
+            if (type != CollabProtocol.BATCH) {
+                drop(connection, "unexpected frame type " + type);
+                return;
+            }
+            int payload = length - 1;
+            int start = in.position();
+            int limit = in.limit();
+            in.limit(start + payload);
+            try {
+                checkBatch(in);
+            } catch (IOException e) {
+                drop(connection, "malformed batch: " + e.getMessage());
+                return;
+            }
+
+            // Relay as OPS: sequence and origin in front of the batch as it came
+            ensureRelayCapacity(CollabProtocol.HEADER + CollabProtocol.RELAY_OVERHEAD + payload);
+            relay.putInt(length + CollabProtocol.RELAY_OVERHEAD).put(CollabProtocol.OPS);
+            relay.putLong(nextSequence++).putInt(connection.id);
+            in.position(start);
+            relay.put(in);
+            in.limit(limit);
+        }
+        in.compact();
+    }
+
+    /**
+     * Parse a BATCH payload, which runs to the buffer's limit, the way clients will
+     * @throws IOException if it isn't exactly its count of well-formed edits
+     */
+    private static void checkBatch(ByteBuffer in) throws IOException {
+        int count = in.getShort() & 0xFFFF;
+        for (int i = 0; i < count; i++) {
+            CollabOp.read(in);
+        }
+        if (in.hasRemaining()) {
+            throw new IOException(in.remaining() + " bytes after the last edit");
+        }
+    }
+
+    private void ensureRelayCapacity(int bytes) {
+        if (relay.remaining() < bytes) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(relay.capacity() * 2, relay.position() + bytes));
+            relay.flip();
+            larger.put(relay);
+            relay = larger;
+        }
+    }
+
+    /**
+     * Queue this round's batches on every connection and start writing them
+     */
+    private void broadcast() {
+        if (relay.position() == 0) {
+            return;
+        }
+        relay.flip();
+        for (Connection connection : new ArrayList<>(connections)) {
+            if (connection.out.remaining() < relay.remaining()) {
+                // Only a client that joined mid-pass can lack the room checked for
+                drop(connection, "too far behind");
+                continue;
+            }
+            connection.out.put(relay.duplicate());
+            flush(connection);
+        }
+        relay.clear();
+        if (relay.capacity() > CollabProtocol.MAX_RELAYED_FRAME * 16) {
+            // Give back what a burst grew it to
+            relay = ByteBuffer.allocate(CollabProtocol.MAX_RELAYED_FRAME * 4);
+        }
+    }
+
+    /**
+     * Write as much queued output as the socket takes; wait for OP_WRITE only
+     * while some is left
+     */
+    private void flush(Connection connection) {
+        ByteBuffer out = connection.out;
+        out.flip();
+        try {
+            if (connection.channel.write(out) > 0) {
+                connection.blockedSince = 0;   // still taking data
+            }
+        } catch (IOException e) {
+            out.compact();
+            drop(connection, e.getMessage());
+            return;
+        }
+        out.compact();
+        updateInterest(connection);
+    }
+
+    private void drop(Connection connection, String reason) {
+        if (!connections.remove(connection)) {
+            return;
+        }
+        clientCount = connections.size();
+        connection.key.cancel();
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            // Already gone
+        }
+        if (reason != null) {
+            System.out.println("Collaborator " + connection.id + " dropped: " + reason);
+        }
+    }
+
+    private static class Connection {
+        final SocketChannel channel;
+        final int id;
+        final ByteBuffer in = ByteBuffer.allocate(4 + CollabProtocol.MAX_FRAME);
+        final ByteBuffer out = ByteBuffer.allocate(CollabProtocol.WRITE_LIMIT);
+        SelectionKey key;
+        long blockedSince;   // since when it has been short of ROOM_TO_READ without taking data, or 0
+
+        Connection(SocketChannel channel, int id) {
+            this.channel = channel;
+            this.id = id;
+        }
+    }
+}
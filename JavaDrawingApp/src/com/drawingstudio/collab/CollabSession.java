@@ -0,0 +1,436 @@
+package com.drawingstudio.collab;
+
+import com.drawingstudio.brush.BrushType;
+import com.drawingstudio.brush.DabEngine;
+import com.drawingstudio.brush.EraserBrush;
+import com.drawingstudio.brush.NormalBrush;
+import com.drawingstudio.layers.Layer;
+import com.drawingstudio.layers.LayerStack;
+import com.drawingstudio.shapes.ShapeBase;
+import com.drawingstudio.shapes.ShapeStore;
+import java.awt.Color;
+import java.awt.EventQueue;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shares a canvas's edits through a CollabClient and applies everyone else's
+ * Local edits are applied at once and sent; remote ones arrive on the network
+ * thread, are queued, and applied in one go on the event thread, which then
+ * only needs to repaint the areas they touched.
+ * Shape order is settled by the server: shapes this client has added but not
+ * yet seen come back stay on top, and a remote shape the server ordered
+ * before them is inserted underneath, so every client ends with the same
+ * list. Until the server has relayed a clear made here, edits arriving for
+ * that layer were ordered before it and are dropped, as the clear removes
+ * them everywhere else. Remote strokes are stamped by a dab engine per collaborator, kept
+ * open between batches so segment joints don't blend twice. Only shape,
+ * clear and brush edits are shared; fills, filters, loads, undo and the layer
+ * structure stay local.
+ */
+public class CollabSession {
+    /**
+     * Told about remote edits as they are applied, on the event thread
+     */
+    public interface Listener {
+        void shapeAdded(int layer, int index, ShapeBase shape);
+
+        void shapeRemoved(int layer, int index);
+
+        /**
+         * Every shape of the layer was removed
+         */
+        void shapesCleared(int layer);
+
+        /**
+         * Pixels in area of the layer changed
+         * @param raster Whether the raster changed, rather than only shapes
+         */
+        void areaChanged(int layer, Rectangle area, boolean raster);
+
+        /**
+         * Everything that had arrived has been applied - time to repaint
+         */
+        void editsApplied();
+
+        void disconnected(String reason);
+    }
+
+    private static final int MAX_SHARED_LAYER = 255;
+
+    private final LayerStack layers;
+    private final Listener listener;
+    private final CollabClient client;
+
+    // Filled on the network thread, drained on the event thread
+    private final List<Batch> received = new ArrayList<>();
+    private boolean drainScheduled;
+
+    // Event thread only
+    private final Map<Integer, InFlight> inFlight = new HashMap<>();
+    private final Map<Integer, RemoteStroke> strokes = new HashMap<>();
+    private final BrushType normalBrush = new NormalBrush();
+    private final BrushType eraserBrush = new EraserBrush();
+    private int strokeLayer = -1;
+
+    private CollabSession(LayerStack layers, Listener listener, String host, int port) throws IOException {
+        this.layers = layers;
+        this.listener = listener;
+        this.client = CollabClient.connect(host, port, new CollabClient.Listener() {
+            @Override
+            public void editsReceived(long sequence, int origin, List<CollabOp> ops) {
+                queue(new Batch(origin, ops));
+            }
+
+            @Override
+            public void disconnected(String reason) {
+                EventQueue.invokeLater(() -> CollabSession.this.listener.disconnected(reason));
+            }
+        });
+    }
+
+    /**
+     * Join the session served at host:port; call on the event thread
+     */
+    public static CollabSession join(LayerStack layers, Listener listener, String host, int port) throws IOException {
+        return new CollabSession(layers, listener, host, port);
+    }
+
+    public void leave() {
+        client.close();
+    }
+
+    public boolean isConnected() {
+        return client.isConnected();
+    }
+
+    public int getClientId() {
+        return client.getClientId();
+    }
+
+    // Local edits - called on the event thread after the canvas has applied them
+
+    public void shapeAdded(int layer, ShapeBase shape) {
+        if (layer <= MAX_SHARED_LAYER) {
+            inFlight(layer).added();
+            client.send(CollabOp.addShape(layer, shape));
+        }
+    }
+
+    /**
+     * @param index Where the shape was before it was removed
+     */
+    public void shapeRemoved(int layer, int index, ShapeBase shape) {
+        if (layer <= MAX_SHARED_LAYER) {
+            // Size before the removal
+            inFlight(layer).removed(index, layers.get(layer).getShapes().size() + 1);
+            client.send(CollabOp.removeShape(layer, shape));
+        }
+    }
+
+    public void layerCleared(int layer) {
+        if (layer <= MAX_SHARED_LAYER) {
+            InFlight pending = inFlight(layer);
+            pending.cleared();
+            pending.clears++;
+            client.send(CollabOp.clearLayer(layer));
+        }
+    }
+
+    /**
+     * The layer's contents were replaced locally (undo or redo); its own
+     * shapes still on their way are treated as settled
+     */
+    public void layerReplaced(int layer) {
+        inFlight(layer).cleared();
+    }
+
+    /**
+     * Layers were added, removed or reordered, so indices no longer match
+     * what is in flight
+     */
+    public void layersMoved() {
+        for (InFlight pending : inFlight.values()) {
+            pending.cleared();
+        }
+    }
+
+    public void strokeBegun(int layer, boolean erase, Color color, int size) {
+        strokeLayer = layer <= MAX_SHARED_LAYER ? layer : -1;
+        if (strokeLayer >= 0) {
+            client.send(CollabOp.strokeBegin(layer, erase, color.getRGB(), size));
+        }
+    }
+
+    public void strokeSegment(Point start, Point end) {
+        if (strokeLayer >= 0) {
+            client.send(CollabOp.strokeSegment(start.x, start.y, end.x, end.y));
+        }
+    }
+
+    public void strokeEnded() {
+        if (strokeLayer >= 0) {
+            client.send(CollabOp.strokeEnd());
+            strokeLayer = -1;
+        }
+    }
+
+    // Remote edits
+
+    private void queue(Batch batch) {
+        boolean schedule;
+        synchronized (received) {
+            received.add(batch);
+            schedule = !drainScheduled;
+            drainScheduled = true;
+        }
+        if (schedule) {
+            EventQueue.invokeLater(this::applyReceived);
+        }
+    }
+
+    /**
+     * Apply every batch that has arrived since the last call
+     */
+    private void applyReceived() {
+        List<Batch> batches;
+        synchronized (received) {
+            batches = new ArrayList<>(received);
+            received.clear();
+            drainScheduled = false;
+        }
+        int self = client.getClientId();
+        for (Batch batch : batches) {
+            for (CollabOp op : batch.ops) {
+                if (batch.origin == self) {
+                    if (op.getType() == CollabOp.ADD_SHAPE) {
+                        inFlight(op.getLayer()).confirmed();
+                    } else if (op.getType() == CollabOp.CLEAR_LAYER) {
+                        InFlight pending = inFlight(op.getLayer());
+                        pending.clears = Math.max(0, pending.clears - 1);
+                    }
+                } else {
+                    apply(batch.origin, op);
+                }
+            }
+        }
+        listener.editsApplied();
+    }
+
+    private void apply(int origin, CollabOp op) {
+        if (op.getType() == CollabOp.STROKE_SEGMENT) {
+            RemoteStroke stroke = strokes.get(origin);
+            if (stroke != null) {
+                stroke.segment(op.getX0(), op.getY0(), op.getX1(), op.getY1());
+            }
+            return;
+        }
+        if (op.getType() == CollabOp.STROKE_END) {
+            RemoteStroke stroke = strokes.remove(origin);
+            if (stroke != null) {
+                stroke.end();
+            }
+            return;
+        }
+        if (op.getLayer() >= layers.size()) {
+            return;   // a layer this client doesn't have
+        }
+        int layer = op.getLayer();
+        InFlight pending = inFlight(layer);
+        if (pending.clears > 0 && op.getType() != CollabOp.STROKE_BEGIN) {
+            return;   // ordered before a clear of ours that has already removed it
+        }
+        ShapeStore shapes = layers.get(layer).getShapes();
+        int settled = shapes.size() - pending.present;
+        switch (op.getType()) {
+            case CollabOp.ADD_SHAPE: {
+                // Below this client's own shapes the server hasn't ordered yet
+                shapes.add(op.getKind(), op.getX0(), op.getY0(), op.getX1(), op.getY1(), op.getArgb(), op.getWidth());
+                ShapeBase shape = shapes.get(shapes.size() - 1);
+                if (settled < shapes.size() - 1) {
+                    shapes.remove(shapes.size() - 1);
+                    shapes.add(settled, shape);
+                }
+                listener.shapeAdded(layer, settled, shape);
+                listener.areaChanged(layer, shapes.geometry(settled).getFillBounds(), false);
+                break;
+            }
+            case CollabOp.REMOVE_SHAPE: {
+                int index = find(shapes, settled, op);
+                if (index >= 0) {
+                    Rectangle area = shapes.geometry(index).getFillBounds();
+                    shapes.remove(index);
+                    listener.shapeRemoved(layer, index);
+                    listener.areaChanged(layer, area, false);
+                }
+                break;
+            }
+            case CollabOp.CLEAR_LAYER: {
+                Layer target = layers.get(layer);
+                if (settled == shapes.size()) {
+                    shapes.clear();
+                    listener.shapesCleared(layer);
+                } else {
+                    for (int i = settled - 1; i >= 0; i--) {
+                        shapes.remove(i);
+                        listener.shapeRemoved(layer, i);
+                    }
+                }
+                Arrays.fill(target.getPixels(), 0);
+                listener.areaChanged(layer, new Rectangle(0, 0, layers.getWidth(), layers.getHeight()), true);
+                break;
+            }
+            case CollabOp.STROKE_BEGIN: {
+                RemoteStroke previous = strokes.remove(origin);
+                if (previous != null) {
+                    previous.end();
+                }
+                strokes.put(origin, new RemoteStroke(layer, op));
+                break;
+            }
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Topmost shape below limit with exactly the op's fields, or -1
+     */
+    private static int find(ShapeStore shapes, int limit, CollabOp op) {
+        for (int i = limit - 1; i >= 0; i--) {
+            if (shapes.kind(i) == op.getKind() && shapes.x0(i) == op.getX0() && shapes.y0(i) == op.getY0()
+                    && shapes.x1(i) == op.getX1() && shapes.y1(i) == op.getY1()
+                    && shapes.argb(i) == op.getArgb() && shapes.strokeWidth(i) == op.getWidth()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private InFlight inFlight(int layer) {
+        return inFlight.computeIfAbsent(layer, l -> new InFlight());
+    }
+
+    private static class Batch {
+        final int origin;
+        final List<CollabOp> ops;
+
+        Batch(int origin, List<CollabOp> ops) {
+            this.origin = origin;
+            this.ops = ops;
+        }
+    }
+
+    /**
+     * This client's edits to one layer that the server has not relayed back
+     * yet: shapes added - always the top present ones of the list, in the
+     * order sent - and clears
+     */
+    private static class InFlight {
+        // One entry per add in flight; false once the shape was removed or cleared locally
+        final ArrayDeque<boolean[]> adds = new ArrayDeque<>();
+        int present;
+        int clears;
+
+        void added() {
+            adds.add(new boolean[] {true});
+            present++;
+        }
+
+        void removed(int index, int size) {
+            int k = index - (size - present);
+            if (k < 0) {
+                return;
+            }
+            for (boolean[] add : adds) {
+                if (add[0] && k-- == 0) {
+                    add[0] = false;
+                    present--;
+                    return;
+                }
+            }
+        }
+
+        void cleared() {
+            for (boolean[] add : adds) {
+                add[0] = false;
+            }
+            present = 0;
+        }
+
+        void confirmed() {
+            boolean[] add = adds.poll();
+            if (add != null && add[0]) {
+                present--;
+            }
+        }
+    }
+
+    /**
+     * A collaborator's stroke in progress, stamped the way a local one is
+     */
+    private class RemoteStroke {
+        private final int layer;
+        private final BrushType brush;
+        private final Color color;
+        private final int size;
+        private final DabEngine engine = new DabEngine();
+        private BufferedImage target;
+        private Graphics2D graphics;
+
+        RemoteStroke(int layer, CollabOp begin) {
+            this.layer = layer;
+            this.brush = begin.isErase() ? eraserBrush : normalBrush;
+            this.color = new Color(begin.getArgb(), true);
+            this.size = Math.max(1, begin.getBrushSize());
+        }
+
+        void segment(int x0, int y0, int x1, int y1) {
+            if (layer >= layers.size() || inFlight(layer).clears > 0) {
+                return;
+            }
+            BufferedImage image = layers.get(layer).getImage();
+            if (image != target) {
+                // First segment, or the layer's raster was swapped (undo) mid-stroke
+                end();
+                target = image;
+                if (!brush.beginStroke(engine, image, color, size)) {
+                    graphics = image.createGraphics();
+                    graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+                    graphics.setComposite(brush.getBrushComposite());
+                    graphics.setColor(brush.getBrushColor(color));
+                    graphics.setStroke(brush.getBrushStroke(size));
+                }
+            }
+            Point start = new Point(x0, y0);
+            Point end = new Point(x1, y1);
+            if (graphics != null) {
+                graphics.drawLine(x0, y0, x1, y1);
+            } else {
+                brush.strokeSegment(engine, start, end);
+            }
+            int pad = size / 2 + 2;
+            listener.areaChanged(layer, new Rectangle(Math.min(x0, x1) - pad, Math.min(y0, y1) - pad,
+                Math.abs(x1 - x0) + 2 * pad, Math.abs(y1 - y0) + 2 * pad), true);
+        }
+
+        void end() {
+            engine.endStroke();
+            if (graphics != null) {
+                graphics.dispose();
+                graphics = null;
+            }
+            target = null;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.drawingstudio.filters;
+
+/**
+ * Box blur: every pixel becomes the average of the square around it
+ */
+public class BoxBlur implements Filter {
+    private final float[] kernel;
+
+    /**
+     * @param radius Pixels on each side; the box is 2 * radius + 1 wide
+     */
+    public BoxBlur(int radius) {
+        this.kernel = Convolution.box(Math.max(1, radius));
+    }
+
+    @Override
+    public String getName() {
+        return "Box Blur";
+    }
+
+    @Override
+    public int getHalo() {
+        return kernel.length / 2;
+    }
+
+    @Override
+    public void filterTile(int[] source, int width, int height, int x0, int y0, int tileWidth, int tileHeight,
+                           int[] out, int outOffset, int outStride) {
+        float[][] blurred = Convolution.convolve(source, width, height, x0, y0, tileWidth, tileHeight, kernel, kernel);
+        GaussianBlur.writeTile(blurred, tileWidth, tileHeight, out, outOffset, outStride);
+    }
+}
@@ -0,0 +1,146 @@
+package com.drawingstudio.filters;
+
+import java.util.Arrays;
+
+/**
+ * Separable convolution of one tile, shared by the filters
+ * Pixels are read with premultiplied alpha, so transparent neighbours don't
+ * bleed black into what they are averaged with, and split into one float plane
+ * per channel (alpha, red, green, blue). The horizontal pass runs over the
+ * tile's rows plus a halo of rows above and below it - taken from the source,
+ * clamped at the raster edge - and the vertical pass reduces those back to the
+ * tile, so every tile is independent of its neighbours.
+ */
+final class Convolution {
+    static final int ALPHA = 0;
+    static final int RED = 1;
+    static final int GREEN = 2;
+    static final int BLUE = 3;
+
+    private Convolution() {
+    }
+
+    /**
+     * Premultiplied planes of the tile convolved with horizontal then vertical
+     * @param horizontal Odd-length kernel applied along rows
+     * @param vertical Odd-length kernel applied along columns
+     * @return Four planes of tileWidth * tileHeight values, row-major
+     */
+    static float[][] convolve(int[] source, int width, int height, int x0, int y0, int tileWidth, int tileHeight,
+                              float[] horizontal, float[] vertical) {
+        int hr = horizontal.length / 2;
+        int vr = vertical.length / 2;
+        int rows = tileHeight + 2 * vr;
+        int span = tileWidth + 2 * hr;
+        float[][] row = new float[4][span];
+        float[][] pass = new float[4][rows * tileWidth];
+        float[] sums = new float[tileWidth];
+
+        // Horizontal pass over the tile's rows and the halo rows
+        for (int r = 0; r < rows; r++) {
+            int sy = clamp(y0 - vr + r, height);
+            loadRow(source, sy * width, width, x0 - hr, span, row);
+            for (int c = 0; c < 4; c++) {
+                Arrays.fill(sums, 0f);
+                accumulate(row[c], 0, horizontal, sums, tileWidth, 1);
+                System.arraycopy(sums, 0, pass[c], r * tileWidth, tileWidth);
+            }
+        }
+
+        // Vertical pass back down to the tile, one kernel row at a time
+        float[][] result = new float[4][tileWidth * tileHeight];
+        for (int c = 0; c < 4; c++) {
+            for (int y = 0; y < tileHeight; y++) {
+                Arrays.fill(sums, 0f);
+                accumulate(pass[c], y * tileWidth, vertical, sums, tileWidth, tileWidth);
+                System.arraycopy(sums, 0, result[c], y * tileWidth, tileWidth);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * sums[x] += sum over k of kernel[k] * in[from + k * step + x], for x below length
+     * One weight at a time over a contiguous run, into a buffer indexed from 0,
+     * is the shape the JIT turns into SIMD multiply-adds; a per-pixel sum over
+     * the kernel, or a destination at an offset, is not.
+     */
+    private static void accumulate(float[] in, int from, float[] kernel, float[] sums, int length, int step) {
+        for (int k = 0; k < kernel.length; k++) {
+            float weight = kernel[k];
+            if (weight == 0) {
+                continue;
+            }
+            int offset = from + k * step;
+            for (int x = 0; x < length; x++) {
+                sums[x] += weight * in[offset + x];
+            }
+        }
+    }
+
+    /**
+     * Premultiplied channels of span pixels of one row starting at column x,
+     * with columns outside the raster clamped to its edge
+     */
+    private static void loadRow(int[] source, int offset, int width, int x, int span, float[][] row) {
+        for (int i = 0; i < span; i++) {
+            int p = source[offset + clamp(x + i, width)];
+            int a = p >>> 24;
+            float scale = a / 255f;
+            row[ALPHA][i] = a;
+            row[RED][i] = ((p >> 16) & 0xFF) * scale;
+            row[GREEN][i] = ((p >> 8) & 0xFF) * scale;
+            row[BLUE][i] = (p & 0xFF) * scale;
+        }
+    }
+
+    /**
+     * Normalized Gaussian kernel reaching three standard deviations out
+     */
+    static float[] gaussian(float sigma) {
+        int radius = Math.max(1, (int) Math.ceil(sigma * 3));
+        float[] kernel = new float[2 * radius + 1];
+        float sum = 0;
+        for (int i = -radius; i <= radius; i++) {
+            kernel[i + radius] = (float) Math.exp(-(i * i) / (2.0 * sigma * sigma));
+            sum += kernel[i + radius];
+        }
+        for (int i = 0; i < kernel.length; i++) {
+            kernel[i] /= sum;
+        }
+        return kernel;
+    }
+
+    /**
+     * Normalized box kernel 2 * radius + 1 wide
+     */
+    static float[] box(int radius) {
+        float[] kernel = new float[2 * radius + 1];
+        Arrays.fill(kernel, 1f / kernel.length);
+        return kernel;
+    }
+
+    /**
+     * Pack premultiplied channels (0-255 scale) back into non-premultiplied ARGB
+     */
+    static int pack(float a, float r, float g, float b) {
+        int alpha = Math.round(a);
+        if (alpha <= 0) {
+            return 0;
+        }
+        if (alpha > 255) {
+            alpha = 255;
+        }
+        float scale = 255f / alpha;
+        return (alpha << 24) | (channel(r * scale) << 16) | (channel(g * scale) << 8) | channel(b * scale);
+    }
+
+    static int channel(float value) {
+        int v = Math.round(value);
+        return v < 0 ? 0 : Math.min(v, 255);
+    }
+
+    static int clamp(int i, int size) {
+        return i < 0 ? 0 : Math.min(i, size - 1);
+    }
+}
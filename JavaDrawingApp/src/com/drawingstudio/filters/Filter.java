@@ -0,0 +1,33 @@
+package com.drawingstudio.filters;
+
+/**
+ * A raster filter that can be run one tile at a time
+ * The pipeline hands each tile the whole source raster, which is never written
+ * while the filter runs, so a tile may read up to getHalo() pixels past its own
+ * edges; results go to a separate output buffer.
+ */
+public interface Filter {
+    /**
+     * Name shown in the filter menu
+     */
+    String getName();
+
+    /**
+     * How far outside a tile the filter reads, in pixels
+     * FilterPipeline makes tiles larger for a wider halo.
+     */
+    int getHalo();
+
+    /**
+     * Filter one tile of source into out
+     * @param source Packed ARGB pixels of the whole raster (read only)
+     * @param x0 Left column of the tile
+     * @param y0 Top row of the tile
+     * @param tileWidth Tile width in pixels
+     * @param tileHeight Tile height in pixels
+     * @param out Destination pixels; the tile's top-left pixel goes to out[outOffset]
+     * @param outStride Ints between rows of out
+     */
+    void filterTile(int[] source, int width, int height, int x0, int y0, int tileWidth, int tileHeight,
+                    int[] out, int outOffset, int outStride);
+}
@@ -0,0 +1,126 @@
+package com.drawingstudio.filters;
+
+import java.awt.Rectangle;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs a filter over a raster in tiles on a fork/join pool
+ * The area is cut into square tiles and the tiles are split in halves between
+ * workers. Every tile reads the untouched source - its halo is simply the
+ * neighbouring source pixels - and writes into one output buffer the size of
+ * the area, which is copied back once every tile is done. Tiles share nothing,
+ * so the work scales with the number of workers.
+ * A tile's halo is read and filtered again by its neighbours, so tiles grow
+ * with the filter's halo to keep that repeated work small.
+ */
+public class FilterPipeline {
+    public static final String[] FILTER_NAMES = {"Gaussian Blur", "Box Blur", "Unsharp Mask", "Edge Detect"};
+
+    static final int TILE_SIZE = 128;
+    /** Tiles are at least this many times their halo across: 2 halos add at most a quarter */
+    private static final int TILE_PER_HALO = 8;
+
+    /**
+     * Filter for a name from FILTER_NAMES with the app's default settings, or null if unknown
+     */
+    public static Filter createFilter(String name) {
+        switch (name) {
+            case "Gaussian Blur":
+                return new GaussianBlur(3f);
+            case "Box Blur":
+                return new BoxBlur(4);
+            case "Unsharp Mask":
+                return new UnsharpMask(2f, 1f);
+            case "Edge Detect":
+                return new SobelEdges();
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Filter part of a raster in place on the common pool
+     * @param pixels Packed ARGB pixels, row-major with no padding
+     * @param area Part to filter, or null for the whole raster
+     * @return The area actually filtered (clipped to the raster), or null if empty
+     */
+    public static Rectangle apply(int[] pixels, int width, int height, Rectangle area, Filter filter) {
+        return apply(pixels, width, height, area, filter, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Filter part of a raster in place on the given pool
+     */
+    public static Rectangle apply(int[] pixels, int width, int height, Rectangle area, Filter filter,
+                                  ForkJoinPool pool) {
+        Rectangle bounds = new Rectangle(0, 0, width, height);
+        area = area == null ? bounds : area.intersection(bounds);
+        if (area.isEmpty()) {
+            return null;
+        }
+        int tileSize = tileSize(filter.getHalo());
+        int columns = (area.width + tileSize - 1) / tileSize;
+        int rows = (area.height + tileSize - 1) / tileSize;
+        int[] out = new int[area.width * area.height];
+        pool.invoke(new TileTask(pixels, width, height, area, filter, out, tileSize, columns, 0, columns * rows));
+
+        for (int y = 0; y < area.height; y++) {
+            System.arraycopy(out, y * area.width, pixels, (area.y + y) * width + area.x, area.width);
+        }
+        return area;
+    }
+
+    /**
+     * Side of the square tiles for a filter reading halo pixels past them
+     */
+    static int tileSize(int halo) {
+        return Math.max(TILE_SIZE, halo * TILE_PER_HALO);
+    }
+
+    /**
+     * A run of tiles, numbered row by row; halves are forked until one tile is left
+     */
+    private static class TileTask extends RecursiveAction {
+        private final int[] pixels;
+        private final int width;
+        private final int height;
+        private final Rectangle area;
+        private final Filter filter;
+        private final int[] out;
+        private final int tileSize;
+        private final int columns;
+        private final int from;
+        private final int to;
+
+        TileTask(int[] pixels, int width, int height, Rectangle area, Filter filter, int[] out,
+                 int tileSize, int columns, int from, int to) {
+            this.pixels = pixels;
+            this.width = width;
+            this.height = height;
+            this.area = area;
+            this.filter = filter;
+            this.out = out;
+            this.tileSize = tileSize;
+            this.columns = columns;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new TileTask(pixels, width, height, area, filter, out, tileSize, columns, from, middle),
+                    new TileTask(pixels, width, height, area, filter, out, tileSize, columns, middle, to));
+                return;
+            }
+            int tx = (from % columns) * tileSize;
+            int ty = (from / columns) * tileSize;
+            int tileWidth = Math.min(tileSize, area.width - tx);
+            int tileHeight = Math.min(tileSize, area.height - ty);
+            filter.filterTile(pixels, width, height, area.x + tx, area.y + ty, tileWidth, tileHeight,
+                out, ty * area.width + tx, area.width);
+        }
+    }
+}
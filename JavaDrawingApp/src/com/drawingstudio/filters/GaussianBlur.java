@@ -0,0 +1,46 @@
+package com.drawingstudio.filters;
+
+/**
+ * Gaussian blur, as a horizontal and a vertical pass of the same kernel
+ */
+public class GaussianBlur implements Filter {
+    private final float[] kernel;
+
+    /**
+     * @param sigma Standard deviation in pixels; the kernel reaches 3 sigma out
+     */
+    public GaussianBlur(float sigma) {
+        this.kernel = Convolution.gaussian(sigma);
+    }
+
+    @Override
+    public String getName() {
+        return "Gaussian Blur";
+    }
+
+    @Override
+    public int getHalo() {
+        return kernel.length / 2;
+    }
+
+    @Override
+    public void filterTile(int[] source, int width, int height, int x0, int y0, int tileWidth, int tileHeight,
+                           int[] out, int outOffset, int outStride) {
+        float[][] blurred = Convolution.convolve(source, width, height, x0, y0, tileWidth, tileHeight, kernel, kernel);
+        writeTile(blurred, tileWidth, tileHeight, out, outOffset, outStride);
+    }
+
+    /**
+     * Pack premultiplied planes into the output tile
+     */
+    static void writeTile(float[][] planes, int tileWidth, int tileHeight, int[] out, int outOffset, int outStride) {
+        for (int y = 0; y < tileHeight; y++) {
+            int i = y * tileWidth;
+            int o = outOffset + y * outStride;
+            for (int x = 0; x < tileWidth; x++, i++) {
+                out[o + x] = Convolution.pack(planes[Convolution.ALPHA][i], planes[Convolution.RED][i],
+                    planes[Convolution.GREEN][i], planes[Convolution.BLUE][i]);
+            }
+        }
+    }
+}
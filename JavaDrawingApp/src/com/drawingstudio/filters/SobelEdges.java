@@ -0,0 +1,46 @@
+package com.drawingstudio.filters;
+
+/**
+ * Sobel edge detection
+ * Both Sobel kernels are separable (a [1 2 1] smoothing times a [-1 0 1]
+ * difference), so the two gradients are two separable passes. Each channel's
+ * gradient magnitude becomes its value - scaled so a full step reads 255 - and
+ * the pixel is as opaque as its strongest edge, leaving flat areas transparent.
+ */
+public class SobelEdges implements Filter {
+    private static final float[] SMOOTH = {1, 2, 1};
+    private static final float[] DIFFERENCE = {-1, 0, 1};
+    private static final float SCALE = 0.25f;
+
+    @Override
+    public String getName() {
+        return "Edge Detect";
+    }
+
+    @Override
+    public int getHalo() {
+        return 1;
+    }
+
+    @Override
+    public void filterTile(int[] source, int width, int height, int x0, int y0, int tileWidth, int tileHeight,
+                           int[] out, int outOffset, int outStride) {
+        float[][] gx = Convolution.convolve(source, width, height, x0, y0, tileWidth, tileHeight, DIFFERENCE, SMOOTH);
+        float[][] gy = Convolution.convolve(source, width, height, x0, y0, tileWidth, tileHeight, SMOOTH, DIFFERENCE);
+        float[] magnitude = new float[4];
+        for (int y = 0; y < tileHeight; y++) {
+            int i = y * tileWidth;
+            int o = outOffset + y * outStride;
+            for (int x = 0; x < tileWidth; x++, i++) {
+                float strongest = 0;
+                for (int c = 0; c < 4; c++) {
+                    float m = (float) Math.sqrt(gx[c][i] * gx[c][i] + gy[c][i] * gy[c][i]) * SCALE;
+                    magnitude[c] = Math.min(m, 255);
+                    strongest = Math.max(strongest, magnitude[c]);
+                }
+                out[o + x] = Convolution.pack(strongest, magnitude[Convolution.RED],
+                    magnitude[Convolution.GREEN], magnitude[Convolution.BLUE]);
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.drawingstudio.filters;
+
+/**
+ * Unsharp mask: adds back the difference between the image and a Gaussian
+ * blur of it, which steepens edges
+ * Works on premultiplied colour and leaves alpha as it was, so colour never
+ * exceeds what the pixel's coverage allows.
+ */
+public class UnsharpMask implements Filter {
+    private final float[] kernel;
+    private final float amount;
+
+    /**
+     * @param sigma Blur radius that decides how wide the edges sharpened are
+     * @param amount How much of the difference is added (1 = as much again)
+     */
+    public UnsharpMask(float sigma, float amount) {
+        this.kernel = Convolution.gaussian(sigma);
+        this.amount = amount;
+    }
+
+    @Override
+    public String getName() {
+        return "Unsharp Mask";
+    }
+
+    @Override
+    public int getHalo() {
+        return kernel.length / 2;
+    }
+
+    @Override
+    public void filterTile(int[] source, int width, int height, int x0, int y0, int tileWidth, int tileHeight,
+                           int[] out, int outOffset, int outStride) {
+        float[][] blurred = Convolution.convolve(source, width, height, x0, y0, tileWidth, tileHeight, kernel, kernel);
+        for (int y = 0; y < tileHeight; y++) {
+            int i = y * tileWidth;
+            int s = (y0 + y) * width + x0;
+            int o = outOffset + y * outStride;
+            for (int x = 0; x < tileWidth; x++, i++) {
+                int p = source[s + x];
+                int a = p >>> 24;
+                if (a == 0) {
+                    out[o + x] = 0;
+                    continue;
+                }
+                float scale = a / 255f;
+                float r = sharpen(((p >> 16) & 0xFF) * scale, blurred[Convolution.RED][i], a);
+                float g = sharpen(((p >> 8) & 0xFF) * scale, blurred[Convolution.GREEN][i], a);
+                float b = sharpen((p & 0xFF) * scale, blurred[Convolution.BLUE][i], a);
+                out[o + x] = Convolution.pack(a, r, g, b);
+            }
+        }
+    }
+
+    private float sharpen(float original, float blurred, int alpha) {
+        float value = original + amount * (original - blurred);
+        return value < 0 ? 0 : Math.min(value, alpha);
+    }
+}
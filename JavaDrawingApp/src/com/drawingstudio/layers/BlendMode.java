@@ -0,0 +1,38 @@
+package com.drawingstudio.layers;
+
+/**
+ * How a layer's colours combine with the layers beneath it
+ * Each mode gives the blended colour B(backdrop, source) per channel; the
+ * layer's alpha and opacity then decide how far the result moves from the
+ * backdrop towards B.
+ */
+public enum BlendMode {
+    NORMAL("Normal"),
+    MULTIPLY("Multiply"),
+    SCREEN("Screen"),
+    OVERLAY("Overlay"),
+    DARKEN("Darken"),
+    LIGHTEN("Lighten");
+
+    private final String displayName;
+
+    BlendMode(String displayName) {
+        this.displayName = displayName;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    /**
+     * Mode with the given display name, or NORMAL if there is none
+     */
+    public static BlendMode fromDisplayName(String name) {
+        for (BlendMode mode : values()) {
+            if (mode.displayName.equals(name)) {
+                return mode;
+            }
+        }
+        return NORMAL;
+    }
+}
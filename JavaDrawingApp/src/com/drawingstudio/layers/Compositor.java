@@ -0,0 +1,133 @@
+package com.drawingstudio.layers;
+
+/**
+ * Blends rows of layer pixels onto an opaque backdrop
+ * Sources are non-premultiplied packed ARGB (what layers hold), destinations
+ * packed RGB whose alpha bits are ignored; both are runs of ints, so a whole
+ * unpadded image is one run. Every implementation produces exactly the same
+ * colours. get() returns the scalar kernels until prepare() has loaded the
+ * SIMD ones - which needs the jdk.incubator.vector module at run time
+ * (--add-modules jdk.incubator.vector) - and run them until compiled: cold,
+ * they are several times slower than the scalar loop, so using them straight
+ * away would slow the first frames down rather than up.
+ */
+public abstract class Compositor {
+    private static final String VECTOR_CLASS = "com.drawingstudio.layers.VectorCompositor";
+    private static final int WARM_UP_PIXELS = 4096;
+    private static final int WARM_UP_RUNS = 1000;   // per mode; enough for the JIT to settle
+
+    private static volatile Compositor best = new ScalarCompositor();
+    private static boolean prepared;
+
+    /**
+     * Fastest compositor ready in this JVM
+     */
+    public static Compositor get() {
+        return best;
+    }
+
+    /**
+     * Load and warm up the SIMD kernels if the module is present, then make
+     * them what get() returns
+     * Takes a second or two of CPU the first time, so the application calls
+     * it in the background once its window is up; later calls return at once.
+     * Since every implementation gives the same colours, the switch doesn't
+     * change anything on screen.
+     */
+    public static synchronized void prepare() {
+        if (prepared) {
+            return;
+        }
+        prepared = true;
+        Compositor vector = load();
+        if (vector != null) {
+            warmUp(vector);
+            best = vector;
+        }
+    }
+
+    /**
+     * Plain Java kernels, always available
+     */
+    public static Compositor scalar() {
+        return new ScalarCompositor();
+    }
+
+    private static Compositor load() {
+        try {
+            // Loaded by name so the class is only linked when the module is present
+            Compositor vector = (Compositor) Class.forName(VECTOR_CLASS).getDeclaredConstructor().newInstance();
+            if (vector.isUseful()) {
+                return vector;
+            }
+        } catch (Exception | LinkageError e) {
+            // Module not added or class not compiled - keep the scalar kernels
+        }
+        return null;
+    }
+
+    /**
+     * Run every mode over pixels of mixed alpha until the JIT has compiled it
+     */
+    private static void warmUp(Compositor compositor) {
+        int[] src = new int[WARM_UP_PIXELS];
+        int[] dst = new int[WARM_UP_PIXELS];
+        for (int i = 0; i < src.length; i++) {
+            // Transparent, translucent and opaque runs, so every branch is taken
+            int alpha = (i >> 6) % 3 == 0 ? 0 : (i >> 6) % 3 == 1 ? 0x80 : 0xFF;
+            src[i] = alpha << 24 | (i * 0x9E3779B1 >>> 8);
+        }
+        for (BlendMode mode : BlendMode.values()) {
+            for (int run = 0; run < WARM_UP_RUNS; run++) {
+                compositor.blend(mode, src, 0, dst, 0, src.length - (run & 7), run % 2 == 0 ? 255 : 191);
+            }
+        }
+    }
+
+    /**
+     * Short description for logs and the performance overlay
+     */
+    public abstract String getName();
+
+    /**
+     * Whether this implementation should be preferred over the scalar one
+     */
+    protected boolean isUseful() {
+        return true;
+    }
+
+    /**
+     * Blend length source pixels onto the destination
+     * @param opacity Layer opacity, 0 (invisible) to 255 (as its alpha says)
+     */
+    public abstract void blend(BlendMode mode, int[] src, int srcOffset, int[] dst, int dstOffset,
+                               int length, int opacity);
+
+    /**
+     * x / 255 rounded to nearest, exact for 0 <= x <= 65535 + 127
+     */
+    static int div255(int x) {
+        x += 128;
+        return (x + (x >> 8)) >> 8;
+    }
+
+    /**
+     * Blended channel B(d, s) for one mode - the reference every kernel matches
+     */
+    static int blendChannel(BlendMode mode, int d, int s) {
+        switch (mode) {
+            case MULTIPLY:
+                return div255(s * d);
+            case SCREEN:
+                return s + d - div255(s * d);
+            case OVERLAY:
+                return d < 128 ? div255(2 * s * d) : 255 - div255(2 * (255 - s) * (255 - d));
+            case DARKEN:
+                return Math.min(s, d);
+            case LIGHTEN:
+                return Math.max(s, d);
+            default:
+                return s;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.drawingstudio.layers;
+
+import com.drawingstudio.shapes.ShapeStore;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+
+/**
+ * One layer of the document: a translucent raster and the shapes drawn on it
+ * The raster is packed int ARGB, so brush, fill and import code can work on
+ * its pixels directly, and erasing clears alpha rather than painting a colour.
+ */
+public class Layer {
+    private static int nextId = 1;
+
+    private final int id;
+    private String name;
+    private boolean visible = true;
+    private float opacity = 1.0f;
+    private BlendMode blendMode = BlendMode.NORMAL;
+    private BufferedImage image;
+    private final ShapeStore shapes = new ShapeStore();
+
+    public Layer(String name, int width, int height) {
+        this(name, new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB));
+    }
+
+    /**
+     * Layer over an existing TYPE_INT_ARGB raster (used by recovery and undo)
+     */
+    public Layer(String name, BufferedImage image) {
+        this.id = newId();
+        this.name = name;
+        this.image = image;
+    }
+
+    private static synchronized int newId() {
+        return nextId++;
+    }
+
+    /**
+     * Identity that survives reordering - history entries are tagged with it
+     */
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public boolean isVisible() {
+        return visible;
+    }
+
+    public void setVisible(boolean visible) {
+        this.visible = visible;
+    }
+
+    public float getOpacity() {
+        return opacity;
+    }
+
+    public void setOpacity(float opacity) {
+        this.opacity = Math.max(0f, Math.min(1f, opacity));
+    }
+
+    /**
+     * Opacity as the 0-255 weight the compositor takes
+     */
+    public int getOpacity255() {
+        return Math.round(opacity * 255);
+    }
+
+    public BlendMode getBlendMode() {
+        return blendMode;
+    }
+
+    public void setBlendMode(BlendMode blendMode) {
+        this.blendMode = blendMode == null ? BlendMode.NORMAL : blendMode;
+    }
+
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    /**
+     * Packed ARGB pixels of the raster, row-major with no padding
+     */
+    public int[] getPixels() {
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    public ShapeStore getShapes() {
+        return shapes;
+    }
+
+    /**
+     * Swap in a new raster of the same type (undo, redo, recovery)
+     */
+    public void setImage(BufferedImage image) {
+        this.image = image;
+    }
+
+    /**
+     * Make the whole raster transparent and remove every shape
+     */
+    public void clear() {
+        Arrays.fill(getPixels(), 0);
+        shapes.clear();
+    }
+
+    /**
+     * Draw the raster and then the shapes at full opacity
+     * @param painter Offered each shape first (may be null)
+     */
+    public void paint(Graphics2D g2d, ShapeStore.ShapePainter painter) {
+        g2d.drawImage(image, 0, 0, null);
+        shapes.drawAll(g2d, painter);
+    }
+}
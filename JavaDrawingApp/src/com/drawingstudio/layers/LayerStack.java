@@ -0,0 +1,491 @@
+package com.drawingstudio.layers;
+
+import com.drawingstudio.memory.MemoryConsumer;
+import com.drawingstudio.memory.MemoryGovernor;
+import com.drawingstudio.shapes.ShapeStore;
+import com.drawingstudio.utils.SurfacePool;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.*;
+import java.util.List;
+
+/**
+ * Ordered layers of the document, bottom first, with one active layer
+ * Only the active layer is ever edited, so everything under it is kept
+ * flattened (over the white page) in one opaque pixel array and everything
+ * over it as a few cached blend passes. A repaint is then a copy, the active
+ * layer and those passes, all through the Compositor kernels; the caches are
+ * rebuilt only when the active layer changes or another layer's content,
+ * order, visibility, opacity or blend mode does. Under memory pressure the
+ * governor may drop the caches; the next paint builds them again.
+ */
+public class LayerStack implements MemoryConsumer {
+    private static final int PAGE = 0xFFFFFFFF;
+
+    private final int width;
+    private final int height;
+    private final List<Layer> layers = new ArrayList<>();
+    private int active;
+    private int created;
+
+    // Cached composites of the layers below and above the active one
+    private int[] below;
+    private final List<Pass> abovePasses = new ArrayList<>();
+    private final List<BufferedImage> aboveImages = new ArrayList<>();
+    private boolean belowValid;
+    private boolean aboveValid;
+    private BufferedImage scratch;  // a layer flattened with its shapes
+
+    public LayerStack(int width, int height) {
+        this.width = width;
+        this.height = height;
+        layers.add(newLayer("Background"));
+        MemoryGovernor.shared().register("Layer composites", MemoryGovernor.Priority.CACHE, this);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Blend kernels in use (SIMD or scalar) - fetched each frame, since the
+     * SIMD ones only take over once warmed up
+     */
+    public Compositor getCompositor() {
+        return Compositor.get();
+    }
+
+    public int size() {
+        return layers.size();
+    }
+
+    public Layer get(int index) {
+        return layers.get(index);
+    }
+
+    /**
+     * Layer with the given id, or null if it has been deleted
+     */
+    public Layer findById(int id) {
+        for (Layer layer : layers) {
+            if (layer.getId() == id) {
+                return layer;
+            }
+        }
+        return null;
+    }
+
+    public int indexOf(Layer layer) {
+        return layers.indexOf(layer);
+    }
+
+    public Layer getActive() {
+        return layers.get(active);
+    }
+
+    public int getActiveIndex() {
+        return active;
+    }
+
+    public void setActive(int index) {
+        if (index != active && index >= 0 && index < layers.size()) {
+            active = index;
+            invalidate();
+        }
+    }
+
+    /**
+     * Add an empty layer just above the active one and make it active
+     */
+    public Layer addLayer() {
+        Layer layer = newLayer("Layer " + created);
+        layers.add(active + 1, layer);
+        active++;
+        invalidate();
+        return layer;
+    }
+
+    /**
+     * Remove a layer; the last remaining layer cannot be removed
+     * @return The removed layer, or null if nothing was removed
+     */
+    public Layer removeLayer(int index) {
+        if (layers.size() <= 1 || index < 0 || index >= layers.size()) {
+            return null;
+        }
+        Layer removed = layers.remove(index);
+        if (active > index || active == layers.size()) {
+            active--;
+        }
+        invalidate();
+        return removed;
+    }
+
+    /**
+     * Move a layer one step up (towards the top) or down; the active layer stays active
+     * @return true if the layer moved
+     */
+    public boolean moveLayer(int index, boolean up) {
+        int target = up ? index + 1 : index - 1;
+        if (index < 0 || index >= layers.size() || target < 0 || target >= layers.size()) {
+            return false;
+        }
+        Collections.swap(layers, index, target);
+        if (active == index) {
+            active = target;
+        } else if (active == target) {
+            active = index;
+        }
+        invalidate();
+        return true;
+    }
+
+    public void setVisible(int index, boolean visible) {
+        layers.get(index).setVisible(visible);
+        layerChanged(index);
+    }
+
+    public void setOpacity(int index, float opacity) {
+        layers.get(index).setOpacity(opacity);
+        layerChanged(index);
+    }
+
+    public void setBlendMode(int index, BlendMode mode) {
+        layers.get(index).setBlendMode(mode);
+        layerChanged(index);
+    }
+
+    /**
+     * Replace every layer (load, recovery)
+     */
+    public void setLayers(List<Layer> newLayers, int activeIndex) {
+        if (newLayers.isEmpty()) {
+            return;
+        }
+        layers.clear();
+        layers.addAll(newLayers);
+        active = Math.max(0, Math.min(activeIndex, layers.size() - 1));
+        invalidate();
+    }
+
+    /**
+     * Back to a single empty background layer
+     */
+    public void reset() {
+        created = 0;
+        setLayers(Collections.singletonList(newLayer("Background")), 0);
+    }
+
+    private Layer newLayer(String name) {
+        created++;
+        return new Layer(name, width, height);
+    }
+
+    /**
+     * Content of a layer changed other than through the active layer
+     * (e.g. undo on another layer) - drops the composite that holds it
+     */
+    public void layerChanged(Layer layer) {
+        layerChanged(layers.indexOf(layer));
+    }
+
+    private void layerChanged(int index) {
+        if (index < active) {
+            belowValid = false;
+        } else if (index > active) {
+            aboveValid = false;
+        }
+    }
+
+    /**
+     * Drop both cached composites
+     */
+    public void invalidate() {
+        belowValid = false;
+        aboveValid = false;
+    }
+
+    /**
+     * Bytes held by the cached composites and the scratch image
+     */
+    @Override
+    public long getMemoryBytes() {
+        long pixels = (below == null ? 0 : below.length) + (scratch == null ? 0 : (long) width * height)
+            + (long) aboveImages.size() * width * height;
+        return 4 * pixels;
+    }
+
+    /**
+     * Drop the caches; they are rebuilt by the next paint
+     */
+    @Override
+    public long reclaim(long bytes, boolean evict) {
+        long freed = getMemoryBytes();
+        below = null;
+        scratch = null;
+        aboveImages.clear();
+        abovePasses.clear();
+        invalidate();
+        return freed;
+    }
+
+    /**
+     * Paint the document into frame (TYPE_INT_RGB, the size of the stack): the
+     * cached composite below, the active layer, then the passes above
+     * Event thread only - the caches are rebuilt here when stale.
+     * @param painter Offered each shape of the active layer first (may be null)
+     */
+    public void paint(BufferedImage frame, ShapeStore.ShapePainter painter) {
+        paint(frame, painter, null);
+    }
+
+    /**
+     * Paint only the part of the document around area, leaving the rest of
+     * frame as it was
+     * The area is first grown until no shape of the active layer crosses its
+     * edge, so the pixels come out exactly as a full paint would make them.
+     * @param area Part that changed, or null for everything
+     * @return The part of frame actually repainted
+     */
+    public Rectangle paint(BufferedImage frame, ShapeStore.ShapePainter painter, Rectangle area) {
+        Rectangle bounds = bounds();
+        Layer layer = layers.get(active);
+        area = area == null ? bounds : layer.getShapes().coverArea(area, bounds);
+        if (area.isEmpty()) {
+            return area;
+        }
+        if (!belowValid) {
+            if (below == null) {
+                below = new int[width * height];
+            }
+            Arrays.fill(below, PAGE);
+            Compositor compositor = Compositor.get();
+            for (int i = 0; i < active; i++) {
+                Layer under = layers.get(i);
+                if (under.isVisible()) {
+                    compositor.blend(under.getBlendMode(), flatten(under, scratch(), null, bounds), 0,
+                        below, 0, below.length, under.getOpacity255());
+                }
+            }
+            belowValid = true;
+        }
+        if (!aboveValid) {
+            buildAbovePasses();
+            aboveValid = true;
+        }
+
+        int[] pixels = ((DataBufferInt) frame.getRaster().getDataBuffer()).getData();
+        for (int y = area.y; y < area.y + area.height; y++) {
+            System.arraycopy(below, y * width + area.x, pixels, y * width + area.x, area.width);
+        }
+
+        if (layer.isVisible() && layer.getOpacity255() > 0) {
+            if (layer.getBlendMode() == BlendMode.NORMAL && layer.getOpacity255() == 255) {
+                // Raster through the kernel, shapes straight onto the frame
+                blendArea(BlendMode.NORMAL, layer.getPixels(), pixels, area, 255);
+                if (!layer.getShapes().isEmpty()) {
+                    Graphics2D g = createGraphics(frame, area);
+                    layer.getShapes().drawAll(g, painter);
+                    g.dispose();
+                }
+            } else {
+                blendArea(layer.getBlendMode(), flatten(layer, scratch(), painter, area), pixels, area,
+                    layer.getOpacity255());
+            }
+        }
+
+        for (Pass pass : abovePasses) {
+            blendArea(pass.mode, pass.pixels, pixels, area, pass.opacity);
+        }
+        return area;
+    }
+
+    private void blendArea(BlendMode mode, int[] src, int[] dst, Rectangle area, int opacity) {
+        Compositor compositor = Compositor.get();
+        if (area.x == 0 && area.width == width) {
+            // Whole rows are one run
+            int offset = area.y * width;
+            compositor.blend(mode, src, offset, dst, offset, area.height * width, opacity);
+            return;
+        }
+        for (int y = area.y; y < area.y + area.height; y++) {
+            int offset = y * width + area.x;
+            compositor.blend(mode, src, offset, dst, offset, area.width, opacity);
+        }
+    }
+
+    /**
+     * Composite rows [y, y + rows) of every visible layer over the page into
+     * pixels (packed RGB, width * rows), without touching the caches - safe to
+     * call from several threads at once (export bands)
+     */
+    public void render(int[] pixels, int y, int rows) {
+        int length = width * rows;
+        Arrays.fill(pixels, 0, length, PAGE);
+        Compositor compositor = Compositor.get();
+        BufferedImage band = null;
+        for (Layer layer : new ArrayList<>(layers)) {
+            if (!layer.isVisible()) {
+                continue;
+            }
+            if (layer.getShapes().isEmpty()) {
+                compositor.blend(layer.getBlendMode(), layer.getPixels(), y * width,
+                    pixels, 0, length, layer.getOpacity255());
+                continue;
+            }
+            // Flatten just this band of the layer: raster rows, then its shapes
+            if (band == null) {
+                band = SurfacePool.shared().lease(width, rows, BufferedImage.TYPE_INT_ARGB);
+            }
+            int[] flat = ((DataBufferInt) band.getRaster().getDataBuffer()).getData();
+            System.arraycopy(layer.getPixels(), y * width, flat, 0, length);
+            Graphics2D g = createGraphics(band);
+            g.translate(0, -y);
+            g.clipRect(0, y, width, rows);
+            layer.getShapes().drawAll(g);
+            g.dispose();
+            compositor.blend(layer.getBlendMode(), flat, 0, pixels, 0, length, layer.getOpacity255());
+        }
+        SurfacePool.shared().release(band);
+    }
+
+    /**
+     * Turn the layers above the active one into blend passes
+     * Consecutive normal layers are merged into one translucent image with
+     * Java2D, since source-over can be grouped; any other mode depends on
+     * what is under it, so such a layer gets a pass of its own.
+     */
+    private void buildAbovePasses() {
+        List<BufferedImage> spare = new ArrayList<>(aboveImages);
+        aboveImages.clear();
+        abovePasses.clear();
+        int i = active + 1;
+        while (i < layers.size()) {
+            Layer layer = layers.get(i);
+            if (!layer.isVisible() || layer.getOpacity255() == 0) {
+                i++;
+                continue;
+            }
+            int end = i + 1;
+            if (layer.getBlendMode() == BlendMode.NORMAL) {
+                while (end < layers.size() && (layers.get(end).getBlendMode() == BlendMode.NORMAL
+                        || !layers.get(end).isVisible())) {
+                    end++;
+                }
+            }
+            BufferedImage image = spare.isEmpty()
+                ? new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB)
+                : spare.remove(spare.size() - 1);
+            if (end - i == 1) {
+                abovePasses.add(new Pass(layer.getBlendMode(), flatten(layer, image, null, bounds()),
+                    layer.getOpacity255()));
+                if (layer.getShapes().isEmpty()) {
+                    spare.add(image);   // the raster itself was used
+                    i = end;
+                    continue;
+                }
+            } else {
+                merge(image, i, end);
+                abovePasses.add(new Pass(BlendMode.NORMAL, pixelsOf(image), 255));
+            }
+            aboveImages.add(image);
+            i = end;
+        }
+    }
+
+    /**
+     * Source-over the visible layers [from, to) into a cleared translucent image
+     */
+    private void merge(BufferedImage image, int from, int to) {
+        Graphics2D g = createGraphics(image);
+        g.setComposite(AlphaComposite.Clear);
+        g.fillRect(0, 0, width, height);
+        for (int i = from; i < to; i++) {
+            Layer layer = layers.get(i);
+            if (!layer.isVisible() || layer.getOpacity255() == 0) {
+                continue;
+            }
+            if (layer.getOpacity255() == 255) {
+                g.setComposite(AlphaComposite.SrcOver);
+                layer.paint(g, null);
+            } else {
+                // Flattened first so the layer's own shapes don't show through each other
+                g.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, layer.getOpacity()));
+                BufferedImage flat = layer.getImage();
+                if (!layer.getShapes().isEmpty()) {
+                    flat = scratch();
+                    flatten(layer, flat, null, bounds());
+                }
+                g.drawImage(flat, 0, 0, null);
+            }
+        }
+        g.dispose();
+    }
+
+    /**
+     * Pixels of the layer with its shapes drawn in: the raster itself when the
+     * layer has no shapes, otherwise a copy in image with the shapes on top
+     * (only within area, which no shape may cross)
+     */
+    private int[] flatten(Layer layer, BufferedImage image, ShapeStore.ShapePainter painter, Rectangle area) {
+        if (layer.getShapes().isEmpty()) {
+            return layer.getPixels();
+        }
+        int[] pixels = pixelsOf(image);
+        int[] raster = layer.getPixels();
+        for (int y = area.y; y < area.y + area.height; y++) {
+            System.arraycopy(raster, y * width + area.x, pixels, y * width + area.x, area.width);
+        }
+        Graphics2D g = createGraphics(image, area);
+        layer.getShapes().drawAll(g, painter);
+        g.dispose();
+        return pixels;
+    }
+
+    private BufferedImage scratch() {
+        if (scratch == null) {
+            scratch = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        }
+        return scratch;
+    }
+
+    private static int[] pixelsOf(BufferedImage image) {
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    private Rectangle bounds() {
+        return new Rectangle(0, 0, width, height);
+    }
+
+    private Graphics2D createGraphics(BufferedImage image) {
+        return createGraphics(image, bounds());
+    }
+
+    private Graphics2D createGraphics(BufferedImage image, Rectangle clip) {
+        Graphics2D g = image.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        // An explicit clip lets shapes fully inside it reuse their cached stroked outlines
+        g.setClip(clip);
+        return g;
+    }
+
+    /**
+     * One blend of cached pixels onto the frame
+     */
+    private static final class Pass {
+        final BlendMode mode;
+        final int[] pixels;
+        final int opacity;
+
+        Pass(BlendMode mode, int[] pixels, int opacity) {
+            this.mode = mode;
+            this.pixels = pixels;
+            this.opacity = opacity;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.drawingstudio.layers;
+
+/**
+ * Plain Java blend kernels, one pixel at a time
+ * Fully transparent source pixels are skipped, and opaque normal pixels are
+ * copied, so sparse layers cost little more than a scan.
+ */
+class ScalarCompositor extends Compositor {
+
+    @Override
+    public String getName() {
+        return "scalar";
+    }
+
+    @Override
+    public void blend(BlendMode mode, int[] src, int srcOffset, int[] dst, int dstOffset, int length, int opacity) {
+        if (opacity <= 0) {
+            return;
+        }
+        if (mode == BlendMode.NORMAL) {
+            blendNormal(src, srcOffset, dst, dstOffset, length, opacity);
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            int s = src[srcOffset + i];
+            int a = div255((s >>> 24) * opacity);
+            if (a == 0) {
+                continue;
+            }
+            int d = dst[dstOffset + i];
+            int dr = (d >> 16) & 0xFF;
+            int dg = (d >> 8) & 0xFF;
+            int db = d & 0xFF;
+            int br = blendChannel(mode, dr, (s >> 16) & 0xFF);
+            int bg = blendChannel(mode, dg, (s >> 8) & 0xFF);
+            int bb = blendChannel(mode, db, s & 0xFF);
+            dst[dstOffset + i] = mix(dr, dg, db, br, bg, bb, a);
+        }
+    }
+
+    private static void blendNormal(int[] src, int srcOffset, int[] dst, int dstOffset, int length, int opacity) {
+        for (int i = 0; i < length; i++) {
+            int s = src[srcOffset + i];
+            int a = div255((s >>> 24) * opacity);
+            if (a == 0) {
+                continue;
+            }
+            if (a == 255) {
+                dst[dstOffset + i] = s | 0xFF000000;
+                continue;
+            }
+            int d = dst[dstOffset + i];
+            dst[dstOffset + i] = mix((d >> 16) & 0xFF, (d >> 8) & 0xFF, d & 0xFF,
+                (s >> 16) & 0xFF, (s >> 8) & 0xFF, s & 0xFF, a);
+        }
+    }
+
+    /**
+     * Move the backdrop towards the blended colour by alpha a
+     */
+    private static int mix(int dr, int dg, int db, int br, int bg, int bb, int a) {
+        int keep = 255 - a;
+        int r = div255(dr * keep + br * a);
+        int g = div255(dg * keep + bg * a);
+        int b = div255(db * keep + bb * a);
+        return 0xFF000000 | (r << 16) | (g << 8) | b;
+    }
+}
@@ -0,0 +1,223 @@
+package com.drawingstudio.layers;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD blend kernels on the incubating Vector API
+ * A vector of packed pixels is split into one int lane per channel, blended
+ * with the same integer arithmetic as the scalar kernels, and packed again;
+ * a lane whose source is fully transparent works out to its own backdrop, so
+ * no mask is needed to match the scalar loop that skips it. Vectors that are
+ * transparent throughout are skipped after one compare. The leftover tail of
+ * each run goes through the scalar kernels.
+ * Each mode has its own small loop: with the mode switch inside one shared
+ * loop the JIT stops inlining and every vector ends up boxed on the heap.
+ * Only loaded (by name, from Compositor) when the jdk.incubator.vector module
+ * is present; compile with --add-modules jdk.incubator.vector.
+ */
+class VectorCompositor extends Compositor {
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+    private static final Compositor TAIL = new ScalarCompositor();
+
+    @Override
+    public String getName() {
+        return "vector (" + SPECIES.vectorBitSize() + "-bit)";
+    }
+
+    @Override
+    protected boolean isUseful() {
+        return SPECIES.length() >= 4;
+    }
+
+    @Override
+    public void blend(BlendMode mode, int[] src, int srcOffset, int[] dst, int dstOffset, int length, int opacity) {
+        if (opacity <= 0) {
+            return;
+        }
+        int done;
+        switch (mode) {
+            case MULTIPLY:
+                done = multiply(src, srcOffset, dst, dstOffset, length, opacity);
+                break;
+            case SCREEN:
+                done = screen(src, srcOffset, dst, dstOffset, length, opacity);
+                break;
+            case OVERLAY:
+                done = overlay(src, srcOffset, dst, dstOffset, length, opacity);
+                break;
+            case DARKEN:
+                done = darken(src, srcOffset, dst, dstOffset, length, opacity);
+                break;
+            case LIGHTEN:
+                done = lighten(src, srcOffset, dst, dstOffset, length, opacity);
+                break;
+            default:
+                done = normal(src, srcOffset, dst, dstOffset, length, opacity);
+                break;
+        }
+        if (done < length) {
+            TAIL.blend(mode, src, srcOffset + done, dst, dstOffset + done, length - done, opacity);
+        }
+    }
+
+    // One loop per mode; each returns how many pixels it blended
+
+    private static int normal(int[] src, int srcOffset, int[] dst, int dstOffset, int length, int opacity) {
+        int i = 0;
+        for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+            IntVector s = IntVector.fromArray(SPECIES, src, srcOffset + i);
+            IntVector a = alpha(s, opacity);
+            if (!a.compare(VectorOperators.NE, 0).anyTrue()) {
+                continue;
+            }
+            IntVector d = IntVector.fromArray(SPECIES, dst, dstOffset + i);
+            IntVector keep = a.neg().add(255);
+            IntVector r = mix(channel(d, 16), channel(s, 16), a, keep);
+            IntVector g = mix(channel(d, 8), channel(s, 8), a, keep);
+            IntVector b = mix(channel(d, 0), channel(s, 0), a, keep);
+            pack(r, g, b).intoArray(dst, dstOffset + i);
+        }
+        return i;
+    }
+
+    private static int multiply(int[] src, int srcOffset, int[] dst, int dstOffset, int length, int opacity) {
+        int i = 0;
+        for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+            IntVector s = IntVector.fromArray(SPECIES, src, srcOffset + i);
+            IntVector a = alpha(s, opacity);
+            if (!a.compare(VectorOperators.NE, 0).anyTrue()) {
+                continue;
+            }
+            IntVector d = IntVector.fromArray(SPECIES, dst, dstOffset + i);
+            IntVector keep = a.neg().add(255);
+            IntVector dr = channel(d, 16);
+            IntVector dg = channel(d, 8);
+            IntVector db = channel(d, 0);
+            IntVector r = mix(dr, div255(channel(s, 16).mul(dr)), a, keep);
+            IntVector g = mix(dg, div255(channel(s, 8).mul(dg)), a, keep);
+            IntVector b = mix(db, div255(channel(s, 0).mul(db)), a, keep);
+            pack(r, g, b).intoArray(dst, dstOffset + i);
+        }
+        return i;
+    }
+
+    private static int screen(int[] src, int srcOffset, int[] dst, int dstOffset, int length, int opacity) {
+        int i = 0;
+        for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+            IntVector s = IntVector.fromArray(SPECIES, src, srcOffset + i);
+            IntVector a = alpha(s, opacity);
+            if (!a.compare(VectorOperators.NE, 0).anyTrue()) {
+                continue;
+            }
+            IntVector d = IntVector.fromArray(SPECIES, dst, dstOffset + i);
+            IntVector keep = a.neg().add(255);
+            IntVector r = screenChannel(channel(d, 16), channel(s, 16), a, keep);
+            IntVector g = screenChannel(channel(d, 8), channel(s, 8), a, keep);
+            IntVector b = screenChannel(channel(d, 0), channel(s, 0), a, keep);
+            pack(r, g, b).intoArray(dst, dstOffset + i);
+        }
+        return i;
+    }
+
+    private static int overlay(int[] src, int srcOffset, int[] dst, int dstOffset, int length, int opacity) {
+        int i = 0;
+        for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+            IntVector s = IntVector.fromArray(SPECIES, src, srcOffset + i);
+            IntVector a = alpha(s, opacity);
+            if (!a.compare(VectorOperators.NE, 0).anyTrue()) {
+                continue;
+            }
+            IntVector d = IntVector.fromArray(SPECIES, dst, dstOffset + i);
+            IntVector keep = a.neg().add(255);
+            IntVector r = overlayChannel(channel(d, 16), channel(s, 16), a, keep);
+            IntVector g = overlayChannel(channel(d, 8), channel(s, 8), a, keep);
+            IntVector b = overlayChannel(channel(d, 0), channel(s, 0), a, keep);
+            pack(r, g, b).intoArray(dst, dstOffset + i);
+        }
+        return i;
+    }
+
+    private static int darken(int[] src, int srcOffset, int[] dst, int dstOffset, int length, int opacity) {
+        int i = 0;
+        for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+            IntVector s = IntVector.fromArray(SPECIES, src, srcOffset + i);
+            IntVector a = alpha(s, opacity);
+            if (!a.compare(VectorOperators.NE, 0).anyTrue()) {
+                continue;
+            }
+            IntVector d = IntVector.fromArray(SPECIES, dst, dstOffset + i);
+            IntVector keep = a.neg().add(255);
+            IntVector dr = channel(d, 16);
+            IntVector dg = channel(d, 8);
+            IntVector db = channel(d, 0);
+            IntVector r = mix(dr, channel(s, 16).min(dr), a, keep);
+            IntVector g = mix(dg, channel(s, 8).min(dg), a, keep);
+            IntVector b = mix(db, channel(s, 0).min(db), a, keep);
+            pack(r, g, b).intoArray(dst, dstOffset + i);
+        }
+        return i;
+    }
+
+    private static int lighten(int[] src, int srcOffset, int[] dst, int dstOffset, int length, int opacity) {
+        int i = 0;
+        for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+            IntVector s = IntVector.fromArray(SPECIES, src, srcOffset + i);
+            IntVector a = alpha(s, opacity);
+            if (!a.compare(VectorOperators.NE, 0).anyTrue()) {
+                continue;
+            }
+            IntVector d = IntVector.fromArray(SPECIES, dst, dstOffset + i);
+            IntVector keep = a.neg().add(255);
+            IntVector dr = channel(d, 16);
+            IntVector dg = channel(d, 8);
+            IntVector db = channel(d, 0);
+            IntVector r = mix(dr, channel(s, 16).max(dr), a, keep);
+            IntVector g = mix(dg, channel(s, 8).max(dg), a, keep);
+            IntVector b = mix(db, channel(s, 0).max(db), a, keep);
+            pack(r, g, b).intoArray(dst, dstOffset + i);
+        }
+        return i;
+    }
+
+    // Per-channel helpers, small enough to be inlined into every loop
+
+    private static IntVector screenChannel(IntVector d, IntVector s, IntVector a, IntVector keep) {
+        return mix(d, s.add(d).sub(div255(s.mul(d))), a, keep);
+    }
+
+    private static IntVector overlayChannel(IntVector d, IntVector s, IntVector a, IntVector keep) {
+        IntVector low = div255(s.mul(d).lanewise(VectorOperators.LSHL, 1));
+        IntVector high = div255(s.neg().add(255).mul(d.neg().add(255)).lanewise(VectorOperators.LSHL, 1))
+            .neg().add(255);
+        return mix(d, high.blend(low, d.compare(VectorOperators.LT, 128)), a, keep);
+    }
+
+    /**
+     * Source alpha scaled by the layer opacity
+     */
+    private static IntVector alpha(IntVector s, int opacity) {
+        return div255(s.lanewise(VectorOperators.LSHR, 24).mul(opacity));
+    }
+
+    private static IntVector channel(IntVector pixels, int shift) {
+        return pixels.lanewise(VectorOperators.LSHR, shift).and(0xFF);
+    }
+
+    private static IntVector pack(IntVector r, IntVector g, IntVector b) {
+        return r.lanewise(VectorOperators.LSHL, 16)
+            .or(g.lanewise(VectorOperators.LSHL, 8))
+            .or(b)
+            .or(0xFF000000);
+    }
+
+    private static IntVector mix(IntVector d, IntVector blended, IntVector a, IntVector keep) {
+        return div255(d.mul(keep).add(blended.mul(a)));
+    }
+
+    private static IntVector div255(IntVector x) {
+        x = x.add(128);
+        return x.add(x.lanewise(VectorOperators.LSHR, 8)).lanewise(VectorOperators.LSHR, 8);
+    }
+}
@@ -0,0 +1,646 @@
+package com.drawingstudio.manager;
+
+import com.drawingstudio.layers.BlendMode;
+import com.drawingstudio.layers.Layer;
+import com.drawingstudio.layers.LayerStack;
+import com.drawingstudio.shapes.ShapeBase;
+import com.drawingstudio.shapes.ShapeCodec;
+import com.drawingstudio.shapes.ShapeStore;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/**
+ * Crash-safe incremental autosave
+ * Edits are appended to a journal as compact records (shape operations and dirty
+ * raster tiles) on a background thread; the journal is periodically compacted
+ * into a full checkpoint. After a crash the drawing is rebuilt by loading the
+ * checkpoint and replaying the journal. Records name the layer they apply to
+ * by position, in a short; adding, removing or reordering layers forces a new
+ * checkpoint.
+ */
+public class AutosaveManager {
+    private static final int CHECKPOINT_MAGIC = 0x44534334; // "DSC4" (shapes as ShapeCodec blocks)
+    private static final int JOURNAL_MAGIC = 0x44534A33;    // "DSJ3" (layer index as a short)
+    private static final int TILE_SIZE = 64;
+    private static final long COMPACT_THRESHOLD = 4L * 1024 * 1024;
+
+    private static final byte RECORD_SHAPE_ADD = 1;
+    private static final byte RECORD_SHAPE_REMOVE = 2;
+    private static final byte RECORD_SHAPES_CLEAR = 3;
+    private static final byte RECORD_TILE = 4;
+
+    /**
+     * Gives the autosave thread access to the live drawing
+     * Only ever called on the AWT event thread
+     */
+    public interface Source {
+        LayerStack getLayers();
+    }
+
+    private final File checkpointFile;
+    private final File journalFile;
+    private final long intervalMillis;
+    private final ScheduledExecutorService scheduler;
+    private final Object ioLock = new Object();
+    private final ShapeCodec recordCodec = new ShapeCodec();       // guarded by this
+    private final ShapeCodec checkpointCodec = new ShapeCodec();   // guarded by ioLock
+
+    // Pending edits - guarded by this
+    private final List<byte[]> pendingShapeRecords = new ArrayList<>();
+    private final BitSet dirtyTiles = new BitSet();   // layer * tilesPerLayer + tile
+    private int tileColumns;
+    private int tilesPerLayer;
+    private boolean checkpointNeeded = true;   // cleared once a checkpoint is safely written
+    private boolean checkpointInFlight;        // captured, being written; later edits are journaled
+    private int checkpointRequests;            // so a request made during the write isn't lost
+
+    private Source source;
+    private FileChannel journal;
+    private long generation;   // of the checkpoint the open journal belongs to
+    private volatile boolean closed;
+
+    public AutosaveManager(File directory, long intervalMillis) {
+        this.checkpointFile = new File(directory, "checkpoint.bin");
+        this.journalFile = new File(directory, "journal.bin");
+        this.intervalMillis = intervalMillis;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "autosave");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+        directory.mkdirs();
+    }
+
+    /**
+     * Default location for autosave files
+     */
+    public static File defaultDirectory() {
+        return new File(System.getProperty("user.home"), ".drawingstudio" + File.separator + "autosave");
+    }
+
+    /**
+     * Start periodic flushing; the first flush writes a fresh checkpoint
+     */
+    public void start(Source source) {
+        this.source = source;
+        // Generations carry on across sessions, so a journal left by an earlier
+        // one never matches a checkpoint written by this one
+        synchronized (ioLock) {
+            generation = Math.max(System.currentTimeMillis(), generationOnDisk());
+        }
+        scheduler.scheduleWithFixedDelay(this::flush, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop autosaving
+     * @param discard true to delete the autosave files (clean exit)
+     */
+    public void shutdown(boolean discard) {
+        closed = true;
+        scheduler.shutdownNow();
+        synchronized (ioLock) {
+            closeJournal();
+            if (discard) {
+                checkpointFile.delete();
+                journalFile.delete();
+            }
+        }
+    }
+
+    // Edit notifications - called on the AWT event thread
+
+    public synchronized void shapeAdded(int layer, ShapeBase shape) {
+        ByteBuffer record = ByteBuffer.allocate(3 + ShapeCodec.maxEncodedSize(1));
+        record.put(RECORD_SHAPE_ADD).putShort((short) layer);
+        recordCodec.encode(Collections.singletonList(shape), record);
+        pendingShapeRecords.add(Arrays.copyOf(record.array(), record.position()));
+    }
+
+    public synchronized void shapeRemoved(int layer, int index) {
+        pendingShapeRecords.add(ByteBuffer.allocate(7).put(RECORD_SHAPE_REMOVE).putShort((short) layer).putInt(index).array());
+    }
+
+    public synchronized void shapesCleared(int layer) {
+        pendingShapeRecords.add(ByteBuffer.allocate(3).put(RECORD_SHAPES_CLEAR).putShort((short) layer).array());
+    }
+
+    /**
+     * Mark a region of a layer's raster as changed
+     */
+    public synchronized void markDirty(int layer, int x, int y, int width, int height) {
+        if ((checkpointNeeded && !checkpointInFlight) || tileColumns == 0) {
+            return;
+        }
+        int tileRows = tilesPerLayer / tileColumns;
+        int base = layer * tilesPerLayer;
+        int x0 = Math.max(0, x / TILE_SIZE);
+        int y0 = Math.max(0, y / TILE_SIZE);
+        int x1 = Math.min(tileColumns - 1, (x + width) / TILE_SIZE);
+        int y1 = Math.min(tileRows - 1, (y + height) / TILE_SIZE);
+        for (int ty = y0; ty <= y1; ty++) {
+            for (int tx = x0; tx <= x1; tx++) {
+                dirtyTiles.set(base + ty * tileColumns + tx);
+            }
+        }
+    }
+
+    /**
+     * The whole document or its layer structure was replaced (undo, redo,
+     * load, layer changes) - the next flush writes a checkpoint instead of
+     * journal records
+     */
+    public synchronized void documentReplaced() {
+        requestCheckpoint();
+        pendingShapeRecords.clear();
+        dirtyTiles.clear();
+    }
+
+    /**
+     * Background flush: capture pending edits on the event thread, then write them
+     */
+    private void flush() {
+        try {
+            Capture capture = captureOnEventThread();
+            if (capture == null) {
+                return;
+            }
+            synchronized (ioLock) {
+                if (closed) {
+                    return;
+                }
+                if (capture.layers != null) {
+                    writeCheckpoint(capture);
+                    checkpointWritten(capture.request);
+                } else {
+                    appendJournal(capture);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.out.println("Autosave failed: " + e.getMessage());
+            // Edits since the last good write are lost from the journal, or it
+            // no longer matches the checkpoint: start again from a checkpoint
+            synchronized (ioLock) {
+                closeJournal();
+            }
+            synchronized (this) {
+                checkpointInFlight = false;
+                requestCheckpoint();
+            }
+        }
+    }
+
+    private void requestCheckpoint() {
+        checkpointNeeded = true;
+        checkpointRequests++;
+    }
+
+    private synchronized void checkpointWritten(int request) {
+        checkpointInFlight = false;
+        if (request == checkpointRequests) {
+            checkpointNeeded = false;
+        }
+    }
+
+    private Capture captureOnEventThread() throws InterruptedException {
+        Capture[] result = new Capture[1];
+        try {
+            EventQueue.invokeAndWait(() -> result[0] = capture());
+        } catch (InvocationTargetException e) {
+            System.out.println("Autosave capture failed: " + e.getCause());
+        }
+        return result[0];
+    }
+
+    /**
+     * Copy what changed since the last flush - runs on the event thread and is
+     * proportional to the size of the edits, except when a checkpoint is due
+     */
+    private synchronized Capture capture() {
+        LayerStack stack = source.getLayers();
+        Capture capture = new Capture();
+
+        if (checkpointNeeded && !checkpointInFlight) {
+            capture.request = checkpointRequests;
+            capture.width = stack.getWidth();
+            capture.height = stack.getHeight();
+            capture.activeLayer = stack.getActiveIndex();
+            capture.layers = new ArrayList<>(stack.size());
+            for (int i = 0; i < stack.size(); i++) {
+                Layer layer = stack.get(i);
+                int[] pixels = new int[capture.width * capture.height];
+                layer.getImage().getRGB(0, 0, capture.width, capture.height, pixels, 0, capture.width);
+                capture.layers.add(new LayerSnapshot(layer.getName(), layer.isVisible(), layer.getOpacity(),
+                    layer.getBlendMode(), pixels, layer.getShapes().copy()));
+            }
+            tileColumns = (capture.width + TILE_SIZE - 1) / TILE_SIZE;
+            tilesPerLayer = tileColumns * ((capture.height + TILE_SIZE - 1) / TILE_SIZE);
+            checkpointInFlight = true;
+        } else {
+            if (pendingShapeRecords.isEmpty() && dirtyTiles.isEmpty()) {
+                return null;
+            }
+            capture.records = new ArrayList<>(pendingShapeRecords);
+            capture.tiles = new ArrayList<>();
+            for (int i = dirtyTiles.nextSetBit(0); i >= 0; i = dirtyTiles.nextSetBit(i + 1)) {
+                int layer = i / tilesPerLayer;
+                int tile = i % tilesPerLayer;
+                if (layer >= stack.size()) {
+                    break;
+                }
+                BufferedImage image = stack.get(layer).getImage();
+                int x = (tile % tileColumns) * TILE_SIZE;
+                int y = (tile / tileColumns) * TILE_SIZE;
+                int w = Math.min(TILE_SIZE, image.getWidth() - x);
+                int h = Math.min(TILE_SIZE, image.getHeight() - y);
+                int[] pixels = new int[w * h];
+                image.getRGB(x, y, w, h, pixels, 0, w);
+                capture.tiles.add(new Tile(layer, x, y, w, h, pixels));
+            }
+        }
+
+        pendingShapeRecords.clear();
+        dirtyTiles.clear();
+        return capture;
+    }
+
+    /**
+     * Write a full checkpoint atomically and start a new journal generation
+     */
+    private void writeCheckpoint(Capture capture) throws IOException {
+        long next = generation + 1;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(CHECKPOINT_MAGIC);
+        out.writeLong(next);
+        out.writeInt(capture.width);
+        out.writeInt(capture.height);
+        out.writeInt(capture.layers.size());
+        out.writeInt(capture.activeLayer);
+        for (LayerSnapshot layer : capture.layers) {
+            out.writeUTF(layer.name);
+            out.writeBoolean(layer.visible);
+            out.writeFloat(layer.opacity);
+            out.writeUTF(layer.blendMode.name());
+            byte[] raster = deflatePixels(layer.pixels);
+            out.writeInt(raster.length);
+            out.write(raster);
+            byte[] shapes = checkpointCodec.toBytes(layer.shapes);
+            out.writeInt(shapes.length);
+            out.write(shapes);
+        }
+        out.flush();
+
+        File temp = new File(checkpointFile.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFrame(channel, bytes.toByteArray());
+            channel.force(true);
+        }
+        Files.move(temp.toPath(), checkpointFile.toPath(),
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        // A journal from an older generation - this session's or an earlier
+        // one's, as generations carry on across sessions - is ignored on
+        // recovery, so a crash between the move above and the truncation
+        // below is harmless
+        generation = next;
+        closeJournal();
+        journal = FileChannel.open(journalFile.toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer header = ByteBuffer.allocate(12).putInt(JOURNAL_MAGIC).putLong(generation);
+        header.flip();
+        while (header.hasRemaining()) {
+            journal.write(header);
+        }
+        journal.force(false);
+    }
+
+    private void appendJournal(Capture capture) throws IOException {
+        if (journal == null) {
+            // The last checkpoint failed and flush() has asked for another
+            throw new IOException("no journal open; waiting for a checkpoint");
+        }
+        for (byte[] record : capture.records) {
+            writeFrame(journal, record);
+        }
+        for (Tile tile : capture.tiles) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(RECORD_TILE);
+            out.writeShort(tile.layer);
+            out.writeShort(tile.x / TILE_SIZE);
+            out.writeShort(tile.y / TILE_SIZE);
+            out.writeShort(tile.width);
+            out.writeShort(tile.height);
+            out.write(deflatePixels(tile.pixels));
+            out.flush();
+            writeFrame(journal, bytes.toByteArray());
+        }
+        journal.force(false);
+
+        if (journal.size() > COMPACT_THRESHOLD) {
+            synchronized (this) {
+                requestCheckpoint();
+            }
+        }
+    }
+
+    /**
+     * Load the last checkpoint and replay the journal
+     * @return the recovered drawing, or null if there is nothing to recover
+     */
+    public RecoveredDrawing recover() {
+        if (!checkpointFile.exists()) {
+            return null;
+        }
+        ShapeCodec codec = new ShapeCodec();
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(readCheckpointFrame()));
+            if (in.readInt() != CHECKPOINT_MAGIC) {
+                return null;
+            }
+            long checkpointGeneration = in.readLong();
+            int width = in.readInt();
+            int height = in.readInt();
+            int layerCount = in.readInt();
+            int activeLayer = in.readInt();
+            List<Layer> layers = new ArrayList<>(layerCount);
+            for (int l = 0; l < layerCount; l++) {
+                String name = in.readUTF();
+                boolean visible = in.readBoolean();
+                float opacity = in.readFloat();
+                BlendMode blendMode = readBlendMode(in.readUTF());
+                byte[] raster = new byte[in.readInt()];
+                in.readFully(raster);
+                BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+                image.setRGB(0, 0, width, height, inflatePixels(raster, 0, raster.length, width * height), 0, width);
+                Layer layer = new Layer(name, image);
+                layer.setVisible(visible);
+                layer.setOpacity(opacity);
+                layer.setBlendMode(blendMode);
+
+                byte[] shapes = new byte[in.readInt()];
+                in.readFully(shapes);
+                codec.decode(ByteBuffer.wrap(shapes), layer.getShapes()::add);
+                layers.add(layer);
+            }
+            if (layers.isEmpty()) {
+                return null;
+            }
+
+            int replayed = replayJournal(checkpointGeneration, layers, codec);
+            System.out.println("Recovered autosave: checkpoint + " + replayed + " journal records");
+            return new RecoveredDrawing(layers, activeLayer);
+        } catch (IOException | DataFormatException e) {
+            System.out.println("Autosave recovery failed: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Generation of the checkpoint on disk, or 0 if there is none readable
+     */
+    private long generationOnDisk() {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(checkpointFile)))) {
+            in.readInt();   // frame length
+            in.readInt();   // crc
+            return in.readInt() == CHECKPOINT_MAGIC ? in.readLong() : 0;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private byte[] readCheckpointFrame() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(checkpointFile)))) {
+            byte[] payload = readFrame(in);
+            if (payload == null) {
+                throw new IOException("checkpoint is incomplete");
+            }
+            return payload;
+        }
+    }
+
+    /**
+     * Apply journal records in order, stopping at the first torn or corrupt record
+     */
+    private int replayJournal(long checkpointGeneration, List<Layer> layers, ShapeCodec codec)
+            throws IOException, DataFormatException {
+        if (!journalFile.exists()) {
+            return 0;
+        }
+        int replayed = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+            if (in.readInt() != JOURNAL_MAGIC || in.readLong() != checkpointGeneration) {
+                return 0;
+            }
+            byte[] record;
+            while ((record = readFrame(in)) != null) {
+                DataInputStream r = new DataInputStream(new ByteArrayInputStream(record));
+                byte type = r.readByte();
+                int layer = r.readUnsignedShort();
+                if (layer >= layers.size()) {
+                    return replayed;
+                }
+                ShapeStore shapes = layers.get(layer).getShapes();
+                switch (type) {
+                    case RECORD_SHAPE_ADD:
+                        codec.decode(ByteBuffer.wrap(record, 3, record.length - 3), shapes::add);
+                        break;
+                    case RECORD_SHAPE_REMOVE:
+                        int index = r.readInt();
+                        if (index >= 0 && index < shapes.size()) {
+                            shapes.remove(index);
+                        }
+                        break;
+                    case RECORD_SHAPES_CLEAR:
+                        shapes.clear();
+                        break;
+                    case RECORD_TILE:
+                        int x = r.readShort() * TILE_SIZE;
+                        int y = r.readShort() * TILE_SIZE;
+                        int w = r.readShort();
+                        int h = r.readShort();
+                        int offset = 11;
+                        int[] pixels = inflatePixels(record, offset, record.length - offset, w * h);
+                        layers.get(layer).getImage().setRGB(x, y, w, h, pixels, 0, w);
+                        break;
+                    default:
+                        return replayed;
+                }
+                replayed++;
+            }
+        } catch (EOFException e) {
+            // Journal header itself was torn - nothing to replay
+        }
+        return replayed;
+    }
+
+    // Record framing: [length][crc32][payload]
+
+    private static void writeFrame(FileChannel channel, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer buffer = ByteBuffer.allocate(8 + payload.length);
+        buffer.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static byte[] readFrame(DataInputStream in) throws IOException {
+        try {
+            int length = in.readInt();
+            int expectedCrc = in.readInt();
+            if (length < 0 || length > 256 * 1024 * 1024) {
+                return null;
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            return (int) crc.getValue() == expectedCrc ? payload : null;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    // Payload encoding
+
+    private static BlendMode readBlendMode(String name) throws IOException {
+        try {
+            return BlendMode.valueOf(name);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("unknown blend mode " + name);
+        }
+    }
+
+    private static byte[] deflatePixels(int[] pixels) {
+        ByteBuffer raw = ByteBuffer.allocate(pixels.length * 4);
+        raw.asIntBuffer().put(pixels);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(raw.array());
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(pixels.length / 4 + 64);
+            byte[] buffer = new byte[16 * 1024];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static int[] inflatePixels(byte[] data, int offset, int length, int pixelCount)
+            throws DataFormatException {
+        byte[] raw = new byte[pixelCount * 4];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, offset, length);
+            int n = 0;
+            while (n < raw.length && !inflater.finished()) {
+                int read = inflater.inflate(raw, n, raw.length - n);
+                if (read == 0 && inflater.needsInput()) {
+                    throw new DataFormatException("truncated pixel data");
+                }
+                n += read;
+            }
+        } finally {
+            inflater.end();
+        }
+        int[] pixels = new int[pixelCount];
+        ByteBuffer.wrap(raw).asIntBuffer().get(pixels);
+        return pixels;
+    }
+
+    private void closeJournal() {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                System.out.println("Error closing autosave journal: " + e.getMessage());
+            }
+            journal = null;
+        }
+    }
+
+    /**
+     * Edits captured on the event thread for one flush
+     */
+    private static class Capture {
+        List<LayerSnapshot> layers;     // set when this flush is a checkpoint
+        int request;                    // checkpoint request it answers
+        int width, height;
+        int activeLayer;
+        List<byte[]> records;
+        List<Tile> tiles;
+    }
+
+    private static class LayerSnapshot {
+        final String name;
+        final boolean visible;
+        final float opacity;
+        final BlendMode blendMode;
+        final int[] pixels;
+        final List<ShapeBase> shapes;
+
+        LayerSnapshot(String name, boolean visible, float opacity, BlendMode blendMode, int[] pixels,
+                      List<ShapeBase> shapes) {
+            this.name = name;
+            this.visible = visible;
+            this.opacity = opacity;
+            this.blendMode = blendMode;
+            this.pixels = pixels;
+            this.shapes = shapes;
+        }
+    }
+
+    private static class Tile {
+        final int layer;
+        final int x, y, width, height;
+        final int[] pixels;
+
+        Tile(int layer, int x, int y, int width, int height, int[] pixels) {
+            this.layer = layer;
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+            this.pixels = pixels;
+        }
+    }
+
+    /**
+     * Drawing rebuilt from the autosave files
+     */
+    public static class RecoveredDrawing {
+        private List<Layer> layers;
+        private int activeLayer;
+
+        public RecoveredDrawing(List<Layer> layers, int activeLayer) {
+            this.layers = layers;
+            this.activeLayer = activeLayer;
+        }
+
+        public List<Layer> getLayers() {
+            return layers;
+        }
+
+        public int getActiveLayer() {
+            return activeLayer;
+        }
+    }
+}
@@ -1,9 +1,13 @@
 package com.drawingstudio.manager;
 
-import com.drawingstudio.shapes.ShapeBase;
-import java.awt.image.BufferedImage;
+import com.drawingstudio.layers.LayerStack;
+import com.drawingstudio.metrics.EngineMetrics;
+import com.drawingstudio.metrics.FileEvent;
+import java.awt.image.*;
 import java.awt.*;
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import javax.imageio.ImageIO;
 
 /**
@@ -11,43 +15,39 @@ import javax.imageio.ImageIO;
  * Demonstrates separation of concerns and file handling
  */
 public class FileManager {
-    
     /**
      * Save the drawing to a file
+     * The composite is rendered and encoded one row band at a time, so no
+     * full-size composite image is ever allocated
      * @param file The file to save to
-     * @param image The drawing image
-     * @param shapes List of shapes to render on top
+     * @param layers The layers to flatten, bottom first
      * @return true if successful, false otherwise
      */
-    public static boolean saveDrawing(File file, BufferedImage image, java.util.List<ShapeBase> shapes) {
-        try {
-            // Create composite image with shapes
-            BufferedImage composite = new BufferedImage(
-                image.getWidth(), 
-                image.getHeight(), 
-                BufferedImage.TYPE_INT_RGB
-            );
-            Graphics2D g2d = composite.createGraphics();
-            g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-            
-            // Draw background
-            g2d.drawImage(image, 0, 0, null);
-            
-            // Draw shapes on top
-            for (ShapeBase shape : shapes) {
-                shape.draw(g2d);
-            }
-            
-            g2d.dispose();
-            
-            // Ensure .png extension
-            String filename = file.getName().toLowerCase();
-            if (!filename.endsWith(".png")) {
-                file = new File(file.getParent(), file.getName() + ".png");
+    public static boolean saveDrawing(File file, LayerStack layers) {
+        // Ensure .png extension
+        String filename = file.getName().toLowerCase();
+        if (!filename.endsWith(".png")) {
+            file = new File(file.getParent(), file.getName() + ".png");
+        }
+        
+        FileEvent event = new FileEvent();
+        event.begin();
+        long metricsStart = EngineMetrics.startTimer();
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            // Bands are composited, filtered and compressed in parallel
+            PngEncoder.write(channel, layers.getWidth(), layers.getHeight(), false,
+                (y, rows, pixels) -> renderBand(layers, y, rows, pixels));
+            long bytes = channel.size();
+            EngineMetrics.saveFinished(metricsStart, bytes);
+            if (event.shouldCommit()) {
+                event.operation = FileEvent.SAVE;
+                event.path = file.getAbsolutePath();
+                event.bytes = bytes;
+                event.width = layers.getWidth();
+                event.height = layers.getHeight();
+                event.commit();
             }
-            
-            // Save as PNG
-            ImageIO.write(composite, "png", file);
             System.out.println("Drawing saved to: " + file.getAbsolutePath());
             return true;
             
@@ -57,15 +57,36 @@ public class FileManager {
         }
     }
     
+    /**
+     * Composite rows [y, y + rows) of every visible layer straight into the
+     * encoder's pixel buffer
+     */
+    private static void renderBand(LayerStack layers, int y, int rows, int[] pixels) {
+        // Page, then each layer's raster and shapes through the blend kernels
+        layers.render(pixels, y, rows);
+    }
+    
     /**
      * Load a drawing from a file
      * @param file The file to load from
      * @return The loaded image, or null if failed
      */
     public static BufferedImage loadDrawing(File file) {
+        FileEvent event = new FileEvent();
+        event.begin();
+        long metricsStart = EngineMetrics.startTimer();
         try {
             BufferedImage loadedImage = ImageIO.read(file);
             if (loadedImage != null) {
+                EngineMetrics.loadFinished(metricsStart, file.length());
+                if (event.shouldCommit()) {
+                    event.operation = FileEvent.LOAD;
+                    event.path = file.getAbsolutePath();
+                    event.bytes = file.length();
+                    event.width = loadedImage.getWidth();
+                    event.height = loadedImage.getHeight();
+                    event.commit();
+                }
                 System.out.println("Image loaded from: " + file.getAbsolutePath());
             }
             return loadedImage;
@@ -1,72 +1,124 @@
 package com.drawingstudio.manager;
 
+import com.drawingstudio.layers.Layer;
+import com.drawingstudio.layers.LayerStack;
+import com.drawingstudio.memory.MemoryConsumer;
+import com.drawingstudio.memory.MemoryGovernor;
+import com.drawingstudio.metrics.EngineMetrics;
+import com.drawingstudio.metrics.HistorySnapshotEvent;
 import com.drawingstudio.shapes.ShapeBase;
+import com.drawingstudio.shapes.ShapeCodec;
+import com.drawingstudio.shapes.ShapeStore;
+import com.drawingstudio.utils.SurfacePool;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.awt.*;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /**
  * Manages the history of canvas states for undo/redo functionality
+ * Each entry snapshots only the layer that was edited and is tagged with
+ * that layer's id, so undo restores the right layer even after the layers
+ * have been reordered or another layer has become active
+ * Snapshot rasters are leased from the surface pool and go back to it when
+ * their entry is dropped, so a steady stream of edits reuses the same few
+ * The history is under the memory governor: past its compress threshold the
+ * oldest snapshots are deflated and their shapes packed with ShapeCodec
+ * (and both restored when undone to), past its evict threshold the oldest
+ * steps are dropped
  * Demonstrates encapsulation and state management
  */
-public class HistoryManager {
+public class HistoryManager implements MemoryConsumer {
     private List<CanvasState> undoHistory;
     private List<CanvasState> redoHistory;
     private static final int MAX_UNDO_STEPS = 10;
+    private static final int PACK_CHUNK = 16 * 1024;   // pixels converted to bytes at a time when compressing
+    private final ShapeCodec codec = new ShapeCodec();
     
     public HistoryManager() {
         this.undoHistory = new ArrayList<>();
         this.redoHistory = new ArrayList<>();
+        MemoryGovernor.shared().register("Undo history", MemoryGovernor.Priority.HISTORY, this);
     }
     
     /**
-     * Save current state for undo functionality
+     * Save the state of the layer about to be edited for undo functionality
      */
-    public void saveState(BufferedImage image, List<ShapeBase> shapes) {
+    public void saveState(Layer layer) {
         if (undoHistory.size() >= MAX_UNDO_STEPS) {
-            undoHistory.remove(0);
+            undoHistory.remove(0).release();
         }
         
-        CanvasState currentState = new CanvasState(image, shapes);
+        CanvasState currentState = new CanvasState(layer);
         undoHistory.add(currentState);
         
         // Clear redo history when new action is performed
-        redoHistory.clear();
+        releaseAll(redoHistory);
+        MemoryGovernor.shared().check();
     }
     
     /**
      * Undo the last action
-     * @return The previous canvas state, or null if nothing to undo
+     * @param layers The document, to snapshot the layer being restored for redo
+     * @return The previous state of one layer, or null if nothing to undo
      */
-    public CanvasState undo(BufferedImage currentImage, List<ShapeBase> currentShapes) {
-        if (undoHistory.isEmpty()) {
-            return null;
-        }
-        
-        // Save current state to redo history
-        CanvasState currentState = new CanvasState(currentImage, currentShapes);
-        redoHistory.add(currentState);
-        
-        // Return previous state
-        return undoHistory.remove(undoHistory.size() - 1);
+    public CanvasState undo(LayerStack layers) {
+        return step(undoHistory, redoHistory, layers);
     }
     
     /**
      * Redo the last undone action
-     * @return The next canvas state, or null if nothing to redo
+     * @param layers The document, to snapshot the layer being restored for undo
+     * @return The next state of one layer, or null if nothing to redo
      */
-    public CanvasState redo(BufferedImage currentImage, List<ShapeBase> currentShapes) {
-        if (redoHistory.isEmpty()) {
+    public CanvasState redo(LayerStack layers) {
+        return step(redoHistory, undoHistory, layers);
+    }
+    
+    private static CanvasState step(List<CanvasState> from, List<CanvasState> to, LayerStack layers) {
+        if (from.isEmpty()) {
+            return null;
+        }
+        CanvasState state = from.remove(from.size() - 1);
+        Layer layer = layers.findById(state.getLayerId());
+        if (layer == null) {
+            state.release();
             return null;
         }
         
-        // Save current state to undo history
-        CanvasState currentState = new CanvasState(currentImage, currentShapes);
-        undoHistory.add(currentState);
-        
-        // Return next state
-        return redoHistory.remove(redoHistory.size() - 1);
+        // Save the layer's current state to the other history
+        to.add(new CanvasState(layer));
+        return state;
+    }
+    
+    /**
+     * Drop every entry for a deleted layer
+     */
+    public void forgetLayer(int layerId) {
+        undoHistory.removeIf(state -> state.getLayerId() == layerId && state.release());
+        redoHistory.removeIf(state -> state.getLayerId() == layerId && state.release());
+    }
+    
+    /**
+     * Drop all history (the document was replaced)
+     */
+    public void clear() {
+        releaseAll(undoHistory);
+        releaseAll(redoHistory);
+    }
+    
+    private static void releaseAll(List<CanvasState> states) {
+        for (CanvasState state : states) {
+            state.release();
+        }
+        states.clear();
     }
     
     public boolean canUndo() {
@@ -77,31 +129,235 @@ public class HistoryManager {
         return !redoHistory.isEmpty();
     }
     
+    /**
+     * Bytes held by every undo and redo snapshot
+     */
+    @Override
+    public long getMemoryBytes() {
+        long bytes = 0;
+        for (CanvasState state : undoHistory) {
+            bytes += state.getByteCount();
+        }
+        for (CanvasState state : redoHistory) {
+            bytes += state.getByteCount();
+        }
+        return bytes;
+    }
+    
+    /**
+     * Compress snapshots, oldest first; when evicting, drop the oldest undo
+     * steps (keeping the last) and then the redo steps furthest away
+     */
+    @Override
+    public long reclaim(long bytes, boolean evict) {
+        long freed = 0;
+        if (!evict) {
+            for (CanvasState state : undoHistory) {
+                if (freed >= bytes) {
+                    break;
+                }
+                freed += state.compress(codec);
+            }
+            for (CanvasState state : redoHistory) {
+                if (freed >= bytes) {
+                    break;
+                }
+                freed += state.compress(codec);
+            }
+            return freed;
+        }
+        while (freed < bytes && undoHistory.size() > 1) {
+            CanvasState state = undoHistory.remove(0);
+            freed += state.getByteCount();
+            state.release();
+        }
+        while (freed < bytes && !redoHistory.isEmpty()) {
+            CanvasState state = redoHistory.remove(0);
+            freed += state.getByteCount();
+            state.release();
+        }
+        return freed;
+    }
+    
     /**
      * Inner class representing a canvas state snapshot
      * Demonstrates composition and encapsulation
      */
     public static class CanvasState {
+        private int layerId;
         private BufferedImage image;
         private List<ShapeBase> shapes;
+        private long byteCount;
+        
+        // While compressed: the deflated raster, and what to inflate it into
+        private byte[] packed;
+        private byte[] packedShapes;
+        private int width;
+        private int height;
+        private int type;
         
-        public CanvasState(BufferedImage img, List<ShapeBase> shapeList) {
-            // Deep copy the image
-            this.image = new BufferedImage(img.getWidth(), img.getHeight(), img.getType());
-            Graphics2D g = this.image.createGraphics();
-            g.drawImage(img, 0, 0, null);
-            g.dispose();
+        public CanvasState(Layer layer) {
+            HistorySnapshotEvent event = new HistorySnapshotEvent();
+            event.begin();
+            long metricsStart = EngineMetrics.startTimer();
+            this.layerId = layer.getId();
+            
+            // Deep copy the raster into a pooled surface - copied as data, so alpha is kept exactly
+            BufferedImage img = layer.getImage();
+            this.image = SurfacePool.shared().copyOf(img);
             
-            // Deep copy the shapes list
-            this.shapes = new ArrayList<>(shapeList);
+            // Deep copy the shapes list - a columnar store is copied as arrays
+            this.shapes = copyShapes(layer.getShapes());
+            
+            byteCount = 4L * img.getWidth() * img.getHeight() + (long) ShapeStore.BYTES_PER_SHAPE * shapes.size();
+            EngineMetrics.snapshotFinished(metricsStart, byteCount);
+            if (event.shouldCommit()) {
+                event.layerId = layerId;
+                event.bytesCopied = byteCount;
+                event.shapes = shapes.size();
+                event.commit();
+            }
+        }
+        
+        public int getLayerId() {
+            return layerId;
         }
         
+        /**
+         * The raster, inflated first if it was compressed
+         */
         public BufferedImage getImage() {
+            if (packed != null) {
+                inflate();
+            }
             return image;
         }
         
+        /**
+         * Return the raster to the pool once the entry is dropped unused
+         * @return true, so it can be used in a removeIf condition
+         */
+        boolean release() {
+            SurfacePool.shared().release(image);
+            image = null;
+            packed = null;
+            packedShapes = null;
+            return true;
+        }
+        
+        /**
+         * Deflate the raster and give its image back to the pool, and encode
+         * the shapes
+         * Layers are mostly transparent or flat colour, which deflates to a
+         * small fraction even at the fastest level.
+         * @return Bytes freed
+         */
+        long compress(ShapeCodec codec) {
+            if (image == null || !(image.getRaster().getDataBuffer() instanceof DataBufferInt)) {
+                return 0;
+            }
+            int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] chunk = new byte[PACK_CHUNK * 4];
+            byte[] buffer = new byte[64 * 1024];
+            for (int start = 0; start < pixels.length; start += PACK_CHUNK) {
+                int count = Math.min(PACK_CHUNK, pixels.length - start);
+                for (int i = 0; i < count; i++) {
+                    int argb = pixels[start + i];
+                    chunk[4 * i] = (byte) (argb >>> 24);
+                    chunk[4 * i + 1] = (byte) (argb >>> 16);
+                    chunk[4 * i + 2] = (byte) (argb >>> 8);
+                    chunk[4 * i + 3] = (byte) argb;
+                }
+                deflater.setInput(chunk, 0, count * 4);
+                while (!deflater.needsInput()) {
+                    out.write(buffer, 0, deflater.deflate(buffer));
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            deflater.end();
+            
+            long before = byteCount;
+            width = image.getWidth();
+            height = image.getHeight();
+            type = image.getType();
+            packed = out.toByteArray();
+            SurfacePool.shared().release(image);
+            image = null;
+            packedShapes = codec.toBytes(shapes);
+            shapes = null;
+            byteCount = packed.length + shapeBytes();
+            return before - byteCount;
+        }
+        
+        private void inflate() {
+            image = SurfacePool.shared().lease(width, height, type);
+            int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            Inflater inflater = new Inflater();
+            inflater.setInput(packed);
+            byte[] chunk = new byte[PACK_CHUNK * 4];
+            try {
+                for (int start = 0; start < pixels.length; start += PACK_CHUNK) {
+                    int count = Math.min(PACK_CHUNK, pixels.length - start);
+                    int filled = 0;
+                    while (filled < count * 4) {
+                        int n = inflater.inflate(chunk, filled, count * 4 - filled);
+                        if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                            throw new DataFormatException("snapshot ended early");
+                        }
+                        filled += n;
+                    }
+                    for (int i = 0; i < count; i++) {
+                        pixels[start + i] = (chunk[4 * i] & 0xFF) << 24 | (chunk[4 * i + 1] & 0xFF) << 16
+                            | (chunk[4 * i + 2] & 0xFF) << 8 | (chunk[4 * i + 3] & 0xFF);
+                    }
+                }
+            } catch (DataFormatException e) {
+                // Can't happen with data this class deflated; keep what was inflated
+                System.out.println("Error inflating undo snapshot: " + e.getMessage());
+            } finally {
+                inflater.end();
+            }
+            packed = null;
+            byteCount = 4L * width * height + shapeBytes();
+        }
+        
+        private long shapeBytes() {
+            return packedShapes != null ? packedShapes.length : (long) ShapeStore.BYTES_PER_SHAPE * shapes.size();
+        }
+        
+        /**
+         * Approximate bytes held: the raster plus the shape columns
+         */
+        public long getByteCount() {
+            return byteCount;
+        }
+        
+        /**
+         * A copy of the shapes, decoded if they were packed
+         */
         public List<ShapeBase> getShapes() {
-            return new ArrayList<>(shapes);
+            if (packedShapes != null) {
+                try {
+                    return new ShapeCodec().decode(ByteBuffer.wrap(packedShapes));
+                } catch (IOException e) {
+                    // Can't happen with data this class encoded
+                    System.out.println("Error decoding undo snapshot: " + e.getMessage());
+                    return new ShapeStore();
+                }
+            }
+            return copyShapes(shapes);
+        }
+        
+        private static List<ShapeBase> copyShapes(List<ShapeBase> shapeList) {
+            if (shapeList instanceof ShapeStore) {
+                return ((ShapeStore) shapeList).copy();
+            }
+            return new ArrayList<>(shapeList);
         }
     }
 }
@@ -0,0 +1,421 @@
+package com.drawingstudio.manager;
+
+import java.awt.*;
+import java.awt.image.*;
+import java.util.stream.IntStream;
+
+/**
+ * Converts loaded images into the canvas's native int-packed pixel layout
+ * The source layout is detected once and each row is converted by a loop
+ * specialised for it, in parallel, straight into the destination DataBufferInt.
+ * Oversized images are reduced by repeated 2x2 box halving followed by a final
+ * bilinear pass, which keeps thin lines that a single-step resize would drop.
+ * For destinations with alpha both work on premultiplied pixels, so transparent
+ * neighbours don't darken the edges of what they are averaged with.
+ */
+public class ImageImporter {
+
+    /**
+     * Source pixel layouts with a specialised conversion loop
+     */
+    private enum Layout { INT_RGB, INT_ARGB, INT_ARGB_PRE, BYTE_BGR, BYTE_ABGR, BYTE_GRAY, BYTE_INDEXED, GENERIC }
+
+    // Cumulative throughput per source layout - guarded by the class lock
+    private static final long[] importedPixels = new long[Layout.values().length];
+    private static final long[] importNanos = new long[Layout.values().length];
+
+    /**
+     * Copy src into dest at (dx, dy) without scaling; pixels outside dest are dropped
+     * Translucent pixels are composited over white when dest has no alpha
+     */
+    public static void importInto(BufferedImage src, BufferedImage dest, int dx, int dy) {
+        if (!isIntPacked(dest)) {
+            drawFallback(src, dest, dx, dy, src.getWidth(), src.getHeight());
+            return;
+        }
+        long startTime = System.nanoTime();
+        Rectangle area = new Rectangle(dx, dy, src.getWidth(), src.getHeight())
+            .intersection(new Rectangle(0, 0, dest.getWidth(), dest.getHeight()));
+        if (area.isEmpty()) {
+            return;
+        }
+
+        RowReader reader = new RowReader(src, !dest.getColorModel().hasAlpha());
+        int[] destPixels = ((DataBufferInt) dest.getRaster().getDataBuffer()).getData();
+        int destStride = dest.getWidth();
+        IntStream.range(0, area.height).parallel().forEach(row ->
+            reader.read(area.x - dx, area.y - dy + row, area.width, destPixels, (area.y + row) * destStride + area.x));
+
+        report(reader.layout, area.width, area.height, startTime);
+    }
+
+    /**
+     * Scale src down to fit inside dest (keeping its aspect ratio) and copy it to the top-left corner
+     * Images that already fit are copied unscaled
+     * @return the size the image was drawn at
+     */
+    public static Dimension importScaledToFit(BufferedImage src, BufferedImage dest) {
+        Dimension size = fitSize(src.getWidth(), src.getHeight(), dest.getWidth(), dest.getHeight());
+        if (size.width == src.getWidth() && size.height == src.getHeight()) {
+            importInto(src, dest, 0, 0);
+            return size;
+        }
+        if (!isIntPacked(dest)) {
+            drawFallback(src, dest, 0, 0, size.width, size.height);
+            return size;
+        }
+
+        long startTime = System.nanoTime();
+        boolean premultiplied = dest.getColorModel().hasAlpha();
+        RowReader reader = new RowReader(src, !premultiplied);
+        int width = src.getWidth();
+        int height = src.getHeight();
+        int[] pixels;
+
+        if (width / 2 >= size.width && height / 2 >= size.height) {
+            // First halving reads straight from the source so it is never converted at full size
+            int halfWidth = width / 2;
+            int halfHeight = height / 2;
+            int[] half = new int[halfWidth * halfHeight];
+            int srcWidth = width;
+            IntStream.range(0, halfHeight).parallel().forEach(y -> {
+                int[] rows = new int[srcWidth * 2];
+                reader.read(0, y * 2, srcWidth, rows, 0);
+                reader.read(0, y * 2 + 1, srcWidth, rows, srcWidth);
+                if (premultiplied) {
+                    premultiply(rows, 0, rows.length);
+                }
+                halveRow(rows, 0, srcWidth, half, y * halfWidth, halfWidth);
+            });
+            pixels = half;
+            width = halfWidth;
+            height = halfHeight;
+        } else {
+            pixels = new int[width * height];
+            int[] target = pixels;
+            int w = width;
+            IntStream.range(0, height).parallel().forEach(y -> {
+                reader.read(0, y, w, target, y * w);
+                if (premultiplied) {
+                    premultiply(target, y * w, w);
+                }
+            });
+        }
+
+        while (width / 2 >= size.width && height / 2 >= size.height) {
+            int[] source = pixels;
+            int sourceWidth = width;
+            int halfWidth = width / 2;
+            int halfHeight = height / 2;
+            int[] half = new int[halfWidth * halfHeight];
+            IntStream.range(0, halfHeight).parallel().forEach(y ->
+                halveRow(source, y * 2 * sourceWidth, (y * 2 + 1) * sourceWidth, half, y * halfWidth, halfWidth));
+            pixels = half;
+            width = halfWidth;
+            height = halfHeight;
+        }
+
+        int[] destPixels = ((DataBufferInt) dest.getRaster().getDataBuffer()).getData();
+        bilinear(pixels, width, height, destPixels, dest.getWidth(), size.width, size.height, premultiplied);
+
+        report(reader.layout, src.getWidth(), src.getHeight(), startTime);
+        return size;
+    }
+
+    /**
+     * Largest size with the source aspect ratio that fits the bounds (never larger than the source)
+     */
+    public static Dimension fitSize(int width, int height, int maxWidth, int maxHeight) {
+        double scale = Math.min(1.0, Math.min((double) maxWidth / width, (double) maxHeight / height));
+        return new Dimension(Math.max(1, (int) Math.round(width * scale)),
+                             Math.max(1, (int) Math.round(height * scale)));
+    }
+
+    /**
+     * Average 2x2 blocks of two source rows into one output row
+     * Row offsets are given separately so the pair may live in a scratch buffer
+     */
+    private static void halveRow(int[] src, int row0, int row1, int[] out, int outOffset, int outWidth) {
+        for (int x = 0; x < outWidth; x++) {
+            int p0 = src[row0 + 2 * x];
+            int p1 = src[row0 + 2 * x + 1];
+            int p2 = src[row1 + 2 * x];
+            int p3 = src[row1 + 2 * x + 1];
+            int a = ((p0 >>> 24) + (p1 >>> 24) + (p2 >>> 24) + (p3 >>> 24) + 2) >> 2;
+            int r = (((p0 >> 16) & 0xFF) + ((p1 >> 16) & 0xFF) + ((p2 >> 16) & 0xFF) + ((p3 >> 16) & 0xFF) + 2) >> 2;
+            int g = (((p0 >> 8) & 0xFF) + ((p1 >> 8) & 0xFF) + ((p2 >> 8) & 0xFF) + ((p3 >> 8) & 0xFF) + 2) >> 2;
+            int b = ((p0 & 0xFF) + (p1 & 0xFF) + (p2 & 0xFF) + (p3 & 0xFF) + 2) >> 2;
+            out[outOffset + x] = (a << 24) | (r << 16) | (g << 8) | b;
+        }
+    }
+
+    /**
+     * Final resize from at most twice the target size, one destination row per task
+     * @param premultiplied Whether src is premultiplied, to be undone on the way into dest
+     */
+    private static void bilinear(int[] src, int srcWidth, int srcHeight,
+                                 int[] dest, int destStride, int width, int height, boolean premultiplied) {
+        double scaleX = (double) srcWidth / width;
+        double scaleY = (double) srcHeight / height;
+        IntStream.range(0, height).parallel().forEach(y -> {
+            double sy = Math.max(0, (y + 0.5) * scaleY - 0.5);
+            int y0 = Math.min((int) sy, srcHeight - 1);
+            int y1 = Math.min(y0 + 1, srcHeight - 1);
+            int fy = (int) ((sy - y0) * 256);
+            for (int x = 0; x < width; x++) {
+                double sx = Math.max(0, (x + 0.5) * scaleX - 0.5);
+                int x0 = Math.min((int) sx, srcWidth - 1);
+                int x1 = Math.min(x0 + 1, srcWidth - 1);
+                int fx = (int) ((sx - x0) * 256);
+                int top = lerp(src[y0 * srcWidth + x0], src[y0 * srcWidth + x1], fx);
+                int bottom = lerp(src[y1 * srcWidth + x0], src[y1 * srcWidth + x1], fx);
+                int p = lerp(top, bottom, fy);
+                dest[y * destStride + x] = premultiplied ? unpremultiply(p) : p;
+            }
+        });
+    }
+
+    private static int lerp(int p, int q, int f) {
+        int inv = 256 - f;
+        int a = ((p >>> 24) * inv + (q >>> 24) * f) >> 8;
+        int r = (((p >> 16) & 0xFF) * inv + ((q >> 16) & 0xFF) * f) >> 8;
+        int g = (((p >> 8) & 0xFF) * inv + ((q >> 8) & 0xFF) * f) >> 8;
+        int b = ((p & 0xFF) * inv + (q & 0xFF) * f) >> 8;
+        return (a << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    /**
+     * Premultiply count ARGB pixels in place, from offset
+     */
+    private static void premultiply(int[] pixels, int offset, int count) {
+        for (int i = offset; i < offset + count; i++) {
+            int argb = pixels[i];
+            int a = argb >>> 24;
+            if (a != 0xFF) {
+                int r = (((argb >> 16) & 0xFF) * a + 127) / 255;
+                int g = (((argb >> 8) & 0xFF) * a + 127) / 255;
+                int b = ((argb & 0xFF) * a + 127) / 255;
+                pixels[i] = (a << 24) | (r << 16) | (g << 8) | b;
+            }
+        }
+    }
+
+    private static int unpremultiply(int argb) {
+        int a = argb >>> 24;
+        if (a == 0 || a == 0xFF) {
+            return a == 0 ? 0 : argb;
+        }
+        int r = Math.min(255, ((argb >> 16) & 0xFF) * 255 / a);
+        int g = Math.min(255, ((argb >> 8) & 0xFF) * 255 / a);
+        int b = Math.min(255, (argb & 0xFF) * 255 / a);
+        return (a << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    private static boolean isIntPacked(BufferedImage image) {
+        int type = image.getType();
+        return (type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB)
+            && image.getRaster().getDataBuffer() instanceof DataBufferInt
+            && image.getRaster().getDataBuffer().getOffset() == 0
+            && ((SinglePixelPackedSampleModel) image.getSampleModel()).getScanlineStride() == image.getWidth();
+    }
+
+    private static void drawFallback(BufferedImage src, BufferedImage dest, int x, int y, int width, int height) {
+        Graphics2D g = dest.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(src, x, y, width, height, null);
+        g.dispose();
+    }
+
+    private static synchronized void report(Layout layout, int width, int height, long startTime) {
+        importedPixels[layout.ordinal()] += (long) width * height;
+        importNanos[layout.ordinal()] += System.nanoTime() - startTime;
+    }
+
+    /**
+     * Import throughput so far for every source layout that has been seen
+     */
+    public static synchronized String throughputReport() {
+        StringBuilder report = new StringBuilder("Import throughput:");
+        for (Layout layout : Layout.values()) {
+            long pixels = importedPixels[layout.ordinal()];
+            if (pixels > 0) {
+                double seconds = Math.max(importNanos[layout.ordinal()], 1) / 1e9;
+                report.append(String.format(" %s %.1f MP/s (%.1f MP);", layout, pixels / 1e6 / seconds, pixels / 1e6));
+            }
+        }
+        return report.toString();
+    }
+
+    /**
+     * Reads rows of a source image as ARGB ints with a loop picked once for its layout
+     * Safe to use from several threads at once
+     */
+    private static class RowReader {
+        final Layout layout;
+        private final BufferedImage image;
+        private final boolean opaque;
+        private final int[] intData;
+        private final byte[] byteData;
+        private final int offset;
+        private final int scanlineStride;
+        private final int pixelStride;
+        private final int[] lut;
+
+        RowReader(BufferedImage image, boolean opaque) {
+            this.image = image;
+            this.opaque = opaque;
+
+            WritableRaster raster = image.getRaster();
+            DataBuffer buffer = raster.getDataBuffer();
+            SampleModel model = raster.getSampleModel();
+            int tx = -raster.getSampleModelTranslateX();
+            int ty = -raster.getSampleModelTranslateY();
+            int[] ints = null;
+            byte[] bytes = null;
+            int start = 0, stride = 0, step = 0;
+            int[] palette = null;
+            Layout detected = Layout.GENERIC;
+
+            if (buffer.getNumBanks() == 1 && model instanceof SinglePixelPackedSampleModel
+                    && buffer instanceof DataBufferInt) {
+                SinglePixelPackedSampleModel packed = (SinglePixelPackedSampleModel) model;
+                ints = ((DataBufferInt) buffer).getData();
+                stride = packed.getScanlineStride();
+                start = buffer.getOffset() + ty * stride + tx;
+                switch (image.getType()) {
+                    case BufferedImage.TYPE_INT_RGB: detected = Layout.INT_RGB; break;
+                    case BufferedImage.TYPE_INT_ARGB: detected = Layout.INT_ARGB; break;
+                    case BufferedImage.TYPE_INT_ARGB_PRE: detected = Layout.INT_ARGB_PRE; break;
+                    default: break;
+                }
+            } else if (buffer.getNumBanks() == 1 && model instanceof ComponentSampleModel
+                    && buffer instanceof DataBufferByte) {
+                ComponentSampleModel component = (ComponentSampleModel) model;
+                bytes = ((DataBufferByte) buffer).getData();
+                stride = component.getScanlineStride();
+                step = component.getPixelStride();
+                start = buffer.getOffset() + ty * stride + tx * step;
+                switch (image.getType()) {
+                    case BufferedImage.TYPE_3BYTE_BGR: detected = Layout.BYTE_BGR; break;
+                    case BufferedImage.TYPE_4BYTE_ABGR: detected = Layout.BYTE_ABGR; break;
+                    case BufferedImage.TYPE_BYTE_GRAY: detected = Layout.BYTE_GRAY; break;
+                    case BufferedImage.TYPE_BYTE_INDEXED:
+                        IndexColorModel colors = (IndexColorModel) image.getColorModel();
+                        palette = new int[256];
+                        colors.getRGBs(palette);
+                        detected = Layout.BYTE_INDEXED;
+                        break;
+                    default: break;
+                }
+                // Byte layouts are only taken literally for sRGB data
+                if (detected != Layout.BYTE_GRAY && !image.getColorModel().getColorSpace().isCS_sRGB()) {
+                    detected = Layout.GENERIC;
+                }
+            }
+
+            this.layout = detected;
+            this.intData = ints;
+            this.byteData = bytes;
+            this.offset = start;
+            this.scanlineStride = stride;
+            this.pixelStride = step;
+            this.lut = palette;
+        }
+
+        /**
+         * Read count pixels of row y starting at column x into out[outOffset...]
+         */
+        void read(int x, int y, int count, int[] out, int outOffset) {
+            switch (layout) {
+                case INT_RGB: {
+                    int p = offset + y * scanlineStride + x;
+                    for (int i = 0; i < count; i++) {
+                        out[outOffset + i] = 0xFF000000 | intData[p + i];
+                    }
+                    return;
+                }
+                case INT_ARGB: {
+                    int p = offset + y * scanlineStride + x;
+                    if (opaque) {
+                        for (int i = 0; i < count; i++) {
+                            out[outOffset + i] = overWhite(intData[p + i]);
+                        }
+                    } else {
+                        System.arraycopy(intData, p, out, outOffset, count);
+                    }
+                    return;
+                }
+                case INT_ARGB_PRE: {
+                    int p = offset + y * scanlineStride + x;
+                    for (int i = 0; i < count; i++) {
+                        int argb = intData[p + i];
+                        out[outOffset + i] = opaque ? premultipliedOverWhite(argb) : unpremultiply(argb);
+                    }
+                    return;
+                }
+                case BYTE_BGR: {
+                    int p = offset + y * scanlineStride + x * pixelStride;
+                    for (int i = 0; i < count; i++, p += pixelStride) {
+                        out[outOffset + i] = 0xFF000000 | ((byteData[p + 2] & 0xFF) << 16)
+                            | ((byteData[p + 1] & 0xFF) << 8) | (byteData[p] & 0xFF);
+                    }
+                    return;
+                }
+                case BYTE_ABGR: {
+                    int p = offset + y * scanlineStride + x * pixelStride;
+                    for (int i = 0; i < count; i++, p += pixelStride) {
+                        int argb = ((byteData[p] & 0xFF) << 24) | ((byteData[p + 3] & 0xFF) << 16)
+                            | ((byteData[p + 2] & 0xFF) << 8) | (byteData[p + 1] & 0xFF);
+                        out[outOffset + i] = opaque ? overWhite(argb) : argb;
+                    }
+                    return;
+                }
+                case BYTE_GRAY: {
+                    // Gray levels are replicated as-is, the same as a Java2D blit
+                    int p = offset + y * scanlineStride + x * pixelStride;
+                    for (int i = 0; i < count; i++, p += pixelStride) {
+                        int gray = byteData[p] & 0xFF;
+                        out[outOffset + i] = 0xFF000000 | (gray << 16) | (gray << 8) | gray;
+                    }
+                    return;
+                }
+                case BYTE_INDEXED: {
+                    int p = offset + y * scanlineStride + x * pixelStride;
+                    for (int i = 0; i < count; i++, p += pixelStride) {
+                        int argb = lut[byteData[p] & 0xFF];
+                        out[outOffset + i] = opaque ? overWhite(argb) : argb;
+                    }
+                    return;
+                }
+                default: {
+                    image.getRGB(x, y, count, 1, out, outOffset, count);
+                    if (opaque) {
+                        for (int i = 0; i < count; i++) {
+                            out[outOffset + i] = overWhite(out[outOffset + i]);
+                        }
+                    }
+                }
+            }
+        }
+
+        private static int overWhite(int argb) {
+            int a = argb >>> 24;
+            if (a == 0xFF) {
+                return argb;
+            }
+            int white = 255 - a;
+            int r = (((argb >> 16) & 0xFF) * a + 255 * white + 127) / 255;
+            int g = (((argb >> 8) & 0xFF) * a + 255 * white + 127) / 255;
+            int b = ((argb & 0xFF) * a + 255 * white + 127) / 255;
+            return 0xFF000000 | (r << 16) | (g << 8) | b;
+        }
+
+        private static int premultipliedOverWhite(int argb) {
+            int white = 255 - (argb >>> 24);
+            int r = Math.min(255, ((argb >> 16) & 0xFF) + white);
+            int g = Math.min(255, ((argb >> 8) & 0xFF) + white);
+            int b = Math.min(255, (argb & 0xFF) + white);
+            return 0xFF000000 | (r << 16) | (g << 8) | b;
+        }
+    }
+}
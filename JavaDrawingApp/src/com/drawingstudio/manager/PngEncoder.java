@@ -0,0 +1,322 @@
+package com.drawingstudio.manager;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.*;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Multi-threaded PNG writer
+ * Splits the image into horizontal row bands that are filtered and deflated
+ * concurrently, then joins the independent deflate streams into one zlib stream
+ * (each band except the last ends on a byte-aligned sync flush, pigz-style)
+ */
+public class PngEncoder {
+    private static final byte[] SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+    private static final byte[] ZLIB_HEADER = {0x78, (byte) 0x9C};
+    private static final int ADLER_BASE = 65521;
+    private static final int COMPRESSION_LEVEL = 6;
+    private static final int BAND_HEIGHT = 64;
+
+    /**
+     * Supplies ARGB pixels for a range of rows
+     * Called concurrently from worker threads, so implementations must be thread-safe
+     */
+    public interface RowSource {
+        /**
+         * Fill rows [y, y + rows) into pixels with a scanline stride of the image width
+         */
+        void readRows(int y, int rows, int[] pixels);
+    }
+
+    /**
+     * Encode a whole image to a PNG file
+     */
+    public static void write(BufferedImage image, File file) throws IOException {
+        boolean alpha = image.getColorModel().hasAlpha();
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(channel, image.getWidth(), image.getHeight(), alpha, imageSource(image));
+        }
+    }
+
+    /**
+     * Encode rows supplied by the source into the channel (a file or an in-memory stream)
+     * At most a few bands per worker are in flight, so memory stays bounded by the band size
+     */
+    public static void write(WritableByteChannel channel, int width, int height, boolean alpha, RowSource source)
+            throws IOException {
+        writeFully(channel, ByteBuffer.wrap(SIGNATURE));
+
+        ByteBuffer ihdr = ByteBuffer.allocate(13);
+        ihdr.putInt(width).putInt(height);
+        ihdr.put((byte) 8);                 // bit depth
+        ihdr.put((byte) (alpha ? 6 : 2));   // color type: RGBA or RGB
+        ihdr.put((byte) 0).put((byte) 0).put((byte) 0);
+        writeChunk(channel, "IHDR", ihdr.array(), null, null);
+
+        int bandCount = (height + BAND_HEIGHT - 1) / BAND_HEIGHT;
+        int window = Math.max(2, ForkJoinPool.getCommonPoolParallelism() * 2);
+        ArrayDeque<Future<Band>> inFlight = new ArrayDeque<>();
+        long adler = 1;
+        int nextBand = 0;
+
+        try {
+            for (int written = 0; written < bandCount; written++) {
+                while (nextBand < bandCount && inFlight.size() < window) {
+                    int y = nextBand * BAND_HEIGHT;
+                    int rows = Math.min(BAND_HEIGHT, height - y);
+                    boolean last = nextBand == bandCount - 1;
+                    inFlight.add(ForkJoinPool.commonPool().submit(
+                        () -> encodeBand(source, width, y, rows, alpha, last)));
+                    nextBand++;
+                }
+
+                Band band = inFlight.poll().get();
+                adler = combineAdler(adler, band.adler, band.rawLength);
+                byte[] header = written == 0 ? ZLIB_HEADER : null;
+                byte[] trailer = written == bandCount - 1
+                    ? ByteBuffer.allocate(4).putInt((int) adler).array() : null;
+                writeChunk(channel, "IDAT", band.data, header, trailer);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("PNG encoding interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } finally {
+            for (Future<Band> pending : inFlight) {
+                pending.cancel(true);
+            }
+        }
+
+        writeChunk(channel, "IEND", new byte[0], null, null);
+    }
+
+    /**
+     * Row source reading straight from an image, using the int raster when possible
+     */
+    private static RowSource imageSource(BufferedImage image) {
+        int width = image.getWidth();
+        boolean packed = (image.getType() == BufferedImage.TYPE_INT_RGB
+                || image.getType() == BufferedImage.TYPE_INT_ARGB)
+            && image.getRaster().getDataBuffer() instanceof DataBufferInt
+            && image.getRaster().getSampleModel() instanceof SinglePixelPackedSampleModel;
+        if (!packed) {
+            return (y, rows, pixels) -> image.getRGB(0, y, width, rows, pixels, 0, width);
+        }
+
+        int[] data = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        int stride = ((SinglePixelPackedSampleModel) image.getRaster().getSampleModel()).getScanlineStride();
+        int offset = image.getRaster().getDataBuffer().getOffset();
+        return (y, rows, pixels) -> {
+            for (int r = 0; r < rows; r++) {
+                System.arraycopy(data, offset + (y + r) * stride, pixels, r * width, width);
+            }
+        };
+    }
+
+    /**
+     * Filter and deflate one band
+     * The first row of a band only uses filters that ignore the row above (None/Sub),
+     * so a band never depends on pixels read by another band
+     */
+    private static Band encodeBand(RowSource source, int width, int y, int rows, boolean alpha, boolean last) {
+        int bpp = alpha ? 4 : 3;
+        int rowBytes = width * bpp;
+
+        int[] pixels = new int[width * rows];
+        source.readRows(y, rows, pixels);
+
+        byte[] previous = new byte[rowBytes];
+        byte[] current = new byte[rowBytes];
+        byte[][] candidates = new byte[5][rowBytes];
+        byte[] raw = new byte[rows * (rowBytes + 1)];
+        int pos = 0;
+        for (int r = 0; r < rows; r++) {
+            toBytes(pixels, r * width, width, alpha, current);
+            int filter = chooseFilter(current, previous, bpp, candidates, r == 0 ? 2 : 5);
+            raw[pos++] = (byte) filter;
+            System.arraycopy(candidates[filter], 0, raw, pos, rowBytes);
+            pos += rowBytes;
+
+            byte[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+
+        Adler32 checksum = new Adler32();
+        checksum.update(raw, 0, raw.length);
+
+        Deflater deflater = new Deflater(COMPRESSION_LEVEL, true);
+        try {
+            deflater.setInput(raw);
+            if (last) {
+                deflater.finish();
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2 + 64);
+            byte[] buffer = new byte[64 * 1024];
+            int flush = last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH;
+            while (true) {
+                int n = deflater.deflate(buffer, 0, buffer.length, flush);
+                out.write(buffer, 0, n);
+                if (last ? deflater.finished() : n < buffer.length) {
+                    break;
+                }
+            }
+            return new Band(out.toByteArray(), checksum.getValue(), raw.length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void toBytes(int[] pixels, int offset, int width, boolean alpha, byte[] out) {
+        int p = 0;
+        for (int x = 0; x < width; x++) {
+            int argb = pixels[offset + x];
+            out[p++] = (byte) (argb >> 16);
+            out[p++] = (byte) (argb >> 8);
+            out[p++] = (byte) argb;
+            if (alpha) {
+                out[p++] = (byte) (argb >>> 24);
+            }
+        }
+    }
+
+    /**
+     * Apply the first filterCount PNG filters and pick the one with the smallest
+     * sum of absolute signed residuals (the heuristic recommended by the PNG spec)
+     */
+    private static int chooseFilter(byte[] row, byte[] prior, int bpp, byte[][] out, int filterCount) {
+        long[] scores = new long[5];
+        for (int i = 0; i < row.length; i++) {
+            int x = row[i] & 0xFF;
+            int a = i >= bpp ? row[i - bpp] & 0xFF : 0;
+            int b = prior[i] & 0xFF;
+            int c = i >= bpp ? prior[i - bpp] & 0xFF : 0;
+
+            byte none = (byte) x;
+            byte sub = (byte) (x - a);
+            byte up = (byte) (x - b);
+            byte avg = (byte) (x - ((a + b) >> 1));
+            byte paeth = (byte) (x - paethPredictor(a, b, c));
+
+            out[0][i] = none;
+            out[1][i] = sub;
+            out[2][i] = up;
+            out[3][i] = avg;
+            out[4][i] = paeth;
+            scores[0] += Math.abs(none);
+            scores[1] += Math.abs(sub);
+            scores[2] += Math.abs(up);
+            scores[3] += Math.abs(avg);
+            scores[4] += Math.abs(paeth);
+        }
+
+        int best = 0;
+        for (int f = 1; f < filterCount; f++) {
+            if (scores[f] < scores[best]) {
+                best = f;
+            }
+        }
+        return best;
+    }
+
+    private static int paethPredictor(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) return a;
+        if (pb <= pc) return b;
+        return c;
+    }
+
+    /**
+     * Adler-32 of two concatenated blocks from their individual checksums
+     * (same arithmetic as zlib's adler32_combine)
+     */
+    static long combineAdler(long adler1, long adler2, long length2) {
+        long rem = length2 % ADLER_BASE;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = (rem * sum1) % ADLER_BASE;
+        sum1 += (adler2 & 0xFFFF) + ADLER_BASE - 1;
+        sum2 += ((adler1 >>> 16) & 0xFFFF) + ((adler2 >>> 16) & 0xFFFF) + ADLER_BASE - rem;
+        if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+        if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+        if (sum2 >= (ADLER_BASE << 1)) sum2 -= (ADLER_BASE << 1);
+        if (sum2 >= ADLER_BASE) sum2 -= ADLER_BASE;
+        return (sum2 << 16) | sum1;
+    }
+
+    /**
+     * Write a chunk whose data is header + body + trailer (header/trailer may be null)
+     */
+    private static void writeChunk(WritableByteChannel channel, String type, byte[] body, byte[] header, byte[] trailer)
+            throws IOException {
+        byte[] typeBytes = type.getBytes("US-ASCII");
+        int headerLength = header != null ? header.length : 0;
+        int trailerLength = trailer != null ? trailer.length : 0;
+
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        if (header != null) crc.update(header);
+        crc.update(body);
+        if (trailer != null) crc.update(trailer);
+
+        ByteBuffer prefix = ByteBuffer.allocate(8);
+        prefix.putInt(headerLength + body.length + trailerLength).put(typeBytes).flip();
+        ByteBuffer suffix = ByteBuffer.allocate(4);
+        suffix.putInt((int) crc.getValue()).flip();
+
+        ByteBuffer[] buffers = {
+            prefix,
+            ByteBuffer.wrap(header != null ? header : new byte[0]),
+            ByteBuffer.wrap(body),
+            ByteBuffer.wrap(trailer != null ? trailer : new byte[0]),
+            suffix
+        };
+        if (channel instanceof GatheringByteChannel) {
+            long remaining = 12L + headerLength + body.length + trailerLength;
+            while (remaining > 0) {
+                remaining -= ((GatheringByteChannel) channel).write(buffers);
+            }
+        } else {
+            for (ByteBuffer buffer : buffers) {
+                writeFully(channel, buffer);
+            }
+        }
+    }
+
+    private static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Compressed output of one band
+     */
+    private static class Band {
+        final byte[] data;
+        final long adler;
+        final long rawLength;
+
+        Band(byte[] data, long adler, long rawLength) {
+            this.data = data;
+            this.adler = adler;
+            this.rawLength = rawLength;
+        }
+    }
+}
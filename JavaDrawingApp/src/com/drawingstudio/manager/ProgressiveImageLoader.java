@@ -0,0 +1,371 @@
+package com.drawingstudio.manager;
+
+import com.drawingstudio.metrics.EngineMetrics;
+import com.drawingstudio.metrics.FileEvent;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.util.*;
+import java.util.List;
+import javax.imageio.*;
+import javax.imageio.event.IIOReadUpdateListener;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Loads large images progressively
+ * A subsampled preview is decoded first so something shows almost at once,
+ * then full resolution is decoded in the background - tile by tile, nearest
+ * to the viewport first, for tiled formats, and strip by strip top-down for
+ * sequential ones. An image too big for the canvas is decoded the same way,
+ * but subsampled to at least twice the canvas size, and then handed over
+ * whole for a proper reduction. Listener callbacks always run on the AWT
+ * event thread.
+ */
+public class ProgressiveImageLoader {
+    private static final int TILE_SIZE = 256;
+    private static final long PREVIEW_PIXELS = 512 * 512;
+
+    /**
+     * Receives decoded pieces of the image on the event thread
+     */
+    public interface Listener {
+        /**
+         * A low-resolution version of the whole image is ready
+         */
+        void previewReady(BufferedImage preview, int fullWidth, int fullHeight);
+
+        /**
+         * A full-resolution tile is ready at image position (x, y)
+         */
+        void tileReady(BufferedImage tile, int x, int y);
+
+        /**
+         * A piece of the reduced-resolution image is ready at (x, y) of a
+         * reducedWidth x reducedHeight image; the whole follows in reducedImageReady
+         */
+        void reducedTileReady(BufferedImage tile, int x, int y, int reducedWidth, int reducedHeight);
+
+        /**
+         * The image was larger than the region and has been decoded at reduced
+         * resolution (still at least twice the region size) for scaling to fit
+         */
+        void reducedImageReady(BufferedImage image, int fullWidth, int fullHeight);
+
+        void loadFinished();
+
+        void loadFailed(String message);
+    }
+
+    private final File file;
+    private final Listener listener;
+    private volatile boolean cancelled;
+
+    public ProgressiveImageLoader(File file, Listener listener) {
+        this.file = file;
+        this.listener = listener;
+    }
+
+    /**
+     * Start loading on a background thread
+     * @param region Part of the image to decode at full resolution (null for all of it)
+     * @param viewport Visible area; tiles closest to its centre are decoded first
+     * @param fitToRegion Decode an image larger than the region at reduced
+     *                    resolution instead, for the receiver to scale down
+     */
+    public void start(Rectangle region, Rectangle viewport, boolean fitToRegion) {
+        Thread worker = new Thread(() -> load(region, viewport, fitToRegion), "image-loader");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Stop delivering tiles - already delivered pieces are left as they are
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    private void load(Rectangle region, Rectangle viewport, boolean fitToRegion) {
+        FileEvent event = new FileEvent();
+        event.begin();
+        long metricsStart = EngineMetrics.startTimer();
+        long startTime = System.nanoTime();
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            Iterator<ImageReader> readers = input != null ? ImageIO.getImageReaders(input) : null;
+            if (readers == null || !readers.hasNext()) {
+                deliverFailure("Unsupported image format");
+                return;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, false, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+
+                // Preview: subsample so roughly PREVIEW_PIXELS are decoded
+                int step = (int) Math.max(1, Math.ceil(Math.sqrt((double) width * height / PREVIEW_PIXELS)));
+                BufferedImage shown = null;
+                if (step > 1) {
+                    ImageReadParam param = reader.getDefaultReadParam();
+                    param.setSourceSubsampling(step, step, 0, 0);
+                    BufferedImage preview = reader.read(0, param);
+                    if (cancelled) {
+                        return;
+                    }
+                    shown = preview;
+                    EventQueue.invokeLater(() -> {
+                        if (!cancelled) {
+                            listener.previewReady(preview, width, height);
+                        }
+                    });
+                    System.out.printf("Preview of %dx%d image ready in %d ms%n",
+                        width, height, (System.nanoTime() - startTime) / 1_000_000);
+                }
+
+                Rectangle bounds = new Rectangle(0, 0, width, height);
+                Rectangle target = region != null ? region.intersection(bounds) : bounds;
+                if (fitToRegion && region != null && (width > region.width || height > region.height)) {
+                    loadReduced(reader, width, height, region, viewport, shown, step);
+                } else if (target.isEmpty()) {
+                    // Nothing to decode at full resolution
+                } else if (reader.isImageTiled(0)) {
+                    loadTiles(reader, target, viewport != null ? viewport : target);
+                } else {
+                    loadStrips(reader, target);
+                }
+                EngineMetrics.loadFinished(metricsStart, file.length());
+                if (event.shouldCommit()) {
+                    event.operation = FileEvent.LOAD;
+                    event.path = file.getAbsolutePath();
+                    event.bytes = file.length();
+                    event.width = width;
+                    event.height = height;
+                    event.commit();
+                }
+            } finally {
+                reader.dispose();
+            }
+
+            EventQueue.invokeLater(() -> {
+                if (!cancelled) {
+                    listener.loadFinished();
+                }
+            });
+            System.out.println("Image loaded from: " + file.getAbsolutePath() + " in "
+                + (System.nanoTime() - startTime) / 1_000_000 + " ms");
+        } catch (IOException | RuntimeException e) {
+            deliverFailure(e.getMessage());
+        }
+    }
+
+    /**
+     * Decode with the largest integer subsampling that keeps at least twice the
+     * region size, leaving the final reduction to a proper filter
+     * The preview is reused if it is already that detailed. Otherwise tiled
+     * formats are decoded region by region, the part that lands in the
+     * viewport first, and sequential ones in one pass handed over in strips;
+     * each piece is shown as it arrives and the whole image follows.
+     */
+    private void loadReduced(ImageReader reader, int width, int height, Rectangle region, Rectangle viewport,
+                             BufferedImage preview, int previewStep) throws IOException {
+        double ratio = Math.min((double) width / region.width, (double) height / region.height);
+        int step = Math.max(1, (int) (ratio / 2));
+        BufferedImage image;
+        if (preview != null && previewStep <= step) {
+            image = preview;
+        } else if (reader.isImageTiled(0)) {
+            image = loadReducedTiles(reader, width, height, step, region, viewport);
+        } else {
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceSubsampling(step, step, 0, 0);
+            int reducedWidth = (width + step - 1) / step;
+            int reducedHeight = (height + step - 1) / step;
+            image = readStrips(reader, param, (strip, y) -> EventQueue.invokeLater(() -> {
+                if (!cancelled) {
+                    listener.reducedTileReady(strip, 0, y, reducedWidth, reducedHeight);
+                }
+            }));
+        }
+        if (image == null || cancelled) {
+            return;
+        }
+        EventQueue.invokeLater(() -> {
+            if (!cancelled) {
+                listener.reducedImageReady(image, width, height);
+            }
+        });
+    }
+
+    /**
+     * Assemble the reduced image from subsampled source regions, one reduced
+     * tile each, ordered by distance from the viewport
+     * @return The reduced image, or null if cancelled
+     */
+    private BufferedImage loadReducedTiles(ImageReader reader, int width, int height, int step,
+                                           Rectangle region, Rectangle viewport) throws IOException {
+        int reducedWidth = (width + step - 1) / step;
+        int reducedHeight = (height + step - 1) / step;
+        Rectangle reduced = new Rectangle(0, 0, reducedWidth, reducedHeight);
+        // The viewport in reduced pixels: the image is scaled from reduced size to fit the region
+        Dimension fitted = ImageImporter.fitSize(reducedWidth, reducedHeight, region.width, region.height);
+        double scale = (double) reducedWidth / fitted.width;
+        Rectangle focus = viewport == null ? reduced : new Rectangle(
+            (int) ((viewport.x - region.x) * scale), (int) ((viewport.y - region.y) * scale),
+            (int) Math.ceil(viewport.width * scale), (int) Math.ceil(viewport.height * scale));
+
+        BufferedImage image = new BufferedImage(reducedWidth, reducedHeight, BufferedImage.TYPE_INT_ARGB);
+        for (Rectangle tile : tilesByPriority(reduced, focus)) {
+            if (cancelled) {
+                return null;
+            }
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(new Rectangle(tile.x * step, tile.y * step,
+                Math.min(tile.width * step, width - tile.x * step),
+                Math.min(tile.height * step, height - tile.y * step)));
+            param.setSourceSubsampling(step, step, 0, 0);
+            BufferedImage piece = reader.read(0, param);
+            ImageImporter.importInto(piece, image, tile.x, tile.y);
+            EventQueue.invokeLater(() -> {
+                if (!cancelled) {
+                    listener.reducedTileReady(piece, tile.x, tile.y, reducedWidth, reducedHeight);
+                }
+            });
+        }
+        return image;
+    }
+
+    /**
+     * Random-access formats: decode tile by tile in priority order
+     */
+    private void loadTiles(ImageReader reader, Rectangle target, Rectangle viewport) throws IOException {
+        for (Rectangle tile : tilesByPriority(target, viewport)) {
+            if (cancelled) {
+                return;
+            }
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(tile);
+            deliverTile(reader.read(0, param), tile.x, tile.y);
+        }
+    }
+
+    /**
+     * Sequential formats (PNG, GIF, BMP) must decode from the top, so re-reading
+     * per tile would be quadratic: decode the region in one pass and hand over
+     * each strip of TILE_SIZE rows as soon as the decoder has finished it
+     */
+    private void loadStrips(ImageReader reader, Rectangle target) throws IOException {
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceRegion(target);
+        readStrips(reader, param, (strip, y) -> deliverTile(strip, target.x, target.y + y));
+    }
+
+    /**
+     * Read in one pass, handing each finished strip of TILE_SIZE decoded rows
+     * to the sink with its first row, as the decoder finishes it
+     * @return The whole decoded image, or null if cancelled
+     */
+    private BufferedImage readStrips(ImageReader reader, ImageReadParam param, StripSink sink) throws IOException {
+        int[] delivered = {0};
+        IIOReadUpdateListener updates = new IIOReadUpdateAdapter() {
+            @Override
+            public void imageUpdate(ImageReader source, BufferedImage image, int minX, int minY,
+                                    int width, int height, int periodX, int periodY, int[] bands) {
+                if (periodX != 1 || periodY != 1) {
+                    return; // interlaced pass - wait for the finished image
+                }
+                int done = minY + height;
+                if (done - delivered[0] >= TILE_SIZE) {
+                    sink.strip(copyRows(image, delivered[0], done), delivered[0]);
+                    delivered[0] = done;
+                }
+                if (cancelled) {
+                    source.abort();
+                }
+            }
+        };
+        reader.addIIOReadUpdateListener(updates);
+        try {
+            BufferedImage image = reader.read(0, param);
+            if (cancelled) {
+                return null;
+            }
+            if (delivered[0] < image.getHeight()) {
+                sink.strip(copyRows(image, delivered[0], image.getHeight()), delivered[0]);
+            }
+            return image;
+        } finally {
+            reader.removeIIOReadUpdateListener(updates);
+        }
+    }
+
+    private interface StripSink {
+        void strip(BufferedImage strip, int firstRow);
+    }
+
+    private static BufferedImage copyRows(BufferedImage image, int fromRow, int toRow) {
+        BufferedImage strip = new BufferedImage(image.getWidth(), toRow - fromRow, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = strip.createGraphics();
+        g.drawImage(image.getSubimage(0, fromRow, image.getWidth(), toRow - fromRow), 0, 0, null);
+        g.dispose();
+        return strip;
+    }
+
+    private void deliverTile(BufferedImage tile, int x, int y) {
+        EventQueue.invokeLater(() -> {
+            if (!cancelled) {
+                listener.tileReady(tile, x, y);
+            }
+        });
+    }
+
+    /**
+     * Split the region into tiles ordered by distance from the viewport centre,
+     * tiles that intersect the viewport always coming first
+     */
+    private static List<Rectangle> tilesByPriority(Rectangle region, Rectangle viewport) {
+        List<Rectangle> tiles = new ArrayList<>();
+        for (int y = region.y; y < region.y + region.height; y += TILE_SIZE) {
+            for (int x = region.x; x < region.x + region.width; x += TILE_SIZE) {
+                tiles.add(new Rectangle(x, y,
+                    Math.min(TILE_SIZE, region.x + region.width - x),
+                    Math.min(TILE_SIZE, region.y + region.height - y)));
+            }
+        }
+
+        double cx = viewport.getCenterX();
+        double cy = viewport.getCenterY();
+        tiles.sort(Comparator
+            .comparing((Rectangle t) -> !t.intersects(viewport))
+            .thenComparingDouble(t -> Point.distanceSq(t.getCenterX(), t.getCenterY(), cx, cy)));
+        return tiles;
+    }
+
+    /**
+     * No-op update listener so only imageUpdate needs overriding
+     */
+    private static class IIOReadUpdateAdapter implements IIOReadUpdateListener {
+        public void passStarted(ImageReader source, BufferedImage image, int pass, int minPass, int maxPass,
+                                int minX, int minY, int periodX, int periodY, int[] bands) {}
+        public void imageUpdate(ImageReader source, BufferedImage image, int minX, int minY,
+                                int width, int height, int periodX, int periodY, int[] bands) {}
+        public void passComplete(ImageReader source, BufferedImage image) {}
+        public void thumbnailPassStarted(ImageReader source, BufferedImage thumbnail, int pass, int minPass,
+                                         int maxPass, int minX, int minY, int periodX, int periodY, int[] bands) {}
+        public void thumbnailUpdate(ImageReader source, BufferedImage thumbnail, int minX, int minY,
+                                    int width, int height, int periodX, int periodY, int[] bands) {}
+        public void thumbnailPassComplete(ImageReader source, BufferedImage thumbnail) {}
+    }
+
+    private void deliverFailure(String message) {
+        System.out.println("Error loading file: " + message);
+        EventQueue.invokeLater(() -> {
+            if (!cancelled) {
+                listener.loadFailed(message);
+            }
+        });
+    }
+}
@@ -0,0 +1,231 @@
+package com.drawingstudio.manager;
+
+import com.drawingstudio.layers.BlendMode;
+import com.drawingstudio.layers.Layer;
+import com.drawingstudio.layers.LayerStack;
+import com.drawingstudio.shapes.ShapeBase;
+import com.drawingstudio.shapes.ShapeStore;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Streams the drawing to SVG
+ * Shapes are written one element at a time through a buffered writer - no DOM
+ * is built, so memory use does not grow with the number of shapes. Each
+ * visible layer becomes a group: its raster embedded as PNG tiles (skipping
+ * fully transparent ones), then its shapes.
+ */
+public class SvgExporter {
+    private static final int TILE_SIZE = 256;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Writer out;
+    private final StringBuilder line = new StringBuilder(160);
+
+    private SvgExporter(Writer out) {
+        this.out = out;
+    }
+
+    /**
+     * Export the drawing as an SVG file
+     * @param file The file to write (".svg" is appended if missing)
+     * @param layers The layers, bottom first; hidden layers are left out
+     * @return true if successful, false otherwise
+     */
+    public static boolean exportSvg(File file, LayerStack layers) {
+        if (!file.getName().toLowerCase().endsWith(".svg")) {
+            file = new File(file.getParent(), file.getName() + ".svg");
+        }
+
+        try (Writer writer = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), BUFFER_SIZE)) {
+            SvgExporter exporter = new SvgExporter(writer);
+            exporter.writeHeader(layers.getWidth(), layers.getHeight());
+            for (int i = 0; i < layers.size(); i++) {
+                Layer layer = layers.get(i);
+                if (layer.isVisible()) {
+                    exporter.writeLayer(layer);
+                }
+            }
+            writer.write("</svg>\n");
+
+            System.out.println("Drawing exported to: " + file.getAbsolutePath());
+            return true;
+        } catch (IOException e) {
+            System.out.println("Error exporting file: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private void writeHeader(int width, int height) throws IOException {
+        out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        out.write("<svg xmlns=\"http://www.w3.org/2000/svg\" xmlns:xlink=\"http://www.w3.org/1999/xlink\" width=\""
+            + width + "\" height=\"" + height + "\" viewBox=\"0 0 " + width + " " + height + "\">\n");
+        out.write("<rect width=\"100%\" height=\"100%\" fill=\"#ffffff\"/>\n");
+    }
+
+    private void writeLayer(Layer layer) throws IOException {
+        out.write("<g");
+        if (layer.getOpacity() < 1f) {
+            out.write(" opacity=\"" + layer.getOpacity() + "\"");
+        }
+        if (layer.getBlendMode() != BlendMode.NORMAL) {
+            // CSS uses the same names for these modes
+            out.write(" style=\"mix-blend-mode:" + layer.getBlendMode().name().toLowerCase() + "\"");
+        }
+        out.write(">\n");
+        writeRaster(layer.getImage());
+        writeShapes(layer.getShapes());
+        out.write("</g>\n");
+    }
+
+    private void writeShapes(List<ShapeBase> shapes) throws IOException {
+        out.write("<g fill=\"none\" stroke-linecap=\"round\" stroke-linejoin=\"round\">\n");
+        if (shapes instanceof ShapeStore) {
+            // Columnar store: read primitives straight from the columns
+            ShapeStore store = (ShapeStore) shapes;
+            for (int i = 0; i < store.size(); i++) {
+                writeShape(ShapeStore.typeName(store.kind(i)), store.x0(i), store.y0(i),
+                    store.x1(i), store.y1(i), store.argb(i), (int) store.strokeWidth(i));
+            }
+        } else {
+            for (ShapeBase shape : shapes) {
+                Point start = shape.getStartPoint();
+                Point end = shape.getEndPoint();
+                writeShape(shape.getType(), start.x, start.y, end.x, end.y,
+                    shape.getColor().getRGB(), shape.getStrokeWidth());
+            }
+        }
+        out.write("</g>\n");
+    }
+
+    /**
+     * Embed non-blank tiles of a layer's raster as base64 PNG images with alpha
+     */
+    private void writeRaster(BufferedImage image) throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels = new int[TILE_SIZE * TILE_SIZE];
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+
+        for (int ty = 0; ty < height; ty += TILE_SIZE) {
+            for (int tx = 0; tx < width; tx += TILE_SIZE) {
+                int w = Math.min(TILE_SIZE, width - tx);
+                int h = Math.min(TILE_SIZE, height - ty);
+                image.getRGB(tx, ty, w, h, pixels, 0, w);
+                if (isBlank(pixels, w * h)) {
+                    continue;
+                }
+
+                png.reset();
+                int tileX = tx;
+                int tileY = ty;
+                PngEncoder.write(Channels.newChannel(png), w, h, true,
+                    (y, rows, rowPixels) -> image.getRGB(tileX, tileY + y, w, rows, rowPixels, 0, w));
+
+                out.write("<image x=\"" + tx + "\" y=\"" + ty + "\" width=\"" + w + "\" height=\"" + h
+                    + "\" xlink:href=\"data:image/png;base64,");
+                out.write(Base64.getEncoder().encodeToString(png.toByteArray()));
+                out.write("\"/>\n");
+            }
+        }
+    }
+
+    private static boolean isBlank(int[] pixels, int count) {
+        for (int i = 0; i < count; i++) {
+            if ((pixels[i] >>> 24) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Write one shape element from primitive values, matching what each
+     * ShapeBase subclass draws
+     */
+    void writeShape(String type, int x0, int y0, int x1, int y1, int argb, int strokeWidth) throws IOException {
+        StringBuilder sb = line;
+        sb.setLength(0);
+        int x = Math.min(x0, x1);
+        int y = Math.min(y0, y1);
+        int width = Math.abs(x1 - x0);
+        int height = Math.abs(y1 - y0);
+
+        switch (type) {
+            case "LINE":
+                sb.append("<line x1=\"").append(x0).append("\" y1=\"").append(y0)
+                  .append("\" x2=\"").append(x1).append("\" y2=\"").append(y1).append('"');
+                break;
+            case "RECTANGLE":
+                sb.append("<rect x=\"").append(x).append("\" y=\"").append(y)
+                  .append("\" width=\"").append(width).append("\" height=\"").append(height).append('"');
+                break;
+            case "OVAL":
+                sb.append("<ellipse cx=\"");
+                appendHalf(sb, 2 * x + width);
+                sb.append("\" cy=\"");
+                appendHalf(sb, 2 * y + height);
+                sb.append("\" rx=\"");
+                appendHalf(sb, width);
+                sb.append("\" ry=\"");
+                appendHalf(sb, height);
+                sb.append('"');
+                break;
+            case "TRIANGLE":
+                sb.append("<polygon points=\"")
+                  .append(x0).append(',').append(y0).append(' ')
+                  .append(x1).append(',').append(y1).append(' ')
+                  .append(x0 + (x0 - x1)).append(',').append(y1).append('"');
+                break;
+            case "DIAMOND":
+                int centerX = (x0 + x1) / 2;
+                int centerY = (y0 + y1) / 2;
+                int halfWidth = width / 2;
+                int halfHeight = height / 2;
+                sb.append("<polygon points=\"")
+                  .append(centerX).append(',').append(centerY - halfHeight).append(' ')
+                  .append(centerX + halfWidth).append(',').append(centerY).append(' ')
+                  .append(centerX).append(',').append(centerY + halfHeight).append(' ')
+                  .append(centerX - halfWidth).append(',').append(centerY).append('"');
+                break;
+            default:
+                return;
+        }
+
+        sb.append(" stroke=\"#");
+        appendHex(sb, (argb >> 16) & 0xFF);
+        appendHex(sb, (argb >> 8) & 0xFF);
+        appendHex(sb, argb & 0xFF);
+        sb.append('"');
+        int alpha = argb >>> 24;
+        if (alpha != 0xFF) {
+            sb.append(" stroke-opacity=\"").append(alpha / 255f).append('"');
+        }
+        sb.append(" stroke-width=\"").append(strokeWidth).append("\"/>\n");
+        out.append(sb);
+    }
+
+    /**
+     * Append value / 2 without going through floating point
+     */
+    private static void appendHalf(StringBuilder sb, int value) {
+        if (value < 0) {
+            sb.append('-');
+            value = -value;
+        }
+        sb.append(value >> 1);
+        if ((value & 1) != 0) {
+            sb.append(".5");
+        }
+    }
+
+    private static void appendHex(StringBuilder sb, int value) {
+        sb.append(Character.forDigit(value >> 4, 16)).append(Character.forDigit(value & 0xF, 16));
+    }
+}
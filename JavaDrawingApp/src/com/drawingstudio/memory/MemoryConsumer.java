@@ -0,0 +1,24 @@
+package com.drawingstudio.memory;
+
+/**
+ * Something holding memory the MemoryGovernor may ask back - a cache, a
+ * pool or the undo history
+ * Called on the thread that uses the document (the event thread in the
+ * application), so implementations need no locking of their own.
+ */
+public interface MemoryConsumer {
+    /**
+     * Bytes currently held, approximately
+     */
+    long getMemoryBytes();
+
+    /**
+     * Give memory back, cheapest first
+     * @param bytes How much the governor would like freed
+     * @param evict false to free only what costs nothing to lose - idle or
+     *              rebuildable memory, or data that can be compressed;
+     *              true to also discard things that can't be got back
+     * @return Bytes actually freed
+     */
+    long reclaim(long bytes, boolean evict);
+}
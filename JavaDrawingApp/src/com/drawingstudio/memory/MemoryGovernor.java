@@ -0,0 +1,314 @@
+package com.drawingstudio.memory;
+
+import java.awt.EventQueue;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.management.JMException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.ObjectName;
+
+/**
+ * One memory budget shared by everything that holds memory on the
+ * document's behalf: undo history, composite and sprite caches, the surface
+ * pool and the colour palette
+ * Consumers register with a priority. When their total passes the compress
+ * threshold, they are asked in priority order - idle memory first, caches
+ * next, history last - to free what costs nothing to lose, which for the
+ * history means compressing snapshots. Past the evict threshold, old undo
+ * steps are discarded as well. Either way usage is brought down to a tenth
+ * of the budget below the compress threshold, so the next edit doesn't
+ * start it all again.
+ * <p>
+ * register() also watches the heap: when a collection leaves the old
+ * generation fuller than its threshold, consumers are asked for half of
+ * what they hold, evicting if need be, however far under budget they are -
+ * the budget was set for a heap that has turned out to be too small.
+ * <p>
+ * Budget and thresholds come from -Ddrawingstudio.memory.budgetMB (default
+ * half the maximum heap), -Ddrawingstudio.memory.compressAt (0.75),
+ * -Ddrawingstudio.memory.evictAt (0.9) and -Ddrawingstudio.memory.heapAt
+ * (0.85 of the old generation), and can be changed over JMX.
+ * Consumers are held weakly, so a discarded document unregisters itself.
+ */
+public final class MemoryGovernor implements MemoryGovernorMXBean {
+    public static final String OBJECT_NAME = "com.drawingstudio:type=MemoryGovernor";
+
+    /**
+     * Order in which consumers give memory back
+     */
+    public enum Priority {
+        IDLE,       // held for reuse only
+        CACHE,      // rebuilt on demand
+        HISTORY     // compressed, and only discarded past the evict threshold
+    }
+
+    private static final MemoryGovernor SHARED = new MemoryGovernor(
+        Long.getLong("drawingstudio.memory.budgetMB", Runtime.getRuntime().maxMemory() / 2 >> 20) << 20,
+        doubleProperty("drawingstudio.memory.compressAt", 0.75),
+        doubleProperty("drawingstudio.memory.evictAt", 0.9));
+    private static final double HEAP_THRESHOLD = doubleProperty("drawingstudio.memory.heapAt", 0.85);
+
+    private final List<Registration> registrations = new ArrayList<>();
+    private volatile long budget;
+    private volatile double compressAt;
+    private volatile double evictAt;
+
+    private volatile long reclaims;
+    private volatile long bytesReclaimed;
+    private volatile long heapAlerts;
+
+    public MemoryGovernor(long budget, double compressAt, double evictAt) {
+        this.budget = budget;
+        this.compressAt = compressAt;
+        this.evictAt = evictAt;
+    }
+
+    /**
+     * Governor every document registers with
+     */
+    public static MemoryGovernor shared() {
+        return SHARED;
+    }
+
+    /**
+     * Publish the shared governor on the platform MBean server and start
+     * listening for heap pressure
+     */
+    public static void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(SHARED, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            System.out.println("Error registering memory governor: " + e.getMessage());
+        }
+        boolean watched = false;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            // The old generation: the pool whose usage after a collection is live data
+            long max = pool.getUsage().getMax();
+            if (pool.getType() == MemoryType.HEAP && pool.isUsageThresholdSupported()
+                    && pool.isCollectionUsageThresholdSupported() && max > 0) {
+                pool.setCollectionUsageThreshold((long) (max * HEAP_THRESHOLD));
+                watched = true;
+            }
+        }
+        if (watched) {
+            ((NotificationEmitter) ManagementFactory.getMemoryMXBean())
+                .addNotificationListener((notification, handback) -> SHARED.heapNotification(notification), null, null);
+        }
+    }
+
+    /**
+     * Put a consumer under the budget
+     * @param name Shown in the usage by consumer; several may share one
+     */
+    public synchronized void register(String name, Priority priority, MemoryConsumer consumer) {
+        registrations.add(new Registration(name, priority, consumer));
+    }
+
+    /**
+     * Reclaim memory if the consumers are over the compress threshold
+     * Called by consumers after they grow, on the document's thread.
+     */
+    public void check() {
+        long usage = measure();
+        long compressLimit = (long) (budget * compressAt);
+        if (usage > compressLimit) {
+            shed(usage - compressLimit + budget / 10, usage > (long) (budget * evictAt));
+        }
+    }
+
+    /**
+     * Ask consumers, lowest priority first, for bytes: first only what is free
+     * to give, then - if evict - whatever they can
+     * @return Bytes freed
+     */
+    private long shed(long bytes, boolean evict) {
+        List<MemoryConsumer> consumers = new ArrayList<>();
+        for (Registration registration : live()) {
+            MemoryConsumer consumer = registration.consumer.get();
+            if (consumer != null) {
+                consumers.add(consumer);
+            }
+        }
+        long freed = 0;
+        for (MemoryConsumer consumer : consumers) {
+            if (freed >= bytes) {
+                break;
+            }
+            freed += consumer.reclaim(bytes - freed, false);
+        }
+        if (evict) {
+            for (MemoryConsumer consumer : consumers) {
+                if (freed >= bytes) {
+                    break;
+                }
+                freed += consumer.reclaim(bytes - freed, true);
+            }
+        }
+        reclaims++;
+        bytesReclaimed += freed;
+        return freed;
+    }
+
+    private void heapNotification(Notification notification) {
+        if (!notification.getType().equals(MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED)) {
+            return;
+        }
+        heapAlerts++;
+        // Consumers belong to the event thread; the notification arrives on a JMX one
+        EventQueue.invokeLater(() -> shed(measure() / 2, true));
+    }
+
+    /**
+     * Bytes held by every live consumer
+     */
+    private long measure() {
+        long usage = 0;
+        for (Registration registration : live()) {
+            MemoryConsumer consumer = registration.consumer.get();
+            if (consumer != null) {
+                usage += consumer.getMemoryBytes();
+            }
+        }
+        return usage;
+    }
+
+    /**
+     * Registrations whose consumer is still reachable, by priority
+     */
+    private synchronized List<Registration> live() {
+        for (Iterator<Registration> it = registrations.iterator(); it.hasNext(); ) {
+            if (it.next().consumer.get() == null) {
+                it.remove();
+            }
+        }
+        List<Registration> live = new ArrayList<>(registrations);
+        live.sort(Comparator.comparing(registration -> registration.priority));
+        return live;
+    }
+
+    // MemoryGovernorMXBean - figures are read on the event thread, where the consumers live
+
+    @Override
+    public long getBudget() {
+        return budget;
+    }
+
+    @Override
+    public void setBudget(long bytes) {
+        budget = Math.max(0, bytes);
+        EventQueue.invokeLater(this::check);
+    }
+
+    @Override
+    public double getCompressThreshold() {
+        return compressAt;
+    }
+
+    @Override
+    public void setCompressThreshold(double fraction) {
+        compressAt = fraction;
+        EventQueue.invokeLater(this::check);
+    }
+
+    @Override
+    public double getEvictThreshold() {
+        return evictAt;
+    }
+
+    @Override
+    public void setEvictThreshold(double fraction) {
+        evictAt = fraction;
+        EventQueue.invokeLater(this::check);
+    }
+
+    @Override
+    public long getUsage() {
+        long[] usage = new long[1];
+        onEventThread(() -> usage[0] = measure());
+        return usage[0];
+    }
+
+    @Override
+    public Map<String, Long> getUsageByConsumer() {
+        Map<String, Long> usage = new TreeMap<>();
+        onEventThread(() -> {
+            for (Registration registration : live()) {
+                MemoryConsumer consumer = registration.consumer.get();
+                if (consumer != null) {
+                    usage.merge(registration.name, consumer.getMemoryBytes(), Long::sum);
+                }
+            }
+        });
+        return usage;
+    }
+
+    @Override
+    public long getReclaims() {
+        return reclaims;
+    }
+
+    @Override
+    public long getBytesReclaimed() {
+        return bytesReclaimed;
+    }
+
+    @Override
+    public long getHeapAlerts() {
+        return heapAlerts;
+    }
+
+    @Override
+    public void reclaimNow() {
+        onEventThread(() -> shed(Long.MAX_VALUE, false));
+    }
+
+    private static void onEventThread(Runnable task) {
+        if (EventQueue.isDispatchThread()) {
+            task.run();
+            return;
+        }
+        try {
+            EventQueue.invokeAndWait(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (InvocationTargetException e) {
+            System.out.println("Error reading memory usage: " + e.getCause());
+        }
+    }
+
+    private static double doubleProperty(String name, double fallback) {
+        String value = System.getProperty(name);
+        if (value == null) {
+            return fallback;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            System.out.println("Ignoring " + name + "=" + value + ": not a number");
+            return fallback;
+        }
+    }
+
+    private static final class Registration {
+        final String name;
+        final Priority priority;
+        final WeakReference<MemoryConsumer> consumer;
+
+        Registration(String name, Priority priority, MemoryConsumer consumer) {
+            this.name = name;
+            this.priority = priority;
+            this.consumer = new WeakReference<>(consumer);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.drawingstudio.memory;
+
+import java.util.Map;
+
+/**
+ * Management interface of MemoryGovernor, registered as
+ * com.drawingstudio:type=MemoryGovernor
+ */
+public interface MemoryGovernorMXBean {
+    /** Bytes the registered consumers may hold together */
+    long getBudget();
+
+    void setBudget(long bytes);
+
+    /** Fraction of the budget past which consumers compress and drop caches */
+    double getCompressThreshold();
+
+    void setCompressThreshold(double fraction);
+
+    /** Fraction of the budget past which undo steps are discarded too */
+    double getEvictThreshold();
+
+    void setEvictThreshold(double fraction);
+
+    /** Bytes held by all consumers */
+    long getUsage();
+
+    /** Bytes held by each kind of consumer */
+    Map<String, Long> getUsageByConsumer();
+
+    /** Times memory was reclaimed, for the budget or heap pressure */
+    long getReclaims();
+
+    long getBytesReclaimed();
+
+    /** Heap collection-usage threshold notifications received */
+    long getHeapAlerts();
+
+    /** Compress and drop caches now, as if the budget had been passed */
+    void reclaimNow();
+}
@@ -0,0 +1,190 @@
+package com.drawingstudio.metrics;
+
+import com.drawingstudio.utils.SurfacePool;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms for the drawing engine, published over JMX
+ * Collection is off unless the JVM is started with -Ddrawingstudio.metrics=true
+ * or Enabled is set from a JMX console. The instrumented code calls
+ * startTimer(), which is a single volatile read while collection is off, and
+ * passes its result to the matching *Finished method, which ignores a 0.
+ * The JFR events in this package are separate and cost nothing until a
+ * recording enables them.
+ */
+public final class EngineMetrics implements EngineMetricsMXBean {
+    public static final String OBJECT_NAME = "com.drawingstudio:type=EngineMetrics";
+
+    private static final EngineMetrics INSTANCE = new EngineMetrics();
+    private static volatile boolean enabled = Boolean.getBoolean("drawingstudio.metrics");
+
+    private final LatencyHistogram paint = new LatencyHistogram();
+    private final LatencyHistogram snapshot = new LatencyHistogram();
+    private final LatencyHistogram save = new LatencyHistogram();
+    private final LatencyHistogram load = new LatencyHistogram();
+    private final LatencyHistogram hitTest = new LatencyHistogram();
+    private final LongAdder snapshotBytes = new LongAdder();
+    private final LongAdder savedBytes = new LongAdder();
+    private final LongAdder loadedBytes = new LongAdder();
+    private final LongAdder hitTestCandidates = new LongAdder();
+
+    private EngineMetrics() {
+    }
+
+    public static EngineMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Publish the metrics on the platform MBean server
+     */
+    public static void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            System.out.println("Error registering engine metrics: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Start of a timed operation, or 0 while collection is off
+     */
+    public static long startTimer() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    public static void paintFinished(long start) {
+        if (start != 0) {
+            INSTANCE.paint.record(System.nanoTime() - start);
+        }
+    }
+
+    public static void snapshotFinished(long start, long bytesCopied) {
+        if (start != 0) {
+            INSTANCE.snapshot.record(System.nanoTime() - start);
+            INSTANCE.snapshotBytes.add(bytesCopied);
+        }
+    }
+
+    public static void saveFinished(long start, long bytes) {
+        if (start != 0) {
+            INSTANCE.save.record(System.nanoTime() - start);
+            INSTANCE.savedBytes.add(bytes);
+        }
+    }
+
+    public static void loadFinished(long start, long bytes) {
+        if (start != 0) {
+            INSTANCE.load.record(System.nanoTime() - start);
+            INSTANCE.loadedBytes.add(bytes);
+        }
+    }
+
+    public static void hitTestFinished(long start, int candidates) {
+        if (start != 0) {
+            INSTANCE.hitTest.record(System.nanoTime() - start);
+            INSTANCE.hitTestCandidates.add(candidates);
+        }
+    }
+
+    // EngineMetricsMXBean
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(boolean on) {
+        enabled = on;
+    }
+
+    @Override
+    public LatencySummary getPaintLatency() {
+        return paint.summary();
+    }
+
+    @Override
+    public LatencySummary getSnapshotLatency() {
+        return snapshot.summary();
+    }
+
+    @Override
+    public long getSnapshotBytesCopied() {
+        return snapshotBytes.sum();
+    }
+
+    @Override
+    public LatencySummary getSaveLatency() {
+        return save.summary();
+    }
+
+    @Override
+    public long getBytesSaved() {
+        return savedBytes.sum();
+    }
+
+    @Override
+    public LatencySummary getLoadLatency() {
+        return load.summary();
+    }
+
+    @Override
+    public long getBytesLoaded() {
+        return loadedBytes.sum();
+    }
+
+    @Override
+    public LatencySummary getHitTestLatency() {
+        return hitTest.summary();
+    }
+
+    @Override
+    public long getHitTestCandidatesScanned() {
+        return hitTestCandidates.sum();
+    }
+
+    // The pool keeps its own counts whether or not collection is on
+
+    @Override
+    public double getSurfacePoolHitRate() {
+        return SurfacePool.shared().getHitRate();
+    }
+
+    @Override
+    public long getSurfacePoolBytesReused() {
+        return SurfacePool.shared().getBytesReused();
+    }
+
+    @Override
+    public long getSurfacePoolIdleBytes() {
+        return SurfacePool.shared().getIdleBytes();
+    }
+
+    @Override
+    public long getSurfacePoolOutstanding() {
+        return SurfacePool.shared().getOutstanding();
+    }
+
+    @Override
+    public long getSurfacePoolLeaked() {
+        return SurfacePool.shared().getLeaked();
+    }
+
+    @Override
+    public void reset() {
+        paint.reset();
+        snapshot.reset();
+        save.reset();
+        load.reset();
+        hitTest.reset();
+        snapshotBytes.reset();
+        savedBytes.reset();
+        loadedBytes.reset();
+        hitTestCandidates.reset();
+        SurfacePool.shared().resetCounters();
+    }
+}
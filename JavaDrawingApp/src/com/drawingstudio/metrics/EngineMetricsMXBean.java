@@ -0,0 +1,51 @@
+package com.drawingstudio.metrics;
+
+/**
+ * Management interface of EngineMetrics, registered as
+ * com.drawingstudio:type=EngineMetrics
+ */
+public interface EngineMetricsMXBean {
+    /** Whether timings and counters are being collected */
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    /** Canvas frames painted */
+    LatencySummary getPaintLatency();
+
+    /** Layer snapshots taken for undo and redo */
+    LatencySummary getSnapshotLatency();
+
+    long getSnapshotBytesCopied();
+
+    /** PNG saves, compositing and encoding included */
+    LatencySummary getSaveLatency();
+
+    long getBytesSaved();
+
+    /** Image loads, until the last tile is decoded */
+    LatencySummary getLoadLatency();
+
+    long getBytesLoaded();
+
+    /** Searches for the shape under the eraser */
+    LatencySummary getHitTestLatency();
+
+    long getHitTestCandidatesScanned();
+
+    /** Fraction of transient surfaces (composites, bands, undo snapshots) reused from the pool */
+    double getSurfacePoolHitRate();
+
+    /** Bytes of image the surface pool has saved allocating */
+    long getSurfacePoolBytesReused();
+
+    long getSurfacePoolIdleBytes();
+
+    long getSurfacePoolOutstanding();
+
+    /** Surfaces collected without being returned; only counted with -Ddrawingstudio.pool.debug=true */
+    long getSurfacePoolLeaked();
+
+    /** Start every histogram and counter again from zero */
+    void reset();
+}
@@ -0,0 +1,36 @@
+package com.drawingstudio.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A drawing saved or an image loaded; the duration covers encoding or decoding
+ */
+@Name("com.drawingstudio.File")
+@Label("Save or Load")
+@Category({"Drawing Studio", "Files"})
+@Description("PNG save, compositing and encoding included, or image load until the last tile")
+public class FileEvent extends Event {
+    public static final String SAVE = "save";
+    public static final String LOAD = "load";
+
+    @Label("Operation")
+    public String operation;
+
+    @Label("Path")
+    public String path;
+
+    @Label("File Size")
+    @DataAmount
+    public long bytes;
+
+    @Label("Width")
+    public int width;
+
+    @Label("Height")
+    public int height;
+}
@@ -0,0 +1,28 @@
+package com.drawingstudio.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * One canvas frame, from compositing the layers to copying the result on screen
+ */
+@Name("com.drawingstudio.Paint")
+@Label("Paint Frame")
+@Category({"Drawing Studio", "Canvas"})
+@Description("Canvas repaint: cached composites, active layer, overlays")
+public class FrameEvent extends Event {
+    @Label("Repainted Width")
+    public int areaWidth;
+
+    @Label("Repainted Height")
+    public int areaHeight;
+
+    @Label("Layers")
+    public int layers;
+
+    @Label("Active Layer Shapes")
+    public int shapes;
+}
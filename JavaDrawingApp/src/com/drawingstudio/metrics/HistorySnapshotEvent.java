@@ -0,0 +1,27 @@
+package com.drawingstudio.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Copy of one layer's raster and shapes taken for undo or redo
+ */
+@Name("com.drawingstudio.HistorySnapshot")
+@Label("History Snapshot")
+@Category({"Drawing Studio", "History"})
+@Description("Layer raster and shapes copied for undo or redo")
+public class HistorySnapshotEvent extends Event {
+    @Label("Layer Id")
+    public int layerId;
+
+    @Label("Bytes Copied")
+    @DataAmount
+    public long bytesCopied;
+
+    @Label("Shapes")
+    public int shapes;
+}
@@ -0,0 +1,25 @@
+package com.drawingstudio.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Search for the topmost shape under a point
+ */
+@Name("com.drawingstudio.HitTest")
+@Label("Hit Test")
+@Category({"Drawing Studio", "Canvas"})
+@Description("Topmost-first scan of a layer's shapes for the one under the eraser")
+public class HitTestEvent extends Event {
+    @Label("Candidates Scanned")
+    public int candidates;
+
+    @Label("Shapes")
+    public int shapes;
+
+    @Label("Hit")
+    public boolean hit;
+}
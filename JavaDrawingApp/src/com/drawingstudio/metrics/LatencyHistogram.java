@@ -0,0 +1,100 @@
+package com.drawingstudio.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram with log-linear buckets: eight per power of two, so a
+ * percentile read back is within 12.5% of the true value while the whole
+ * range from 1 ns to centuries fits in under 500 counters
+ * Recording is lock-free and safe from any thread.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public void record(long nanos) {
+        nanos = Math.max(nanos, 0);
+        counts.incrementAndGet(bucket(nanos));
+        count.increment();
+        totalNanos.add(nanos);
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+            max = maxNanos.get();
+        }
+    }
+
+    /**
+     * Count, mean, percentiles and maximum so far
+     * Taken while other threads record, so the figures may be a few samples apart.
+     */
+    public LatencySummary summary() {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        long samples = count.sum();
+        double mean = samples == 0 ? 0 : totalNanos.sum() / 1e6 / samples;
+        long max = maxNanos.get();
+        return new LatencySummary(samples, mean,
+            percentile(snapshot, total, 50, max), percentile(snapshot, total, 90, max),
+            percentile(snapshot, total, 99, max), percentile(snapshot, total, 99.9, max),
+            max / 1e6);
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.reset();
+        totalNanos.reset();
+        maxNanos.set(0);
+    }
+
+    /**
+     * Milliseconds at a percentile: the middle of the bucket holding that rank,
+     * but never more than the largest sample
+     */
+    private static double percentile(long[] snapshot, long total, double percentile, long max) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                long low = lowerBound(i);
+                long high = i + 1 < BUCKETS ? lowerBound(i + 1) : Long.MAX_VALUE;
+                return Math.min(low + (high - low) / 2, max) / 1e6;
+            }
+        }
+        return 0;
+    }
+
+    static int bucket(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = (int) (nanos >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return ((exponent - SUB_BITS + 1) << SUB_BITS) + sub;
+    }
+
+    static long lowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = (bucket >> SUB_BITS) + SUB_BITS - 1;
+        return (1L << exponent) + ((long) (bucket & (SUB_BUCKETS - 1)) << (exponent - SUB_BITS));
+    }
+}
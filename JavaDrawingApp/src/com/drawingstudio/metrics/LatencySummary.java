@@ -0,0 +1,43 @@
+package com.drawingstudio.metrics;
+
+import javax.management.ConstructorParameters;
+
+/**
+ * Point-in-time figures from a LatencyHistogram, in milliseconds
+ * Shown by JMX consoles as one composite attribute.
+ */
+public class LatencySummary {
+    private final long count;
+    private final double meanMillis;
+    private final double p50Millis;
+    private final double p90Millis;
+    private final double p99Millis;
+    private final double p999Millis;
+    private final double maxMillis;
+
+    @ConstructorParameters({"count", "meanMillis", "p50Millis", "p90Millis", "p99Millis", "p999Millis", "maxMillis"})
+    public LatencySummary(long count, double meanMillis, double p50Millis, double p90Millis,
+                          double p99Millis, double p999Millis, double maxMillis) {
+        this.count = count;
+        this.meanMillis = meanMillis;
+        this.p50Millis = p50Millis;
+        this.p90Millis = p90Millis;
+        this.p99Millis = p99Millis;
+        this.p999Millis = p999Millis;
+        this.maxMillis = maxMillis;
+    }
+
+    public long getCount() { return count; }
+    public double getMeanMillis() { return meanMillis; }
+    public double getP50Millis() { return p50Millis; }
+    public double getP90Millis() { return p90Millis; }
+    public double getP99Millis() { return p99Millis; }
+    public double getP999Millis() { return p999Millis; }
+    public double getMaxMillis() { return maxMillis; }
+
+    @Override
+    public String toString() {
+        return String.format("%d samples, mean %.3f ms, p50 %.3f p90 %.3f p99 %.3f p99.9 %.3f max %.3f",
+            count, meanMillis, p50Millis, p90Millis, p99Millis, p999Millis, maxMillis);
+    }
+}
@@ -0,0 +1,105 @@
+package com.drawingstudio.replay;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * Format of a recorded session, shared by the recorder and the replayer
+ * A header (magic, canvas width and height, wall-clock start) is followed by
+ * records of a type byte, the microseconds since the previous record and a
+ * payload. Numbers are unsigned varints, and signed ones zigzag-encoded first,
+ * so a drag event - a small move from the previous point - takes about five
+ * bytes.
+ * <pre>
+ *   MOUSE_*        [zigzag dx][zigzag dy][button][modifiersEx][clickCount]
+ *   TOOL, FILTER,
+ *   BLEND_MODE     [UTF name]
+ *   COLOR          [int argb]
+ *   BRUSH_SIZE,
+ *   FILL_TOLERANCE,
+ *   SELECT_LAYER   [value]
+ *   LAYER_VISIBLE  [byte]
+ *   LAYER_OPACITY  [float]
+ *   UNDO ... LAYER_DOWN  (no payload)
+ * </pre>
+ */
+final class InputLog {
+    static final int MAGIC = 0x44535231; // "DSR1"
+
+    static final byte MOUSE_PRESSED = 1;
+    static final byte MOUSE_DRAGGED = 2;
+    static final byte MOUSE_RELEASED = 3;
+    static final byte MOUSE_CLICKED = 4;
+    static final byte MOUSE_MOVED = 5;
+
+    static final byte TOOL = 10;
+    static final byte COLOR = 11;
+    static final byte BRUSH_SIZE = 12;
+    static final byte FILL_TOLERANCE = 13;
+
+    static final byte UNDO = 20;
+    static final byte REDO = 21;
+    static final byte CLEAR = 22;
+    static final byte FILTER = 23;
+    static final byte ADD_LAYER = 24;
+    static final byte DELETE_LAYER = 25;
+    static final byte LAYER_UP = 26;
+    static final byte LAYER_DOWN = 27;
+    static final byte SELECT_LAYER = 28;
+    static final byte LAYER_VISIBLE = 29;
+    static final byte LAYER_OPACITY = 30;
+    static final byte BLEND_MODE = 31;
+
+    private InputLog() {
+    }
+
+    static boolean isMouse(byte type) {
+        return type >= MOUSE_PRESSED && type <= MOUSE_MOVED;
+    }
+
+    static void writeVarint(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static void writeSigned(DataOutputStream out, int value) throws IOException {
+        writeVarint(out, (value << 1) ^ (value >> 31));
+    }
+
+    static long readVarint(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed number in session log");
+    }
+
+    static int readInt(DataInputStream in) throws IOException {
+        return (int) readVarint(in);
+    }
+
+    static int readSigned(DataInputStream in) throws IOException {
+        int value = (int) readVarint(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Type of the next record, or -1 at a clean end of the log
+     */
+    static int readType(DataInputStream in) throws IOException {
+        try {
+            return in.readByte();
+        } catch (EOFException e) {
+            return -1;
+        }
+    }
+}
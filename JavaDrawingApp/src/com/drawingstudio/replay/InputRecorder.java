@@ -0,0 +1,175 @@
+package com.drawingstudio.replay;
+
+import com.drawingstudio.layers.BlendMode;
+import java.awt.Color;
+import java.awt.event.MouseEvent;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Records the input reaching a DrawingCanvas - mouse events and tool, colour,
+ * size and layer changes - to a compact log InputReplayer can play back
+ * Called on the event thread; writes are buffered, and a write error stops
+ * the recording rather than the drawing.
+ */
+public class InputRecorder {
+    private final DataOutputStream out;
+    private long lastNanos = System.nanoTime();
+    private int lastX;
+    private int lastY;
+    private boolean failed;
+
+    public InputRecorder(File file, int width, int height) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+        out.writeInt(InputLog.MAGIC);
+        out.writeInt(width);
+        out.writeInt(height);
+        out.writeLong(System.currentTimeMillis());
+    }
+
+    public void mouse(MouseEvent e) {
+        byte type;
+        switch (e.getID()) {
+            case MouseEvent.MOUSE_PRESSED: type = InputLog.MOUSE_PRESSED; break;
+            case MouseEvent.MOUSE_DRAGGED: type = InputLog.MOUSE_DRAGGED; break;
+            case MouseEvent.MOUSE_RELEASED: type = InputLog.MOUSE_RELEASED; break;
+            case MouseEvent.MOUSE_CLICKED: type = InputLog.MOUSE_CLICKED; break;
+            case MouseEvent.MOUSE_MOVED: type = InputLog.MOUSE_MOVED; break;
+            default: return;
+        }
+        if (begin(type)) {
+            try {
+                InputLog.writeSigned(out, e.getX() - lastX);
+                InputLog.writeSigned(out, e.getY() - lastY);
+                InputLog.writeVarint(out, e.getButton());
+                InputLog.writeVarint(out, e.getModifiersEx());
+                InputLog.writeVarint(out, e.getClickCount());
+                lastX = e.getX();
+                lastY = e.getY();
+            } catch (IOException ex) {
+                fail(ex);
+            }
+        }
+    }
+
+    public void toolChanged(String tool) {
+        writeText(InputLog.TOOL, tool);
+    }
+
+    public void colorChanged(Color color) {
+        if (begin(InputLog.COLOR)) {
+            try {
+                out.writeInt(color.getRGB());
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+    }
+
+    public void brushSizeChanged(int size) {
+        writeNumber(InputLog.BRUSH_SIZE, size);
+    }
+
+    public void fillToleranceChanged(int tolerance) {
+        writeNumber(InputLog.FILL_TOLERANCE, tolerance);
+    }
+
+    public void filterApplied(String name) {
+        writeText(InputLog.FILTER, name);
+    }
+
+    public void layerSelected(int index) {
+        writeNumber(InputLog.SELECT_LAYER, index);
+    }
+
+    public void layerVisibilityChanged(boolean visible) {
+        if (begin(InputLog.LAYER_VISIBLE)) {
+            try {
+                out.writeBoolean(visible);
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+    }
+
+    public void layerOpacityChanged(float opacity) {
+        if (begin(InputLog.LAYER_OPACITY)) {
+            try {
+                out.writeFloat(opacity);
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+    }
+
+    public void blendModeChanged(BlendMode mode) {
+        writeText(InputLog.BLEND_MODE, mode.name());
+    }
+
+    // Actions without arguments
+
+    public void undo() { begin(InputLog.UNDO); }
+    public void redo() { begin(InputLog.REDO); }
+    public void clear() { begin(InputLog.CLEAR); }
+    public void layerAdded() { begin(InputLog.ADD_LAYER); }
+    public void layerDeleted() { begin(InputLog.DELETE_LAYER); }
+    public void layerMoved(boolean up) { begin(up ? InputLog.LAYER_UP : InputLog.LAYER_DOWN); }
+
+    /**
+     * Flush and close the log
+     */
+    public void close() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            System.out.println("Error closing recording: " + e.getMessage());
+        }
+    }
+
+    private void writeNumber(byte type, int value) {
+        if (begin(type)) {
+            try {
+                InputLog.writeVarint(out, value & 0xFFFFFFFFL);
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+    }
+
+    private void writeText(byte type, String text) {
+        if (begin(type)) {
+            try {
+                out.writeUTF(text);
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+    }
+
+    /**
+     * Write a record's type and time; false if recording has stopped
+     */
+    private boolean begin(byte type) {
+        if (failed) {
+            return false;
+        }
+        long micros = (System.nanoTime() - lastNanos) / 1000;
+        try {
+            out.writeByte(type);
+            InputLog.writeVarint(out, micros);
+        } catch (IOException e) {
+            fail(e);
+            return false;
+        }
+        lastNanos += micros * 1000;   // keep the remainder, so the times don't drift
+        return true;
+    }
+
+    private void fail(IOException e) {
+        failed = true;
+        System.out.println("Recording stopped: " + e.getMessage());
+    }
+}
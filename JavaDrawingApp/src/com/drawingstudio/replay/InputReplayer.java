@@ -0,0 +1,308 @@
+package com.drawingstudio.replay;
+
+import com.drawingstudio.canvas.DrawingCanvas;
+import com.drawingstudio.filters.Filter;
+import com.drawingstudio.filters.FilterPipeline;
+import com.drawingstudio.layers.Compositor;
+import com.drawingstudio.layers.BlendMode;
+import java.awt.Color;
+import java.awt.EventQueue;
+import java.awt.Graphics2D;
+import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
+import javax.imageio.ImageIO;
+
+/**
+ * Plays a recorded session back into a DrawingCanvas, headless, and times it
+ * Every record goes through the same canvas methods the window calls, on the
+ * event thread. After each input that would repaint, the canvas paints a
+ * frame into an offscreen image the size of the window's, and the time from
+ * the event to the finished frame is recorded. Played as fast as possible
+ * this measures throughput; in real time it reproduces the recorded pacing.
+ * <p>
+ * Usage: java -Djava.awt.headless=true com.drawingstudio.replay.InputReplayer
+ * session.dsr [--realtime] [--repeat n] [--out final.png]
+ */
+public class InputReplayer {
+    private final DrawingCanvas canvas;
+    private final BufferedImage frame;
+    private final Graphics2D frameGraphics;
+
+    public InputReplayer(DrawingCanvas canvas) {
+        this.canvas = canvas;
+        Compositor.prepare();   // the window does this after its first frame; do it before timing anything
+        frame = new BufferedImage(canvas.getLayers().getWidth(), canvas.getLayers().getHeight(),
+            BufferedImage.TYPE_INT_RGB);
+        frameGraphics = frame.createGraphics();
+    }
+
+    /**
+     * Frame times and totals from one playback
+     */
+    public static class Report {
+        private final int events;
+        private final long elapsedNanos;
+        private final long[] frameNanos;
+
+        Report(int events, long elapsedNanos, long[] frameNanos) {
+            this.events = events;
+            this.elapsedNanos = elapsedNanos;
+            this.frameNanos = frameNanos;
+            Arrays.sort(this.frameNanos);
+        }
+
+        public int getEvents() { return events; }
+        public int getFrames() { return frameNanos.length; }
+        public long getElapsedNanos() { return elapsedNanos; }
+
+        public double getEventsPerSecond() {
+            return elapsedNanos == 0 ? 0 : events * 1e9 / elapsedNanos;
+        }
+
+        /**
+         * Frame time at a percentile (0-100) in milliseconds, nearest rank
+         */
+        public double percentileMillis(double percentile) {
+            if (frameNanos.length == 0) {
+                return 0;
+            }
+            int rank = (int) Math.ceil(percentile / 100 * frameNanos.length);
+            return frameNanos[Math.max(0, Math.min(frameNanos.length - 1, rank - 1))] / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d events, %d frames in %.1f ms (%.0f events/s); "
+                    + "frame ms p50 %.3f p90 %.3f p99 %.3f p99.9 %.3f max %.3f",
+                events, frameNanos.length, elapsedNanos / 1e6, getEventsPerSecond(),
+                percentileMillis(50), percentileMillis(90), percentileMillis(99),
+                percentileMillis(99.9), percentileMillis(100));
+        }
+    }
+
+    /**
+     * Play a log back on the event thread
+     * @param realTime Keep the recorded gaps between events instead of
+     *                 running them back to back
+     */
+    public Report replay(File log, boolean realTime) throws IOException {
+        Report[] report = new Report[1];
+        IOException[] error = new IOException[1];
+        try {
+            EventQueue.invokeAndWait(() -> {
+                try {
+                    report[0] = play(log, realTime);
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Replay interrupted");
+        } catch (InvocationTargetException e) {
+            throw new IOException("Replay failed: " + e.getCause(), e.getCause());
+        }
+        if (error[0] != null) {
+            throw error[0];
+        }
+        return report[0];
+    }
+
+    public BufferedImage getFrame() {
+        return frame;
+    }
+
+    private Report play(File log, boolean realTime) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(log)))) {
+            if (in.readInt() != InputLog.MAGIC) {
+                throw new IOException("Not a recorded session: " + log);
+            }
+            int width = in.readInt();
+            int height = in.readInt();
+            in.readLong();   // when it was recorded
+            if (width != frame.getWidth() || height != frame.getHeight()) {
+                System.out.println("Session was recorded on a " + width + "x" + height + " canvas, replaying on "
+                    + frame.getWidth() + "x" + frame.getHeight());
+            }
+
+            long[] frameNanos = new long[1024];
+            int frames = 0;
+            int events = 0;
+            int x = 0;
+            int y = 0;
+            long recordedMicros = 0;
+            long start = System.nanoTime();
+            int type;
+            while ((type = InputLog.readType(in)) >= 0) {
+                recordedMicros += InputLog.readVarint(in);
+                if (realTime) {
+                    waitUntil(start + recordedMicros * 1000);
+                }
+                long began = System.nanoTime();
+                boolean repaint;
+                if (InputLog.isMouse((byte) type)) {
+                    x += InputLog.readSigned(in);
+                    y += InputLog.readSigned(in);
+                    int button = InputLog.readInt(in);
+                    int modifiers = InputLog.readInt(in);
+                    int clicks = InputLog.readInt(in);
+                    dispatchMouse((byte) type, x, y, button, modifiers, clicks);
+                    repaint = type != InputLog.MOUSE_MOVED;
+                } else {
+                    repaint = apply((byte) type, in);
+                }
+                events++;
+                if (repaint) {
+                    canvas.paint(frameGraphics);
+                    if (frames == frameNanos.length) {
+                        frameNanos = Arrays.copyOf(frameNanos, frames * 2);
+                    }
+                    frameNanos[frames++] = System.nanoTime() - began;
+                }
+            }
+            return new Report(events, System.nanoTime() - start, Arrays.copyOf(frameNanos, frames));
+        }
+    }
+
+    private void dispatchMouse(byte type, int x, int y, int button, int modifiers, int clicks) {
+        int id;
+        switch (type) {
+            case InputLog.MOUSE_PRESSED: id = MouseEvent.MOUSE_PRESSED; break;
+            case InputLog.MOUSE_DRAGGED: id = MouseEvent.MOUSE_DRAGGED; break;
+            case InputLog.MOUSE_RELEASED: id = MouseEvent.MOUSE_RELEASED; break;
+            case InputLog.MOUSE_CLICKED: id = MouseEvent.MOUSE_CLICKED; break;
+            default: id = MouseEvent.MOUSE_MOVED; break;
+        }
+        MouseEvent e = new MouseEvent(canvas, id, System.currentTimeMillis(), modifiers, x, y, clicks, false, button);
+        switch (id) {
+            case MouseEvent.MOUSE_PRESSED: canvas.handleMousePressed(e); break;
+            case MouseEvent.MOUSE_DRAGGED: canvas.handleMouseDragged(e); break;
+            case MouseEvent.MOUSE_RELEASED: canvas.handleMouseReleased(e); break;
+            case MouseEvent.MOUSE_CLICKED: canvas.handleMouseClicked(e); break;
+            default: canvas.handleMouseMoved(e); break;
+        }
+    }
+
+    /**
+     * Apply a non-mouse record; true if it changes what is on screen
+     */
+    private boolean apply(byte type, DataInputStream in) throws IOException {
+        switch (type) {
+            case InputLog.TOOL:
+                canvas.setCurrentTool(in.readUTF());
+                return false;
+            case InputLog.COLOR:
+                canvas.setCurrentColor(new Color(in.readInt(), true));
+                return false;
+            case InputLog.BRUSH_SIZE:
+                canvas.setBrushSize(InputLog.readInt(in));
+                return false;
+            case InputLog.FILL_TOLERANCE:
+                canvas.setFillTolerance(InputLog.readInt(in));
+                return false;
+            case InputLog.UNDO:
+                canvas.undo();
+                return true;
+            case InputLog.REDO:
+                canvas.redo();
+                return true;
+            case InputLog.CLEAR:
+                canvas.clearCanvas();
+                return true;
+            case InputLog.FILTER: {
+                String name = in.readUTF();
+                Filter filter = FilterPipeline.createFilter(name);
+                if (filter == null) {
+                    throw new IOException("Unknown filter in session log: " + name);
+                }
+                canvas.applyFilter(filter);
+                return true;
+            }
+            case InputLog.ADD_LAYER:
+                canvas.addLayer();
+                return true;
+            case InputLog.DELETE_LAYER:
+                canvas.deleteLayer();
+                return true;
+            case InputLog.LAYER_UP:
+            case InputLog.LAYER_DOWN:
+                canvas.moveLayer(type == InputLog.LAYER_UP);
+                return true;
+            case InputLog.SELECT_LAYER:
+                canvas.selectLayer(InputLog.readInt(in));
+                return true;
+            case InputLog.LAYER_VISIBLE:
+                canvas.setLayerVisible(in.readBoolean());
+                return true;
+            case InputLog.LAYER_OPACITY:
+                canvas.setLayerOpacity(in.readFloat());
+                return true;
+            case InputLog.BLEND_MODE: {
+                String name = in.readUTF();
+                try {
+                    canvas.setLayerBlendMode(BlendMode.valueOf(name));
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Unknown blend mode in session log: " + name);
+                }
+                return true;
+            }
+            default:
+                throw new IOException("Unknown record type in session log: " + type);
+        }
+    }
+
+    private static void waitUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            try {
+                Thread.sleep(remaining / 1_000_000, (int) (remaining % 1_000_000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.out.println("Usage: InputReplayer session.dsr [--realtime] [--repeat n] [--out final.png]");
+            return;
+        }
+        File log = new File(args[0]);
+        boolean realTime = false;
+        int repeat = 1;
+        File out = null;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--realtime")) {
+                realTime = true;
+            } else if (args[i].equals("--repeat") && i + 1 < args.length) {
+                repeat = Math.max(1, Integer.parseInt(args[++i]));
+            } else if (args[i].equals("--out") && i + 1 < args.length) {
+                out = new File(args[++i]);
+            } else {
+                System.out.println("Unknown option: " + args[i]);
+                return;
+            }
+        }
+        try {
+            InputReplayer replayer = null;
+            for (int run = 1; run <= repeat; run++) {
+                // A fresh canvas each run, so every run starts from the same blank drawing
+                replayer = new InputReplayer(new DrawingCanvas(null));
+                System.out.println("Run " + run + ": " + replayer.replay(log, realTime));
+            }
+            if (out != null) {
+                ImageIO.write(replayer.getFrame(), "png", out);
+            }
+        } catch (IOException e) {
+            System.out.println("Error replaying session: " + e.getMessage());
+        }
+    }
+}
@@ -14,14 +14,7 @@ public class DiamondShape extends ShapeBase {
     
     @Override
     public void draw(Graphics2D g2d) {
-        setupGraphics(g2d);
-        // Draw diamond (rhombus)
-        int centerX = (startPoint.x + endPoint.x) / 2;
-        int centerY = (startPoint.y + endPoint.y) / 2;
-        int halfWidth = Math.abs(endPoint.x - startPoint.x) / 2;
-        int halfHeight = Math.abs(endPoint.y - startPoint.y) / 2;
-        int[] diamondX = {centerX, centerX + halfWidth, centerX, centerX - halfWidth};
-        int[] diamondY = {centerY - halfHeight, centerY, centerY + halfHeight, centerY};
-        g2d.drawPolygon(diamondX, diamondY, 4);
+        // Diamond (rhombus) through the midpoints of the bounding box edges
+        drawGeometry(g2d);
     }
 }
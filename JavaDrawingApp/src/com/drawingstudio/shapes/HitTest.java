@@ -0,0 +1,150 @@
+package com.drawingstudio.shapes;
+
+/**
+ * Exact hit-testing kernels for shape outlines
+ * Shapes are drawn as outlines, so a point hits a shape when it lies within
+ * half the stroke width plus a little slop of the outline itself - not
+ * anywhere inside its bounding box. Every kernel works on primitives so it
+ * can run straight over ShapeStore columns, and each test starts with a
+ * cheap padded bounding-box reject.
+ */
+public class HitTest {
+    /** Extra distance around the stroke that still counts as a hit */
+    public static final float SLOP = 5;
+
+    /**
+     * Hit distance for a stroke width
+     */
+    public static float tolerance(float strokeWidth) {
+        return strokeWidth / 2 + SLOP;
+    }
+
+    /**
+     * Does (px, py) hit the outline of a shape of the given ShapeStore kind?
+     */
+    public static boolean hits(byte kind, int sx, int sy, int ex, int ey, float strokeWidth, int px, int py) {
+        float tol = tolerance(strokeWidth);
+        if (!inPaddedBounds(kind, sx, sy, ex, ey, tol, px, py)) {
+            return false;
+        }
+        float tolSq = tol * tol;
+        switch (kind) {
+            case ShapeStore.LINE:
+                return segmentDistSq(px, py, sx, sy, ex, ey) <= tolSq;
+            case ShapeStore.RECTANGLE:
+                return rectangleDistSq(px, py, Math.min(sx, ex), Math.min(sy, ey),
+                    Math.max(sx, ex), Math.max(sy, ey)) <= tolSq;
+            case ShapeStore.OVAL:
+                return ellipseRing(px, py, Math.min(sx, ex), Math.min(sy, ey),
+                    Math.abs(ex - sx), Math.abs(ey - sy), tol);
+            case ShapeStore.TRIANGLE:
+                // Apex at the start point, base mirrored around it (as ShapeGeometry)
+                int mx = sx + (sx - ex);
+                return Math.min(segmentDistSq(px, py, sx, sy, ex, ey),
+                       Math.min(segmentDistSq(px, py, ex, ey, mx, ey),
+                                segmentDistSq(px, py, mx, ey, sx, sy))) <= tolSq;
+            case ShapeStore.DIAMOND:
+                int cx = (sx + ex) / 2;
+                int cy = (sy + ey) / 2;
+                int hw = Math.abs(ex - sx) / 2;
+                int hh = Math.abs(ey - sy) / 2;
+                return diamondDistSq(px, py, cx, cy, hw, hh) <= tolSq;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Bounding box of the outline grown by the tolerance - the pre-filter
+     * every kernel runs first
+     */
+    public static boolean inPaddedBounds(byte kind, int sx, int sy, int ex, int ey, float tol, int px, int py) {
+        int minX = Math.min(sx, ex);
+        int maxX = Math.max(sx, ex);
+        if (kind == ShapeStore.TRIANGLE) {
+            // The mirrored corner can lie outside the start/end box
+            int mx = sx + (sx - ex);
+            minX = Math.min(minX, mx);
+            maxX = Math.max(maxX, mx);
+        }
+        return px >= minX - tol && px <= maxX + tol
+            && py >= Math.min(sy, ey) - tol && py <= Math.max(sy, ey) + tol;
+    }
+
+    /**
+     * Squared distance from (px, py) to the segment (ax, ay)-(bx, by)
+     * Projection is clamped instead of branching on the segment ends
+     */
+    public static float segmentDistSq(float px, float py, float ax, float ay, float bx, float by) {
+        float dx = bx - ax;
+        float dy = by - ay;
+        float lenSq = dx * dx + dy * dy;
+        float t = lenSq > 0 ? ((px - ax) * dx + (py - ay) * dy) / lenSq : 0;
+        t = Math.max(0, Math.min(1, t));
+        float qx = ax + t * dx - px;
+        float qy = ay + t * dy - py;
+        return qx * qx + qy * qy;
+    }
+
+    /**
+     * Squared distance from (px, py) to the edges of an axis-aligned rectangle
+     */
+    public static float rectangleDistSq(float px, float py, float minX, float minY, float maxX, float maxY) {
+        // Distance outside the box on each axis (0 when within that slab)
+        float ox = Math.max(0, Math.max(minX - px, px - maxX));
+        float oy = Math.max(0, Math.max(minY - py, py - maxY));
+        // Distance to the nearest edge from inside (0 when outside)
+        float inside = Math.min(Math.min(px - minX, maxX - px), Math.min(py - minY, maxY - py));
+        inside = Math.max(0, inside);
+        return ox * ox + oy * oy + inside * inside;
+    }
+
+    /**
+     * Squared distance from (px, py) to a diamond given by centre and half extents
+     * The diamond is symmetric, so the point is folded into the first quadrant
+     * and measured against the single edge there
+     */
+    public static float diamondDistSq(float px, float py, float cx, float cy, float hw, float hh) {
+        float qx = Math.abs(px - cx);
+        float qy = Math.abs(py - cy);
+        return segmentDistSq(qx, qy, hw, 0, 0, hh);
+    }
+
+    /**
+     * Is (px, py) within tol of the ellipse inscribed in (x, y, w, h)?
+     * The nearest point on the ellipse is found with a fixed three rounds of
+     * the evolute-based iteration (no trigonometry, no data-dependent loop),
+     * working in the first quadrant since the ellipse is symmetric. Degenerate
+     * ellipses are drawn as lines and tested as segments.
+     */
+    public static boolean ellipseRing(float px, float py, float x, float y, float w, float h, float tol) {
+        float a = w / 2;
+        float b = h / 2;
+        if (a == 0 || b == 0) {
+            return segmentDistSq(px, py, x, y, x + w, y + h) <= tol * tol;
+        }
+        float qx0 = Math.abs(px - (x + a));
+        float qy0 = Math.abs(py - (y + b));
+        float tx = 0.70710678f;
+        float ty = 0.70710678f;
+        float k = a * a - b * b;
+        for (int i = 0; i < 3; i++) {
+            float ex = k * tx * tx * tx / a;
+            float ey = -k * ty * ty * ty / b;
+            float rx = a * tx - ex;
+            float ry = b * ty - ey;
+            float qx = qx0 - ex;
+            float qy = qy0 - ey;
+            float r = (float) Math.sqrt(rx * rx + ry * ry);
+            float q = (float) Math.sqrt(qx * qx + qy * qy) + 1e-6f;
+            tx = Math.max(0, Math.min(1, (qx * r / q + ex) / a));
+            ty = Math.max(0, Math.min(1, (qy * r / q + ey) / b));
+            float t = (float) Math.sqrt(tx * tx + ty * ty);
+            tx /= t;
+            ty /= t;
+        }
+        float dx = qx0 - a * tx;
+        float dy = qy0 - b * ty;
+        return dx * dx + dy * dy <= tol * tol;
+    }
+}
@@ -14,7 +14,6 @@ public class LineShape extends ShapeBase {
     
     @Override
     public void draw(Graphics2D g2d) {
-        setupGraphics(g2d);
-        g2d.drawLine(startPoint.x, startPoint.y, endPoint.x, endPoint.y);
+        drawGeometry(g2d);
     }
 }
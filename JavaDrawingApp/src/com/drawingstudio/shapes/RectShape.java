@@ -14,11 +14,6 @@ public class RectShape extends ShapeBase {
     
     @Override
     public void draw(Graphics2D g2d) {
-        setupGraphics(g2d);
-        int x = Math.min(startPoint.x, endPoint.x);
-        int y = Math.min(startPoint.y, endPoint.y);
-        int width = Math.abs(endPoint.x - startPoint.x);
-        int height = Math.abs(endPoint.y - startPoint.y);
-        g2d.drawRect(x, y, width, height);
+        drawGeometry(g2d);
     }
 }
@@ -12,6 +12,7 @@ public abstract class ShapeBase {
     protected Point endPoint;
     protected Color color;
     protected int strokeWidth;
+    private ShapeGeometry geometry;
     
     public ShapeBase(String type, Point start, Point end, Color color, int strokeWidth) {
         this.type = type;
@@ -28,18 +29,22 @@ public abstract class ShapeBase {
     public abstract void draw(Graphics2D g2d);
     
     /**
-     * Check if a point is within this shape's bounds (for eraser/selection)
+     * Check if a point is on this shape's outline (for eraser/selection)
      */
     public boolean contains(Point p) {
-        int x = Math.min(startPoint.x, endPoint.x);
-        int y = Math.min(startPoint.y, endPoint.y);
-        int width = Math.abs(endPoint.x - startPoint.x);
-        int height = Math.abs(endPoint.y - startPoint.y);
-        
-        // Add some padding for easier selection
-        int padding = strokeWidth + 5;
-        return p.x >= x - padding && p.x <= x + width + padding &&
-               p.y >= y - padding && p.y <= y + height + padding;
+        return HitTest.hits(ShapeStore.kindOf(type), startPoint.x, startPoint.y,
+            endPoint.x, endPoint.y, strokeWidth, p.x, p.y);
+    }
+    
+    /**
+     * Outline, bounds and stroked outline, built on first use and then reused
+     */
+    public ShapeGeometry getGeometry() {
+        if (geometry == null) {
+            geometry = ShapeGeometry.of(ShapeStore.kindOf(type),
+                startPoint.x, startPoint.y, endPoint.x, endPoint.y, strokeWidth);
+        }
+        return geometry;
     }
     
     // Getters - demonstrates encapsulation with controlled access
@@ -54,6 +59,14 @@ public abstract class ShapeBase {
      */
     protected void setupGraphics(Graphics2D g2d) {
         g2d.setColor(color);
-        g2d.setStroke(new BasicStroke(strokeWidth, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+        g2d.setStroke(ShapeGeometry.strokeFor(strokeWidth));
+    }
+    
+    /**
+     * Draw the cached geometry in this shape's colour
+     */
+    protected void drawGeometry(Graphics2D g2d) {
+        g2d.setColor(color);
+        getGeometry().draw(g2d);
     }
 }
@@ -0,0 +1,335 @@
+package com.drawingstudio.shapes;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compact binary form of a list of shapes, shared by autosave, the undo
+ * history and collaboration
+ * A block is a version byte and a shape count, then one record per shape:
+ * <pre>
+ *   tag      kind in bits 0-2, and flags saying the colour or width
+ *            repeat the previous shape's, or are new
+ *   colour   absent if repeated; 4 bytes of ARGB the first time a colour
+ *            is seen; otherwise its varint index in the colours seen so far
+ *   width    absent if repeated; a varint if whole, otherwise 4 float bytes
+ *   x0 y0    zigzag varint deltas from the previous shape's start
+ *   x1 y1    zigzag varint deltas from this shape's own start
+ * </pre>
+ * Drawings reuse a handful of colours and widths and are made of shapes
+ * near each other and a few hundred pixels across, so a shape typically
+ * takes 6 or 7 bytes instead of the 29 its columns do.
+ * Encoding writes straight into the caller's buffer and allocates nothing
+ * per shape; the colour dictionary is rebuilt per block, so blocks decode
+ * independently. A codec keeps its tables between calls and is not safe
+ * for use by several threads at once.
+ */
+public final class ShapeCodec {
+    public static final byte VERSION = 1;
+
+    /**
+     * Colours remembered per block; later new colours are written literally
+     */
+    public static final int MAX_DICTIONARY = 4096;
+
+    /** Largest record: tag, literal colour, 5-byte width varint, four 5-byte coordinates */
+    private static final int MAX_SHAPE_BYTES = 1 + 4 + 5 + 4 * 5;
+    private static final int MAX_HEADER_BYTES = 1 + 5;
+    /** Smallest record: tag and four 1-byte coordinates */
+    private static final int MIN_SHAPE_BYTES = 1 + 4;
+
+    private static final int KIND_MASK = 0x07;
+    private static final int SAME_COLOR = 0x08;
+    private static final int NEW_COLOR = 0x10;
+    private static final int SAME_WIDTH = 0x20;
+    private static final int FLOAT_WIDTH = 0x40;
+
+    // What a block starts out "repeating", the same on both sides
+    private static final int INITIAL_ARGB = 0xFF000000;
+    private static final float INITIAL_WIDTH = 2;
+
+    private static final int TABLE_SIZE = 2 * MAX_DICTIONARY;   // power of two, at most half full
+
+    // Encoder: open-addressed colour -> index table; a slot counts only if
+    // its stamp is the current block's, so nothing is cleared between blocks
+    private int[] tableColors;
+    private int[] tableIndexes;
+    private int[] tableStamps;
+    private int stamp;
+
+    // Decoder: colours by index
+    private int[] palette;
+
+    // Running state of the block being written or read
+    private int dictionarySize;
+    private int lastX;
+    private int lastY;
+    private int lastArgb;
+    private float lastWidth;
+
+    private ByteBuffer scratch;
+
+    /**
+     * Receives decoded shapes; ShapeStore::add is one
+     */
+    public interface Sink {
+        void add(byte kind, int x0, int y0, int x1, int y1, int argb, float width);
+    }
+
+    /**
+     * Bytes a block of this many shapes can take at most
+     */
+    public static int maxEncodedSize(int shapes) {
+        return MAX_HEADER_BYTES + shapes * MAX_SHAPE_BYTES;
+    }
+
+    /**
+     * Write shapes as one block at the buffer's position
+     * @throws java.nio.BufferOverflowException if the buffer has less room
+     *         than the block needs; maxEncodedSize() is always enough
+     */
+    public void encode(List<ShapeBase> shapes, ByteBuffer out) {
+        begin(shapes.size(), out);
+        if (shapes instanceof ShapeStore) {
+            ShapeStore store = (ShapeStore) shapes;
+            for (int i = 0; i < store.size(); i++) {
+                writeShape(out, store.kind(i), store.x0(i), store.y0(i), store.x1(i), store.y1(i),
+                    store.argb(i), store.strokeWidth(i));
+            }
+        } else {
+            for (ShapeBase shape : shapes) {
+                byte kind = ShapeStore.kindOf(shape.type);
+                if (kind < 0) {
+                    throw new IllegalArgumentException("Unknown shape type: " + shape.type);
+                }
+                writeShape(out, kind, shape.startPoint.x, shape.startPoint.y, shape.endPoint.x, shape.endPoint.y,
+                    shape.color.getRGB(), shape.strokeWidth);
+            }
+        }
+    }
+
+    /**
+     * Write a single shape, given as primitives, as a block of one
+     */
+    public void encode(byte kind, int x0, int y0, int x1, int y1, int argb, float width, ByteBuffer out) {
+        begin(1, out);
+        writeShape(out, kind, x0, y0, x1, y1, argb, width);
+    }
+
+    /**
+     * Shapes as a block in a new array of exactly its size
+     * The encoding itself goes through a buffer the codec keeps.
+     */
+    public byte[] toBytes(List<ShapeBase> shapes) {
+        int needed = maxEncodedSize(shapes.size());
+        if (scratch == null || scratch.capacity() < needed) {
+            scratch = ByteBuffer.allocate(Math.max(needed, scratch == null ? 0 : scratch.capacity() * 2));
+        }
+        scratch.clear();
+        encode(shapes, scratch);
+        return Arrays.copyOf(scratch.array(), scratch.position());
+    }
+
+    /**
+     * Read one block from the buffer's position into a new store
+     */
+    public ShapeStore decode(ByteBuffer in) throws IOException {
+        int count = readHeader(in);
+        ShapeStore store = new ShapeStore(count);
+        readShapes(in, count, store::add);
+        return store;
+    }
+
+    /**
+     * Read one block from the buffer's position, handing each shape to the sink
+     * @return Shapes read
+     */
+    public int decode(ByteBuffer in, Sink sink) throws IOException {
+        int count = readHeader(in);
+        readShapes(in, count, sink);
+        return count;
+    }
+
+    private void begin(int count, ByteBuffer out) {
+        if (tableColors == null) {
+            tableColors = new int[TABLE_SIZE];
+            tableIndexes = new int[TABLE_SIZE];
+            tableStamps = new int[TABLE_SIZE];
+        }
+        if (++stamp == 0) {
+            // Wrapped: stamps from four billion blocks ago would look current
+            Arrays.fill(tableStamps, 0);
+            stamp = 1;
+        }
+        reset();
+        out.put(VERSION);
+        putVarint(out, count);
+    }
+
+    private void writeShape(ByteBuffer out, byte kind, int x0, int y0, int x1, int y1, int argb, float width) {
+        int tag = kind;
+        int index = -1;
+        if (argb == lastArgb) {
+            tag |= SAME_COLOR;
+        } else {
+            index = lookup(argb);
+            if (index < 0) {
+                tag |= NEW_COLOR;
+            }
+        }
+        boolean wholeWidth = width >= 0 && width == (int) width;
+        if (width == lastWidth) {
+            tag |= SAME_WIDTH;
+        } else if (!wholeWidth) {
+            tag |= FLOAT_WIDTH;
+        }
+        out.put((byte) tag);
+
+        if ((tag & NEW_COLOR) != 0) {
+            out.putInt(argb);
+        } else if ((tag & SAME_COLOR) == 0) {
+            putVarint(out, index);
+        }
+        lastArgb = argb;
+
+        if ((tag & SAME_WIDTH) == 0) {
+            if (wholeWidth) {
+                putVarint(out, (int) width);
+            } else {
+                out.putFloat(width);
+            }
+            lastWidth = width;
+        }
+
+        putVarint(out, zigzag(x0 - lastX));
+        putVarint(out, zigzag(y0 - lastY));
+        putVarint(out, zigzag(x1 - x0));
+        putVarint(out, zigzag(y1 - y0));
+        lastX = x0;
+        lastY = y0;
+    }
+
+    /**
+     * Dictionary index of a colour; -1 if it is new, in which case it is
+     * added (while there is room), exactly as the decoder will add it
+     */
+    private int lookup(int argb) {
+        int slot = mix(argb) & (TABLE_SIZE - 1);
+        while (tableStamps[slot] == stamp) {
+            if (tableColors[slot] == argb) {
+                return tableIndexes[slot];
+            }
+            slot = (slot + 1) & (TABLE_SIZE - 1);
+        }
+        if (dictionarySize < MAX_DICTIONARY) {
+            tableStamps[slot] = stamp;
+            tableColors[slot] = argb;
+            tableIndexes[slot] = dictionarySize++;
+        }
+        return -1;
+    }
+
+    private int readHeader(ByteBuffer in) throws IOException {
+        try {
+            byte version = in.get();
+            if (version != VERSION) {
+                throw new IOException("Unsupported shape data version: " + version);
+            }
+            int count = getVarint(in);
+            // Refuse a count the bytes left can't hold before allocating for it
+            if (count < 0 || count > in.remaining() / MIN_SHAPE_BYTES) {
+                throw new IOException("Bad shape count: " + count);
+            }
+            reset();
+            return count;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated shape data");
+        }
+    }
+
+    private void readShapes(ByteBuffer in, int count, Sink sink) throws IOException {
+        if (palette == null) {
+            palette = new int[MAX_DICTIONARY];
+        }
+        try {
+            for (int i = 0; i < count; i++) {
+                int tag = in.get() & 0xFF;
+                byte kind = (byte) (tag & KIND_MASK);
+                if (kind > ShapeStore.DIAMOND || (tag & 0x80) != 0) {
+                    throw new IOException("Bad shape record: " + Integer.toHexString(tag));
+                }
+
+                if ((tag & NEW_COLOR) != 0) {
+                    lastArgb = in.getInt();
+                    if (dictionarySize < MAX_DICTIONARY) {
+                        palette[dictionarySize++] = lastArgb;
+                    }
+                } else if ((tag & SAME_COLOR) == 0) {
+                    int index = getVarint(in);
+                    if (index < 0 || index >= dictionarySize) {
+                        throw new IOException("Bad colour index: " + index);
+                    }
+                    lastArgb = palette[index];
+                }
+
+                if ((tag & SAME_WIDTH) == 0) {
+                    lastWidth = (tag & FLOAT_WIDTH) != 0 ? in.getFloat() : getVarint(in);
+                }
+
+                int x0 = lastX + unzigzag(getVarint(in));
+                int y0 = lastY + unzigzag(getVarint(in));
+                int x1 = x0 + unzigzag(getVarint(in));
+                int y1 = y0 + unzigzag(getVarint(in));
+                lastX = x0;
+                lastY = y0;
+                sink.add(kind, x0, y0, x1, y1, lastArgb, lastWidth);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated shape data");
+        }
+    }
+
+    private void reset() {
+        dictionarySize = 0;
+        lastX = 0;
+        lastY = 0;
+        lastArgb = INITIAL_ARGB;
+        lastWidth = INITIAL_WIDTH;
+    }
+
+    private static int mix(int argb) {
+        int h = argb * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void putVarint(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) (value & 0x7F | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    private static int getVarint(ByteBuffer in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in shape data");
+    }
+}
@@ -0,0 +1,419 @@
+package com.drawingstudio.shapes;
+
+import com.drawingstudio.memory.MemoryConsumer;
+import com.drawingstudio.memory.MemoryGovernor;
+import java.awt.*;
+import java.awt.geom.*;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * Immutable geometry of one shape
+ * Holds the outline path and its bounds, built once from the shape's points,
+ * and lazily the stroked outline so repaints of an unchanged shape fill a
+ * ready-made area instead of re-stroking the path every frame. All shape
+ * kinds get their vertices from here, so paint, hit-testing and export agree.
+ * <p>
+ * Stroked outlines are the bulk of the memory geometry holds, so they are
+ * under the memory governor: when it asks, the oldest are dropped, to be
+ * rebuilt the next time their shape is painted.
+ */
+public final class ShapeGeometry {
+    private static final BasicStroke[] STROKES = new BasicStroke[65];
+
+    // Stroked outlines currently cached, oldest first - guarded by the set
+    private static final LinkedHashSet<CachedOutline> cachedOutlines = new LinkedHashSet<>();
+    private static final ReferenceQueue<ShapeGeometry> collected = new ReferenceQueue<>();
+    private static long cachedOutlineBytes;
+
+    private static final MemoryConsumer OUTLINE_CONSUMER = new MemoryConsumer() {
+        @Override
+        public long getMemoryBytes() {
+            synchronized (cachedOutlines) {
+                pollCollected();
+                return cachedOutlineBytes;
+            }
+        }
+
+        /**
+         * Outlines are rebuilt on demand, so any of them may go, oldest first
+         */
+        @Override
+        public long reclaim(long bytes, boolean evict) {
+            synchronized (cachedOutlines) {
+                pollCollected();
+                long freed = 0;
+                for (Iterator<CachedOutline> it = cachedOutlines.iterator(); it.hasNext() && freed < bytes; ) {
+                    CachedOutline entry = it.next();
+                    it.remove();
+                    ShapeGeometry geometry = entry.get();
+                    if (geometry != null) {
+                        geometry.strokedOutline = null;
+                        geometry.outlineEntry = null;
+                    }
+                    freed += entry.bytes;
+                }
+                cachedOutlineBytes -= freed;
+                return freed;
+            }
+        }
+    };
+
+    static {
+        MemoryGovernor.shared().register("Shape outlines", MemoryGovernor.Priority.CACHE, OUTLINE_CONSUMER);
+    }
+
+    private final byte kind;
+    private final Path2D.Double outline;
+    private final Rectangle bounds;
+    private final int fillX, fillY, fillWidth, fillHeight;
+    private final BasicStroke stroke;
+    private volatile Shape strokedOutline;
+    private CachedOutline outlineEntry;   // guarded by cachedOutlines
+
+    private ShapeGeometry(byte kind, Path2D.Double outline, BasicStroke stroke) {
+        this.kind = kind;
+        this.outline = outline;
+        this.bounds = outline.getBounds();
+        this.stroke = stroke;
+        int pad = (int) Math.ceil(stroke.getLineWidth() / 2) + 2;
+        fillX = bounds.x - pad;
+        fillY = bounds.y - pad;
+        fillWidth = bounds.width + 2 * pad;
+        fillHeight = bounds.height + 2 * pad;
+    }
+
+    /**
+     * Geometry for a shape of the given ShapeStore kind
+     */
+    public static ShapeGeometry of(byte kind, int sx, int sy, int ex, int ey, float strokeWidth) {
+        Path2D.Double path = new Path2D.Double(Path2D.WIND_NON_ZERO, 8);
+        int x = Math.min(sx, ex);
+        int y = Math.min(sy, ey);
+        int width = Math.abs(ex - sx);
+        int height = Math.abs(ey - sy);
+        switch (kind) {
+            case ShapeStore.LINE:
+                path.moveTo(sx, sy);
+                path.lineTo(ex, ey);
+                break;
+            case ShapeStore.RECTANGLE:
+                path.append(new Rectangle(x, y, width, height), false);
+                break;
+            case ShapeStore.OVAL:
+                path.append(new Ellipse2D.Float(x, y, width, height), false);
+                break;
+            case ShapeStore.TRIANGLE:
+                // Apex at the start point, base mirrored around it
+                path.moveTo(sx, sy);
+                path.lineTo(ex, ey);
+                path.lineTo(sx + (sx - ex), ey);
+                path.closePath();
+                break;
+            case ShapeStore.DIAMOND:
+                int centerX = (sx + ex) / 2;
+                int centerY = (sy + ey) / 2;
+                int halfWidth = width / 2;
+                int halfHeight = height / 2;
+                path.moveTo(centerX, centerY - halfHeight);
+                path.lineTo(centerX + halfWidth, centerY);
+                path.lineTo(centerX, centerY + halfHeight);
+                path.lineTo(centerX - halfWidth, centerY);
+                path.closePath();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown shape kind: " + kind);
+        }
+        return new ShapeGeometry(kind, path, strokeFor(strokeWidth));
+    }
+
+    /**
+     * Shared round-capped stroke for a width
+     */
+    public static BasicStroke strokeFor(float width) {
+        int slot = (int) width;
+        if (slot != width || slot < 0 || slot >= STROKES.length) {
+            return new BasicStroke(width, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
+        }
+        BasicStroke stroke = STROKES[slot];
+        if (stroke == null) {
+            stroke = new BasicStroke(width, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
+            STROKES[slot] = stroke;
+        }
+        return stroke;
+    }
+
+    public byte getKind() {
+        return kind;
+    }
+
+    /**
+     * The centre-line path (do not modify)
+     */
+    public Shape getOutline() {
+        return outline;
+    }
+
+    /**
+     * Bounds of the centre line
+     */
+    public Rectangle getBounds() {
+        return new Rectangle(bounds);
+    }
+
+    /**
+     * Bounds including the stroke
+     */
+    public Rectangle getStrokedBounds() {
+        int pad = (int) Math.ceil(stroke.getLineWidth() / 2) + 1;
+        return new Rectangle(bounds.x - pad, bounds.y - pad, bounds.width + 2 * pad, bounds.height + 2 * pad);
+    }
+
+    public BasicStroke getStroke() {
+        return stroke;
+    }
+
+    /**
+     * Draw the outline in the graphics' current colour
+     */
+    public void draw(Graphics2D g2d) {
+        if (canFillStroked(g2d, fillArea(g2d))) {
+            Object strokeControl = g2d.getRenderingHint(RenderingHints.KEY_STROKE_CONTROL);
+            g2d.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_PURE);
+            fillStroked(g2d);
+            g2d.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, strokeControl);
+        } else {
+            drawStroked(g2d);
+        }
+    }
+
+    /**
+     * Area (in user space) inside which cached stroked outlines reproduce
+     * g2d.draw exactly, or null if they cannot be used on this graphics at all.
+     * That needs antialiasing, default stroke control and a whole-pixel
+     * translation - the normalization baked into the cached outline assumes
+     * exactly that - and the shape must lie inside an explicit clip, since
+     * Java2D clips paths crossing the surface edge slightly differently when
+     * stroking and filling (image graphics do not report their size, so an
+     * unclipped graphics never uses the cache).
+     */
+    static Rectangle fillArea(Graphics2D g2d) {
+        if (g2d.getRenderingHint(RenderingHints.KEY_ANTIALIASING) != RenderingHints.VALUE_ANTIALIAS_ON
+                || g2d.getRenderingHint(RenderingHints.KEY_STROKE_CONTROL) == RenderingHints.VALUE_STROKE_PURE) {
+            return null;
+        }
+        AffineTransform at = g2d.getTransform();
+        if ((at.getType() & ~AffineTransform.TYPE_TRANSLATION) != 0
+                || at.getTranslateX() != Math.rint(at.getTranslateX())
+                || at.getTranslateY() != Math.rint(at.getTranslateY())) {
+            return null;
+        }
+        return g2d.getClipBounds();
+    }
+
+    /**
+     * Whether the cached stroked outline can stand in for draw() within an
+     * area returned by fillArea
+     */
+    boolean canFillStroked(Graphics2D g2d, Rectangle area) {
+        return area != null && area.contains(fillX, fillY, fillWidth, fillHeight);
+    }
+
+    /**
+     * Every pixel the shape can paint, with the margin a clip needs for the
+     * cached stroked outline to stand in for draw()
+     */
+    public Rectangle getFillBounds() {
+        return getFillBounds(new Rectangle());
+    }
+
+    /**
+     * getFillBounds() written into a rectangle the caller reuses
+     * @return into
+     */
+    public Rectangle getFillBounds(Rectangle into) {
+        into.setBounds(fillX, fillY, fillWidth, fillHeight);
+        return into;
+    }
+
+    /**
+     * Whether anything of the shape can land inside area
+     */
+    public boolean fillIntersects(Rectangle area) {
+        return area.intersects(fillX, fillY, fillWidth, fillHeight);
+    }
+
+    /**
+     * Fill the cached stroked outline - caller has checked canFillStroked and
+     * switched the graphics to pure stroke control
+     */
+    void fillStroked(Graphics2D g2d) {
+        g2d.fill(strokedOutline());
+    }
+
+    private Shape strokedOutline() {
+        Shape stroked = strokedOutline;
+        if (stroked == null) {
+            stroked = stroke.createStrokedShape(normalize(outline));
+            strokedOutline = stroked;
+            remember(stroked);
+        }
+        return stroked;
+    }
+
+    /**
+     * Approximate heap held by this geometry - the object, its bounds and
+     * path - and by its stroked outline if one is cached
+     */
+    long estimatedBytes() {
+        long bytes = 56 + 32 + pathBytes(outline);
+        Shape stroked = strokedOutline;
+        return stroked != null ? bytes + pathBytes(stroked) : bytes;
+    }
+
+    /**
+     * Average estimatedBytes() over one shape of each kind, of a typical
+     * size and stroke, without and then with the stroked outline cached
+     */
+    static long[] typicalBytes() {
+        long plain = 0;
+        long stroked = 0;
+        for (byte kind = ShapeStore.LINE; kind <= ShapeStore.DIAMOND; kind++) {
+            ShapeGeometry geometry = of(kind, 100, 100, 160, 140, 2);
+            plain += geometry.estimatedBytes();
+            stroked += geometry.estimatedBytes() + pathBytes(geometry.stroke.createStrokedShape(
+                normalize(geometry.outline)));
+        }
+        int kinds = ShapeStore.DIAMOND + 1;
+        return new long[] {plain / kinds, stroked / kinds};
+    }
+
+    /**
+     * Path object plus its segment and coordinate arrays, sized exactly
+     * (the arrays' spare capacity is not counted)
+     */
+    private static long pathBytes(Shape path) {
+        int segments = 0;
+        int coords = 0;
+        double[] c = new double[6];
+        for (PathIterator it = path.getPathIterator(null); !it.isDone(); it.next()) {
+            switch (it.currentSegment(c)) {
+                case PathIterator.SEG_MOVETO:
+                case PathIterator.SEG_LINETO:
+                    coords += 2;
+                    break;
+                case PathIterator.SEG_QUADTO:
+                    coords += 4;
+                    break;
+                case PathIterator.SEG_CUBICTO:
+                    coords += 6;
+                    break;
+                default:
+                    break;
+            }
+            segments++;
+        }
+        int coordBytes = path instanceof Path2D.Double ? 8 : 4;
+        return 32 + align(16 + segments) + align(16 + (long) coords * coordBytes);
+    }
+
+    private static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    private void remember(Shape stroked) {
+        long bytes = pathBytes(stroked);
+        synchronized (cachedOutlines) {
+            pollCollected();
+            if (outlineEntry != null) {
+                // Built twice by racing painters; keep the first entry's count
+                return;
+            }
+            outlineEntry = new CachedOutline(this, bytes, collected);
+            cachedOutlines.add(outlineEntry);
+            cachedOutlineBytes += bytes;
+        }
+    }
+
+    /**
+     * Stop counting outlines whose shapes have been collected - caller holds cachedOutlines
+     */
+    private static void pollCollected() {
+        CachedOutline entry;
+        while ((entry = (CachedOutline) collected.poll()) != null) {
+            if (cachedOutlines.remove(entry)) {
+                cachedOutlineBytes -= entry.bytes;
+            }
+        }
+    }
+
+    /**
+     * A cached stroked outline and its size, forgotten when its geometry is collected
+     */
+    private static final class CachedOutline extends WeakReference<ShapeGeometry> {
+        final long bytes;
+
+        CachedOutline(ShapeGeometry geometry, long bytes, ReferenceQueue<ShapeGeometry> queue) {
+            super(geometry, queue);
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Plain stroke of the outline for graphics the cache does not fit
+     */
+    void drawStroked(Graphics2D g2d) {
+        g2d.setStroke(stroke);
+        g2d.draw(outline);
+    }
+
+    /**
+     * Apply the antialiased stroke normalization Java2D performs inside draw():
+     * end points snap to the nearest pixel centre and control points move
+     * with their neighbouring end points
+     */
+    private static Path2D normalize(Shape shape) {
+        Path2D.Double path = new Path2D.Double();
+        double[] c = new double[6];
+        double curAdjustX = 0, curAdjustY = 0, moveAdjustX = 0, moveAdjustY = 0;
+        for (PathIterator it = shape.getPathIterator(null); !it.isDone(); it.next()) {
+            int segment = it.currentSegment(c);
+            if (segment == PathIterator.SEG_CLOSE) {
+                curAdjustX = moveAdjustX;
+                curAdjustY = moveAdjustY;
+                path.closePath();
+                continue;
+            }
+            int last = segment == PathIterator.SEG_CUBICTO ? 4 : segment == PathIterator.SEG_QUADTO ? 2 : 0;
+            double adjustX = normCoord(c[last]) - c[last];
+            double adjustY = normCoord(c[last + 1]) - c[last + 1];
+            c[last] += adjustX;
+            c[last + 1] += adjustY;
+            switch (segment) {
+                case PathIterator.SEG_MOVETO:
+                    moveAdjustX = adjustX;
+                    moveAdjustY = adjustY;
+                    path.moveTo(c[0], c[1]);
+                    break;
+                case PathIterator.SEG_LINETO:
+                    path.lineTo(c[0], c[1]);
+                    break;
+                case PathIterator.SEG_QUADTO:
+                    path.quadTo(c[0] + (curAdjustX + adjustX) / 2, c[1] + (curAdjustY + adjustY) / 2, c[2], c[3]);
+                    break;
+                case PathIterator.SEG_CUBICTO:
+                    path.curveTo(c[0] + curAdjustX, c[1] + curAdjustY, c[2] + adjustX, c[3] + adjustY, c[4], c[5]);
+                    break;
+            }
+            curAdjustX = adjustX;
+            curAdjustY = adjustY;
+        }
+        return path;
+    }
+
+    private static double normCoord(double coord) {
+        return Math.floor(coord) + 0.5;
+    }
+}
@@ -0,0 +1,450 @@
+package com.drawingstudio.shapes;
+
+import com.drawingstudio.metrics.EngineMetrics;
+import com.drawingstudio.metrics.HitTestEvent;
+import java.awt.*;
+import java.util.*;
+import java.util.List;
+
+/**
+ * Columnar (structure-of-arrays) shape storage
+ * Shapes are kept as primitive columns - a kind byte, four coordinates, an ARGB
+ * colour and a stroke width - instead of one object graph per shape. Painting,
+ * hit-testing and export walk the columns directly; the List view materializes
+ * ordinary ShapeBase objects only when a caller asks for one.
+ */
+public class ShapeStore extends AbstractList<ShapeBase> {
+    public static final byte LINE = 0;
+    public static final byte RECTANGLE = 1;
+    public static final byte OVAL = 2;
+    public static final byte TRIANGLE = 3;
+    public static final byte DIAMOND = 4;
+    private static final String[] TYPE_NAMES = {"LINE", "RECTANGLE", "OVAL", "TRIANGLE", "DIAMOND"};
+
+    /** Column data per shape, geometry reference included (compressed oops) */
+    public static final int BYTES_PER_SHAPE = 1 + 16 + 4 + 4 + 4;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private byte[] kinds;
+    private int[] coords;   // x0, y0, x1, y1 per shape
+    private int[] colors;   // ARGB
+    private float[] widths;
+    private ShapeGeometry[] geometry;   // built lazily, immutable so shared by copies
+    private int size;
+
+    public ShapeStore() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public ShapeStore(int capacity) {
+        capacity = Math.max(capacity, 1);
+        kinds = new byte[capacity];
+        coords = new int[capacity * 4];
+        colors = new int[capacity];
+        widths = new float[capacity];
+        geometry = new ShapeGeometry[capacity];
+    }
+
+    /**
+     * Kind code for a shape type name, or -1 if unknown
+     */
+    public static byte kindOf(String type) {
+        for (byte k = 0; k < TYPE_NAMES.length; k++) {
+            if (TYPE_NAMES[k].equals(type)) {
+                return k;
+            }
+        }
+        return -1;
+    }
+
+    public static String typeName(byte kind) {
+        return TYPE_NAMES[kind];
+    }
+
+    // Column access - no allocation
+
+    public byte kind(int i) { return kinds[checkIndex(i)]; }
+    public int x0(int i) { return coords[checkIndex(i) * 4]; }
+    public int y0(int i) { return coords[checkIndex(i) * 4 + 1]; }
+    public int x1(int i) { return coords[checkIndex(i) * 4 + 2]; }
+    public int y1(int i) { return coords[checkIndex(i) * 4 + 3]; }
+    public int argb(int i) { return colors[checkIndex(i)]; }
+    public float strokeWidth(int i) { return widths[checkIndex(i)]; }
+
+    /**
+     * Cached geometry of shape i, built on first use
+     */
+    public ShapeGeometry geometry(int i) {
+        ShapeGeometry geo = geometry[checkIndex(i)];
+        if (geo == null) {
+            int c = i * 4;
+            geo = ShapeGeometry.of(kinds[i], coords[c], coords[c + 1], coords[c + 2], coords[c + 3], widths[i]);
+            geometry[i] = geo;
+        }
+        return geo;
+    }
+
+    /**
+     * Append a shape given as primitives
+     */
+    public void add(byte kind, int x0, int y0, int x1, int y1, int argb, float width) {
+        if (kind < 0 || kind >= TYPE_NAMES.length) {
+            throw new IllegalArgumentException("Unknown shape kind: " + kind);
+        }
+        ensureCapacity(size + 1);
+        kinds[size] = kind;
+        int c = size * 4;
+        coords[c] = x0;
+        coords[c + 1] = y0;
+        coords[c + 2] = x1;
+        coords[c + 3] = y1;
+        colors[size] = argb;
+        widths[size] = width;
+        geometry[size] = null;
+        size++;
+        modCount++;
+    }
+
+    // List<ShapeBase> view
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Materialize shape i as a standalone ShapeBase
+     * Prefer the column accessors or a View in loops
+     */
+    @Override
+    public ShapeBase get(int i) {
+        checkIndex(i);
+        int c = i * 4;
+        Point start = new Point(coords[c], coords[c + 1]);
+        Point end = new Point(coords[c + 2], coords[c + 3]);
+        Color color = new Color(colors[i], true);
+        int width = (int) widths[i];
+        switch (kinds[i]) {
+            case LINE: return new LineShape(start, end, color, width);
+            case RECTANGLE: return new RectShape(start, end, color, width);
+            case OVAL: return new OvalShape(start, end, color, width);
+            case TRIANGLE: return new TriangleShape(start, end, color, width);
+            default: return new DiamondShape(start, end, color, width);
+        }
+    }
+
+    @Override
+    public boolean add(ShapeBase shape) {
+        add(size, shape);
+        return true;
+    }
+
+    @Override
+    public void add(int index, ShapeBase shape) {
+        if (index < 0 || index > size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        byte kind = kindOf(shape.type);
+        if (kind < 0) {
+            throw new IllegalArgumentException("Unknown shape type: " + shape.type);
+        }
+        add(kind, shape.startPoint.x, shape.startPoint.y, shape.endPoint.x, shape.endPoint.y,
+            shape.color.getRGB(), shape.strokeWidth);
+        if (index != size - 1) {
+            // Rotate the appended row into place
+            ShapeStore moved = new ShapeStore(1);
+            moved.copyRow(this, size - 1, 0);
+            shiftRows(index, index + 1, size - 1 - index);
+            copyRow(moved, 0, index);
+        }
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends ShapeBase> shapes) {
+        if (shapes instanceof ShapeStore) {
+            ShapeStore other = (ShapeStore) shapes;
+            int count = other.size;
+            ensureCapacity(size + count);
+            System.arraycopy(other.kinds, 0, kinds, size, count);
+            System.arraycopy(other.coords, 0, coords, size * 4, count * 4);
+            System.arraycopy(other.colors, 0, colors, size, count);
+            System.arraycopy(other.widths, 0, widths, size, count);
+            System.arraycopy(other.geometry, 0, geometry, size, count);
+            size += count;
+            modCount++;
+            return count > 0;
+        }
+        return super.addAll(shapes);
+    }
+
+    @Override
+    public ShapeBase remove(int i) {
+        ShapeBase removed = get(i);
+        shiftRows(i + 1, i, size - i - 1);
+        size--;
+        geometry[size] = null;
+        modCount++;
+        return removed;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(geometry, 0, size, null);
+        size = 0;
+        modCount++;
+    }
+
+    /**
+     * Independent copy of the columns (used for history snapshots)
+     */
+    public ShapeStore copy() {
+        ShapeStore copy = new ShapeStore(size);
+        copy.addAll(this);
+        return copy;
+    }
+
+    // Bulk operations over the columns
+
+    /**
+     * Draw every shape in order from its cached geometry
+     * Colour objects are only recreated when the colour changes between shapes
+     */
+    public void drawAll(Graphics2D g2d) {
+        drawAll(g2d, (ShapePainter) null);
+    }
+
+    /**
+     * Draw every shape in order, offering each one that can use its cached
+     * outline (antialiased, inside the clip) to the painter first
+     * @param painter Draws shapes some other way, e.g. from a sprite; may be null
+     */
+    public void drawAll(Graphics2D g2d, ShapePainter painter) {
+        Rectangle area = ShapeGeometry.fillArea(g2d);
+        Object strokeControl = g2d.getRenderingHint(RenderingHints.KEY_STROKE_CONTROL);
+        boolean pure = false;
+        int lastColor = 0;
+        boolean colorSet = false;
+        for (int i = 0; i < size; i++) {
+            ShapeGeometry geo = geometry(i);
+            if (area != null && !geo.fillIntersects(area)) {
+                continue;   // nothing of it would land inside the clip
+            }
+            if (!colorSet || colors[i] != lastColor) {
+                lastColor = colors[i];
+                g2d.setColor(new Color(lastColor, true));
+                colorSet = true;
+            }
+            boolean filled = geo.canFillStroked(g2d, area);
+            if (filled && painter != null && painter.paint(g2d, this, i)) {
+                continue;
+            }
+            if (filled != pure) {
+                // Cached outlines are filled as-is; plain draws keep the caller's stroke control
+                pure = filled;
+                g2d.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL,
+                    pure ? RenderingHints.VALUE_STROKE_PURE : strokeControl);
+            }
+            if (filled) {
+                geo.fillStroked(g2d);
+            } else {
+                geo.drawStroked(g2d);
+            }
+        }
+        if (pure) {
+            g2d.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, strokeControl);
+        }
+    }
+
+    /**
+     * Grow area until no shape crosses its edge: every shape touching the
+     * result lies inside it with the margin cached outlines need, so a repaint
+     * clipped to it draws each shape exactly as a full repaint does
+     * @param limit Surface the area is cut to; a shape crossing its edge is only
+     *              drawn the same way under the same clip, so touching one covers it all
+     */
+    public Rectangle coverArea(Rectangle area, Rectangle limit) {
+        Rectangle covered = area.intersection(limit);
+        Rectangle shape = new Rectangle();
+        boolean grown = !covered.isEmpty();
+        while (grown) {
+            grown = false;
+            for (int i = 0; i < size; i++) {
+                geometry(i).getFillBounds(shape);
+                if (!shape.intersects(covered) || covered.contains(shape)) {
+                    continue;
+                }
+                if (!limit.contains(shape)) {
+                    return new Rectangle(limit);
+                }
+                covered.add(shape);
+                grown = true;
+            }
+        }
+        return covered;
+    }
+
+    /**
+     * Alternative way of putting a shape on screen
+     */
+    public interface ShapePainter {
+        /**
+         * Draw shape index of the store, or return false to have it drawn normally
+         */
+        boolean paint(Graphics2D g2d, ShapeStore store, int index);
+    }
+
+    /**
+     * Draw a list of shapes, taking the columnar path when the list is a store
+     */
+    public static void drawAll(Graphics2D g2d, List<ShapeBase> shapes) {
+        if (shapes instanceof ShapeStore) {
+            ((ShapeStore) shapes).drawAll(g2d);
+        } else {
+            for (ShapeBase shape : shapes) {
+                shape.draw(g2d);
+            }
+        }
+    }
+
+    /**
+     * Index of the topmost shape whose outline passes through (px, py), or -1
+     * Same test as ShapeBase.contains, run straight over the columns
+     */
+    public int hitTest(int px, int py) {
+        HitTestEvent event = new HitTestEvent();
+        event.begin();
+        long metricsStart = EngineMetrics.startTimer();
+        int hit = -1;
+        for (int i = size - 1; i >= 0; i--) {
+            int c = i * 4;
+            if (HitTest.hits(kinds[i], coords[c], coords[c + 1], coords[c + 2], coords[c + 3],
+                    widths[i], px, py)) {
+                hit = i;
+                break;
+            }
+        }
+        int scanned = size - Math.max(hit, 0);
+        EngineMetrics.hitTestFinished(metricsStart, scanned);
+        if (event.shouldCommit()) {
+            event.candidates = scanned;
+            event.shapes = size;
+            event.hit = hit >= 0;
+            event.commit();
+        }
+        return hit;
+    }
+
+    /**
+     * Reusable cursor presenting one row through the ShapeBase API without
+     * allocating a shape per row
+     */
+    public View view() {
+        return new View();
+    }
+
+    public class View extends ShapeBase {
+        private int index = -1;
+
+        private View() {
+            super("LINE", new Point(), new Point(), Color.BLACK, 1);
+        }
+
+        /**
+         * Point this view at row i
+         */
+        public View moveTo(int i) {
+            checkIndex(i);
+            index = i;
+            int c = i * 4;
+            type = TYPE_NAMES[kinds[i]];
+            startPoint.setLocation(coords[c], coords[c + 1]);
+            endPoint.setLocation(coords[c + 2], coords[c + 3]);
+            if (color.getRGB() != colors[i]) {
+                color = new Color(colors[i], true);
+            }
+            strokeWidth = (int) widths[i];
+            return this;
+        }
+
+        @Override
+        public ShapeGeometry getGeometry() {
+            return geometry(index);
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        @Override
+        public void draw(Graphics2D g2d) {
+            drawGeometry(g2d);
+        }
+    }
+
+    /**
+     * Estimated heap footprint of the columns versus the same shapes held as
+     * ShapeBase objects (each with its own Color, as the canvas creates them) in an ArrayList
+     * Object sizes assume a 64-bit JVM with compressed oops: 12-byte headers,
+     * 4-byte references, 8-byte alignment (what JOL reports for these classes)
+     */
+    public static String footprintReport(int shapeCount) {
+        long shapeObject = align(12 + 4 + 4 + 4 + 4 + 4); // type, start, end, color refs + strokeWidth
+        long point = align(12 + 4 + 4);
+        long color = align(12 + 4 + 4 + 4 + 4 + 4);       // value, frgbvalue, fvalue, falpha, cs
+        long listSlot = 4;
+        long perObjectShape = shapeObject + 2 * point + color + listSlot;
+
+        // Cached geometry is a rebuildable cache, reported separately; both
+        // representations build it for every shape they paint or hit-test
+        long columns = align(16 + shapeCount) + align(16 + 16L * shapeCount)
+            + align(16 + 4L * shapeCount) + align(16 + 4L * shapeCount) + align(16 + 4L * shapeCount);
+        long objects = perObjectShape * shapeCount + align(16 + 4L * shapeCount);
+        long[] geometry = ShapeGeometry.typicalBytes();
+
+        return String.format(
+            "%d shapes: ShapeBase objects ~%d bytes/shape (%,d total), columns %.1f bytes/shape (%,d total), %.1fx smaller;"
+                + " cached geometry adds ~%d bytes/shape (%,d total), ~%d with stroked outlines (%,d total)",
+            shapeCount, perObjectShape, objects, (double) columns / Math.max(shapeCount, 1), columns,
+            (double) objects / columns, geometry[0], geometry[0] * shapeCount, geometry[1], geometry[1] * shapeCount);
+    }
+
+    private static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    private int checkIndex(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+        }
+        return i;
+    }
+
+    private void ensureCapacity(int needed) {
+        if (needed <= kinds.length) {
+            return;
+        }
+        int capacity = Math.max(needed, kinds.length + (kinds.length >> 1));
+        kinds = Arrays.copyOf(kinds, capacity);
+        coords = Arrays.copyOf(coords, capacity * 4);
+        colors = Arrays.copyOf(colors, capacity);
+        widths = Arrays.copyOf(widths, capacity);
+        geometry = Arrays.copyOf(geometry, capacity);
+    }
+
+    private void shiftRows(int from, int to, int count) {
+        System.arraycopy(kinds, from, kinds, to, count);
+        System.arraycopy(coords, from * 4, coords, to * 4, count * 4);
+        System.arraycopy(colors, from, colors, to, count);
+        System.arraycopy(widths, from, widths, to, count);
+        System.arraycopy(geometry, from, geometry, to, count);
+    }
+
+    private void copyRow(ShapeStore source, int from, int to) {
+        kinds[to] = source.kinds[from];
+        System.arraycopy(source.coords, from * 4, coords, to * 4, 4);
+        colors[to] = source.colors[from];
+        widths[to] = source.widths[from];
+        geometry[to] = source.geometry[from];
+    }
+}
@@ -14,10 +14,7 @@ public class TriangleShape extends ShapeBase {
     
     @Override
     public void draw(Graphics2D g2d) {
-        setupGraphics(g2d);
-        // Draw triangle with three points
-        int[] xPoints = {startPoint.x, endPoint.x, startPoint.x + (startPoint.x - endPoint.x)};
-        int[] yPoints = {startPoint.y, endPoint.y, endPoint.y};
-        g2d.drawPolygon(xPoints, yPoints, 3);
+        // Triangle with three points: start, end and end mirrored around start
+        drawGeometry(g2d);
     }
 }
@@ -0,0 +1,10 @@
+package com.drawingstudio.tools;
+
+/**
+ * Paint bucket tool for filling connected areas of similar colour
+ */
+public class FillTool extends ToolBase {
+    public FillTool() {
+        super("Fill", "FILL");
+    }
+}
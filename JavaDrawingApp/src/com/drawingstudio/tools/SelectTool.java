@@ -0,0 +1,10 @@
+package com.drawingstudio.tools;
+
+/**
+ * Rectangular selection tool - filters apply only inside the selection
+ */
+public class SelectTool extends ToolBase {
+    public SelectTool() {
+        super("Select", "SELECT");
+    }
+}
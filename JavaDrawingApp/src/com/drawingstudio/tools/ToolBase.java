@@ -34,4 +34,18 @@ public abstract class ToolBase {
     public boolean isBrushTool() {
         return toolType.equals("BRUSH") || toolType.equals("ERASER");
     }
+    
+    /**
+     * Check if this tool is a fill tool
+     */
+    public boolean isFillTool() {
+        return toolType.equals("FILL");
+    }
+    
+    /**
+     * Check if this tool is the selection tool
+     */
+    public boolean isSelectTool() {
+        return toolType.equals("SELECT");
+    }
 }
@@ -0,0 +1,158 @@
+package com.drawingstudio.utils;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+/**
+ * Span-based scanline flood fill over packed int pixels
+ * Follows Heckbert's seed fill: the stack holds spans (a row, a column range
+ * and the direction they were reached from), each row is filled a run at a
+ * time, and only the parts of a new run that stick out past its parent span
+ * are re-checked in the parent's row - so most pixels are tested once. Spans
+ * live on a growable int stack (no recursion, no boxed points) and a bitmap
+ * records filled pixels, so memory is one bit per pixel plus the stack.
+ */
+public class FloodFill {
+    private static final int INITIAL_STACK = 1024;
+
+    private final int[] source;
+    private final int[] target;
+    private final int width;
+    private final int height;
+    private final long[] visited;
+    private final int fillRgb;
+    private final int seedRgb;
+    private final int seedRed, seedGreen, seedBlue;
+    private final int tolerance;
+    private int[] stack = new int[INITIAL_STACK];
+    private int top;
+    private int minX, maxX, minY, maxY;
+
+    private FloodFill(int[] source, int[] target, int width, int height, int seedColor, int tolerance, int fillRgb) {
+        this.source = source;
+        this.target = target;
+        this.width = width;
+        this.height = height;
+        this.visited = new long[(int) (((long) width * height + 63) >>> 6)];
+        this.fillRgb = fillRgb;
+        this.seedRgb = seedColor & 0xFFFFFF;
+        this.seedRed = (seedColor >> 16) & 0xFF;
+        this.seedGreen = (seedColor >> 8) & 0xFF;
+        this.seedBlue = seedColor & 0xFF;
+        this.tolerance = Math.max(0, tolerance);
+    }
+
+    /**
+     * Fill the region connected to (x, y) whose colour in source is within
+     * tolerance of the colour at (x, y), writing fillRgb into target
+     * Both arrays are row-major with the given width (no padding). Source and
+     * target may be the same array.
+     * @param tolerance Largest per-channel difference still counted as the same colour (0-255)
+     * @return Bounds of the filled pixels, or null if (x, y) is outside the image
+     */
+    public static Rectangle fill(int[] source, int[] target, int width, int height,
+                                 int x, int y, int tolerance, int fillRgb) {
+        if (x < 0 || y < 0 || x >= width || y >= height) {
+            return null;
+        }
+        FloodFill fill = new FloodFill(source, target, width, height, source[y * width + x], tolerance, fillRgb);
+        fill.minX = fill.maxX = x;
+        fill.minY = fill.maxY = y;
+        fill.run(x, y);
+        return new Rectangle(fill.minX, fill.minY, fill.maxX - fill.minX + 1, fill.maxY - fill.minY + 1);
+    }
+
+    private void run(int seedX, int seedY) {
+        // A span records the row it was found from; it is filled in row + dy
+        push(seedY, seedX, seedX, 1);
+        push(seedY + 1, seedX, seedX, -1);
+        while (top > 0) {
+            int dy = stack[--top];
+            int x2 = stack[--top];
+            int x1 = stack[--top];
+            int y = stack[--top] + dy;
+            int rowStart = y * width;
+
+            // Fill leftwards from x1
+            int x = x1;
+            while (x >= 0 && inside(rowStart + x)) {
+                set(rowStart + x);
+                x--;
+            }
+            int left;
+            if (x < x1) {
+                left = x + 1;
+                if (left < x1) {
+                    push(y, left, x1 - 1, -dy);   // leaked past the parent on the left
+                }
+                x = x1 + 1;
+            } else {
+                x = skipBlocked(rowStart, x1 + 1, x2);
+                left = x;
+                if (x > x2) {
+                    continue;
+                }
+            }
+
+            // Fill each run overlapping [x1, x2]; the first continues the leftward fill
+            do {
+                while (x < width && inside(rowStart + x)) {
+                    set(rowStart + x);
+                    x++;
+                }
+                push(y, left, x - 1, dy);
+                minX = Math.min(minX, left);
+                maxX = Math.max(maxX, x - 1);
+                minY = Math.min(minY, y);
+                maxY = Math.max(maxY, y);
+                if (x > x2 + 1) {
+                    push(y, x2 + 1, x - 1, -dy);  // leaked past the parent on the right
+                }
+                x = skipBlocked(rowStart, x + 1, x2);
+                left = x;
+            } while (x <= x2);
+        }
+    }
+
+    /**
+     * First column from x up to x2 that can be filled, or x2 + 1
+     */
+    private int skipBlocked(int rowStart, int x, int x2) {
+        while (x <= x2 && !inside(rowStart + x)) {
+            x++;
+        }
+        return x;
+    }
+
+    private void push(int y, int x1, int x2, int dy) {
+        int next = y + dy;
+        if (next < 0 || next >= height) {
+            return;
+        }
+        if (top + 4 > stack.length) {
+            stack = Arrays.copyOf(stack, stack.length * 2);
+        }
+        stack[top++] = y;
+        stack[top++] = x1;
+        stack[top++] = x2;
+        stack[top++] = dy;
+    }
+
+    private boolean inside(int index) {
+        if ((visited[index >>> 6] & (1L << index)) != 0) {
+            return false;
+        }
+        int rgb = source[index];
+        if ((rgb & 0xFFFFFF) == seedRgb) {
+            return true;
+        }
+        return Math.abs(((rgb >> 16) & 0xFF) - seedRed) <= tolerance
+            && Math.abs(((rgb >> 8) & 0xFF) - seedGreen) <= tolerance
+            && Math.abs((rgb & 0xFF) - seedBlue) <= tolerance;
+    }
+
+    private void set(int index) {
+        visited[index >>> 6] |= 1L << index;
+        target[index] = fillRgb;
+    }
+}
@@ -0,0 +1,84 @@
+package com.drawingstudio.utils;
+
+import com.drawingstudio.memory.MemoryConsumer;
+import com.drawingstudio.memory.MemoryGovernor;
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * Hue/brightness gradient for the custom colour dialog, rendered once per size
+ * Hue runs left to right and brightness top to bottom at full saturation -
+ * for each pixel the colour Color.getHSBColor gives - computed straight into
+ * the packed raster, rows in parallel, without a Color or a draw call per
+ * pixel. The last few sizes are cached, so reopening the dialog or repainting
+ * it only copies the image; the memory governor may empty the cache.
+ */
+public class HsbPalette {
+    private static final int CACHED_SIZES = 4;
+
+    private static final Map<Long, BufferedImage> cache = new LinkedHashMap<>(8, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, BufferedImage> eldest) {
+            return size() > CACHED_SIZES;
+        }
+    };
+
+    private static final MemoryConsumer CACHE_CONSUMER = new MemoryConsumer() {
+        @Override
+        public long getMemoryBytes() {
+            synchronized (HsbPalette.class) {
+                long bytes = 0;
+                for (BufferedImage palette : cache.values()) {
+                    bytes += 4L * palette.getWidth() * palette.getHeight();
+                }
+                return bytes;
+            }
+        }
+
+        @Override
+        public long reclaim(long bytes, boolean evict) {
+            synchronized (HsbPalette.class) {
+                long freed = getMemoryBytes();
+                cache.clear();
+                return freed;
+            }
+        }
+    };
+
+    static {
+        MemoryGovernor.shared().register("Colour palette", MemoryGovernor.Priority.CACHE, CACHE_CONSUMER);
+    }
+
+    private HsbPalette() {
+    }
+
+    /**
+     * The gradient at width x height (TYPE_INT_RGB); shared, so don't draw on it
+     */
+    public static synchronized BufferedImage get(int width, int height) {
+        long key = (long) width << 32 | (height & 0xFFFFFFFFL);
+        BufferedImage palette = cache.get(key);
+        if (palette == null) {
+            palette = render(width, height);
+            cache.put(key, palette);
+        }
+        return palette;
+    }
+
+    private static BufferedImage render(int width, int height) {
+        BufferedImage palette = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((DataBufferInt) palette.getRaster().getDataBuffer()).getData();
+        IntStream.range(0, height).parallel().forEach(y -> {
+            float brightness = 1.0f - (float) y / height;
+            int row = y * width;
+            for (int x = 0; x < width; x++) {
+                pixels[row + x] = Color.HSBtoRGB((float) x / width, 1.0f, brightness);
+            }
+        });
+        return palette;
+    }
+}
@@ -0,0 +1,329 @@
+package com.drawingstudio.utils;
+
+import com.drawingstudio.memory.MemoryConsumer;
+import com.drawingstudio.memory.MemoryGovernor;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+/**
+ * Pool of images for surfaces that live only as long as one operation -
+ * composites for picking and filling, bands for saving, undo snapshots - so
+ * a big canvas reuses its rasters instead of filling the old generation with
+ * full-size garbage
+ * Surfaces are leased and returned explicitly, and kept in buckets by exact
+ * size and type, so a leased surface is always unpadded and its pixels can
+ * be addressed as one array. A returned surface comes back from the next
+ * lease as it was left, not cleared. Idle surfaces are kept up to a byte
+ * budget; past it the bucket used longest ago is dropped first. Idle
+ * surfaces are the first thing the memory governor takes back.
+ * <p>
+ * With -Ddrawingstudio.pool.debug=true every lease records where it was
+ * made, and a surface collected without having been returned is reported
+ * with that stack trace.
+ */
+public class SurfacePool implements MemoryConsumer {
+    public static final long DEFAULT_MAX_IDLE_BYTES = 64L * 1024 * 1024;
+
+    private static final SurfacePool SHARED = new SurfacePool(DEFAULT_MAX_IDLE_BYTES,
+        Boolean.getBoolean("drawingstudio.pool.debug"));
+
+    private final long maxIdleBytes;
+    private final boolean debug;
+
+    // Idle surfaces by size and type, least recently returned bucket first
+    private final LinkedHashMap<Long, ArrayDeque<BufferedImage>> idle = new LinkedHashMap<>(16, 0.75f, true);
+    private long idleBytes;
+
+    private long leases;
+    private long hits;
+    private long returns;
+    private long detached;
+    private long bytesReused;
+    private long leaked;
+
+    // Debug only: surfaces out on lease, and the queue the collector reports dropped ones on
+    private final Set<Lease> outstanding = new HashSet<>();
+    private final ReferenceQueue<BufferedImage> collected = new ReferenceQueue<>();
+
+    public SurfacePool(long maxIdleBytes, boolean debug) {
+        this.maxIdleBytes = maxIdleBytes;
+        this.debug = debug;
+        MemoryGovernor.shared().register("Idle surfaces", MemoryGovernor.Priority.IDLE, this);
+    }
+
+    /**
+     * Pool shared by the canvas, history and file code
+     */
+    public static SurfacePool shared() {
+        return SHARED;
+    }
+
+    /**
+     * A surface of exactly this size and type, reused if one is idle
+     * Its pixels are whatever the last user left; the caller must overwrite
+     * them all. Return it with release() when done.
+     * @param type One of the TYPE_INT_* image types
+     */
+    public synchronized BufferedImage lease(int width, int height, int type) {
+        pollCollected();
+        leases++;
+        BufferedImage image = null;
+        long key = key(width, height, type);
+        ArrayDeque<BufferedImage> bucket = idle.get(key);
+        if (bucket != null) {
+            image = bucket.pollLast();
+            if (bucket.isEmpty()) {
+                idle.remove(key);
+            }
+        }
+        if (image != null) {
+            long bytes = bytesOf(image);
+            hits++;
+            bytesReused += bytes;
+            idleBytes -= bytes;
+        } else {
+            image = new BufferedImage(width, height, type);
+        }
+        if (debug) {
+            outstanding.add(new Lease(image, collected));
+        }
+        return image;
+    }
+
+    /**
+     * Leased copy of an image's pixels - same size, type and alpha
+     * Images of a type the pool doesn't keep are copied outright.
+     */
+    public BufferedImage copyOf(BufferedImage source) {
+        if (!poolable(source)) {
+            return new BufferedImage(source.getColorModel(), source.copyData(null),
+                source.isAlphaPremultiplied(), null);
+        }
+        BufferedImage copy = lease(source.getWidth(), source.getHeight(), source.getType());
+        int[] from = ((DataBufferInt) source.getRaster().getDataBuffer()).getData();
+        int[] to = ((DataBufferInt) copy.getRaster().getDataBuffer()).getData();
+        System.arraycopy(from, 0, to, 0, to.length);
+        return copy;
+    }
+
+    /**
+     * Hand a surface back for reuse
+     * Nothing may draw into or read from it afterwards. Images the pool
+     * can't reuse - odd types, or ones it would have to pad - are just
+     * dropped, so any image may be passed.
+     */
+    public synchronized void release(BufferedImage image) {
+        if (image == null) {
+            return;
+        }
+        pollCollected();
+        if (debug) {
+            forget(image);
+        }
+        if (!poolable(image)) {
+            return;
+        }
+        long key = key(image.getWidth(), image.getHeight(), image.getType());
+        ArrayDeque<BufferedImage> bucket = idle.computeIfAbsent(key, k -> new ArrayDeque<>());
+        for (BufferedImage waiting : bucket) {
+            if (waiting == image) {
+                System.out.println("Surface returned to the pool twice: " + image.getWidth() + "x"
+                    + image.getHeight());
+                return;
+            }
+        }
+        returns++;
+        bucket.addLast(image);
+        idleBytes += bytesOf(image);
+        trim();
+    }
+
+    /**
+     * Stop treating a leased surface as on loan - it now lives on as part of
+     * the document (an undo snapshot adopted as a layer's raster) and may
+     * never be returned
+     */
+    public synchronized void detach(BufferedImage image) {
+        pollCollected();
+        if (debug) {
+            forget(image);
+        }
+        detached++;
+    }
+
+    /**
+     * Drop every idle surface (the memory is needed elsewhere)
+     */
+    public synchronized void clear() {
+        idle.clear();
+        idleBytes = 0;
+    }
+
+    @Override
+    public long getMemoryBytes() {
+        return getIdleBytes();
+    }
+
+    /**
+     * Idle surfaces are only kept for reuse, so all of them go
+     */
+    @Override
+    public synchronized long reclaim(long bytes, boolean evict) {
+        long freed = idleBytes;
+        clear();
+        return freed;
+    }
+
+    public synchronized long getLeases() {
+        return leases;
+    }
+
+    /**
+     * Fraction of leases served from the pool, 0 before the first
+     */
+    public synchronized double getHitRate() {
+        return leases == 0 ? 0 : (double) hits / leases;
+    }
+
+    /**
+     * Bytes of image that reuse has saved allocating
+     */
+    public synchronized long getBytesReused() {
+        return bytesReused;
+    }
+
+    /**
+     * Bytes held by surfaces waiting to be leased again
+     */
+    public synchronized long getIdleBytes() {
+        return idleBytes;
+    }
+
+    /**
+     * Surfaces leased and neither returned nor detached
+     */
+    public synchronized long getOutstanding() {
+        pollCollected();
+        return Math.max(0, leases - returns - detached - leaked);
+    }
+
+    /**
+     * Surfaces collected without being returned; counted in debug mode only
+     */
+    public synchronized long getLeaked() {
+        pollCollected();
+        return leaked;
+    }
+
+    /**
+     * Start the counters again from zero; idle surfaces are kept
+     */
+    public synchronized void resetCounters() {
+        leases = 0;
+        hits = 0;
+        returns = 0;
+        detached = 0;
+        bytesReused = 0;
+        leaked = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%.0f%% of %d leases reused, %.1f MB not allocated, %.1f MB idle",
+            getHitRate() * 100, leases, bytesReused / 1048576.0, idleBytes / 1048576.0);
+    }
+
+    private void trim() {
+        Iterator<ArrayDeque<BufferedImage>> buckets = idle.values().iterator();
+        while (idleBytes > maxIdleBytes && buckets.hasNext()) {
+            ArrayDeque<BufferedImage> bucket = buckets.next();
+            while (idleBytes > maxIdleBytes && !bucket.isEmpty()) {
+                idleBytes -= bytesOf(bucket.pollFirst());
+            }
+            if (bucket.isEmpty()) {
+                buckets.remove();
+            }
+        }
+    }
+
+    private void forget(BufferedImage image) {
+        for (Iterator<Lease> it = outstanding.iterator(); it.hasNext(); ) {
+            Lease lease = it.next();
+            if (lease.get() == image) {
+                lease.clear();
+                it.remove();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Report leased surfaces the collector found unreachable
+     */
+    private void pollCollected() {
+        if (!debug) {
+            return;
+        }
+        Lease lease;
+        while ((lease = (Lease) collected.poll()) != null) {
+            if (outstanding.remove(lease)) {
+                leaked++;
+                System.out.println("Surface leaked: " + lease.width + "x" + lease.height
+                    + " collected without being returned to the pool; leased at");
+                for (StackTraceElement frame : lease.site.getStackTrace()) {
+                    if (!frame.getClassName().startsWith(SurfacePool.class.getName())) {
+                        System.out.println("    at " + frame);
+                    }
+                }
+            }
+        }
+    }
+
+    private static boolean poolable(BufferedImage image) {
+        switch (image.getType()) {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB:
+            case BufferedImage.TYPE_INT_ARGB_PRE:
+            case BufferedImage.TYPE_INT_BGR:
+                break;
+            default:
+                return false;
+        }
+        // Only whole, unshared rasters - not subimages or wrapped arrays
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        return buffer.getNumBanks() == 1 && buffer.getOffset() == 0
+            && buffer.getSize() == image.getWidth() * image.getHeight()
+            && image.getRaster().getParent() == null;
+    }
+
+    private static long key(int width, int height, int type) {
+        return (long) type << 48 | (long) width << 24 | height;
+    }
+
+    private static long bytesOf(BufferedImage image) {
+        return 4L * image.getWidth() * image.getHeight();
+    }
+
+    /**
+     * Where a surface was leased, kept until it is returned or collected
+     */
+    private static class Lease extends WeakReference<BufferedImage> {
+        final int width;
+        final int height;
+        final Throwable site = new Throwable();
+
+        Lease(BufferedImage image, ReferenceQueue<BufferedImage> queue) {
+            super(image, queue);
+            width = image.getWidth();
+            height = image.getHeight();
+        }
+    }
+}